@@ -0,0 +1,98 @@
+package webproxy;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Compares two JMH result files written with -rf csv, e.g. one per commit,
+ * printing the change of every benchmark present in both. A change is only
+ * flagged when the two scores are further apart than their error margins.
+ *
+ * Usage (from the repository root):
+ *   java -jar benchmarks/target/benchmarks.jar -rf csv -rff before.csv
+ *   (check out and build the other commit)
+ *   java -jar benchmarks/target/benchmarks.jar -rf csv -rff after.csv
+ *   java -cp benchmarks/target/benchmarks.jar webproxy.WebProxyBenchmarkComparison before.csv after.csv
+ */
+public class WebProxyBenchmarkComparison {
+
+	// One result: its score and error margin, and whether higher is better
+	private static class Result {
+		double score, error;
+		String unit;
+		boolean throughput;
+	}
+
+	public static void main(String args[]) throws IOException {
+		if(args.length != 2) {
+			System.out.println("Usage: WebProxyBenchmarkComparison <before.csv> <after.csv>");
+			System.exit(1);
+		}
+		Map<String, Result> before = read(Paths.get(args[0])), after = read(Paths.get(args[1]));
+		System.out.println(String.format("%-80s %14s %14s %9s", "benchmark", "before", "after", "change"));
+		for(Map.Entry<String, Result> entry : after.entrySet()) {
+			Result old = before.get(entry.getKey()), now = entry.getValue();
+			if(old == null) continue;
+			double change = (now.score - old.score) / old.score * 100;
+			boolean significant = Math.abs(now.score - old.score) > old.error + now.error;
+			boolean better = now.throughput ? now.score > old.score : now.score < old.score;
+			System.out.println(String.format("%-80s %14.3f %14.3f %+8.1f%% %s", entry.getKey(), old.score, now.score, change,
+					(significant ? (better ? "faster" : "SLOWER") : "") + " " + now.unit));
+		}
+	}
+
+	/**
+	 * Reads the results of a JMH CSV result file, keyed by benchmark and parameters
+	 * @param file
+	 * @return the results
+	 * @throws IOException
+	 */
+	private static Map<String, Result> read(Path file) throws IOException {
+		List<String> lines = Files.readAllLines(file);
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		if(lines.isEmpty()) return results;
+		List<String> columns = split(lines.get(0));
+		for(String line : lines.subList(1, lines.size())) {
+			List<String> values = split(line);
+			if(values.size() != columns.size()) continue;
+			StringBuilder key = new StringBuilder(values.get(0).replaceFirst("^webproxy\\.", ""));
+			for(int i = 0; i < columns.size(); i++) {
+				if(columns.get(i).startsWith("Param: ") && !values.get(i).isEmpty()) {
+					key.append(i == 0 ? "" : " ").append(columns.get(i).substring("Param: ".length())).append('=').append(values.get(i));
+				}
+			}
+			Result result = new Result();
+			result.score = Double.parseDouble(values.get(columns.indexOf("Score")));
+			String error = values.get(columns.indexOf("Score Error (99.9%)"));
+			result.error = error.isEmpty() || error.equals("NaN") ? 0 : Double.parseDouble(error);
+			result.unit = values.get(columns.indexOf("Unit"));
+			result.throughput = values.get(columns.indexOf("Mode")).equals("thrpt");
+			results.put(key.toString(), result);
+		}
+		return results;
+	}
+
+	/**
+	 * Splits a CSV line into its values, removing the quotes around them
+	 * @param line
+	 * @return the values
+	 */
+	private static List<String> split(String line) {
+		List<String> values = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for(int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if(c == '"') quoted = !quoted;
+			else if(c == ',' && !quoted) {
+				values.add(value.toString());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		values.add(value.toString());
+		return values;
+	}
+}
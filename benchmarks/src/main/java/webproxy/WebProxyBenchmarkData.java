@@ -0,0 +1,159 @@
+package webproxy;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Payloads shared by the benchmarks: censor lists, HTML and binary bodies,
+ * and the responses that carry them, all seeded so every run sees the same bytes
+ */
+public class WebProxyBenchmarkData {
+	// Censored words per KB of HTML body
+	private static final double MATCHES_PER_KB = 0.5;
+
+	/**
+	 * Returns random lower case words of 4 to 10 letters
+	 * @param random
+	 * @param count
+	 * @return the words
+	 */
+	static String[] randomWords(Random random, int count) {
+		String[] words = new String[count];
+		for(int i = 0; i < count; i++) {
+			char[] word = new char[4 + random.nextInt(7)];
+			for(int j = 0; j < word.length; j++) word[j] = (char) ('a' + random.nextInt(26));
+			words[i] = new String(word);
+		}
+		return words;
+	}
+
+	/**
+	 * Returns an HTML-like body of the given size with censored words
+	 * sprinkled in, in mixed case
+	 * @param random
+	 * @param size
+	 * @param words
+	 * @return the body
+	 */
+	static byte[] randomHtml(Random random, int size, String[] words) {
+		String[] filler = {"<div class=\"item\">", "</div>\n", "<p>", "</p>\n", "the ", "quick ", "brown ", "fox ",
+				"jumps ", "over ", "lazy ", "dog ", "<a href=\"/index.html\">", "</a>", "lorem ", "ipsum "};
+		StringBuilder html = new StringBuilder("<html><body>\n");
+		int matches = (int) (size / 1024 * MATCHES_PER_KB);
+		while(html.length() < size) {
+			if(words.length > 0 && random.nextInt(Math.max(1, size / Math.max(1, matches) / 6)) == 0) {
+				String word = words[random.nextInt(words.length)];
+				html.append(random.nextBoolean() ? word.toUpperCase() : word).append(' ');
+			} else {
+				html.append(filler[random.nextInt(filler.length)]);
+			}
+		}
+		return html.substring(0, size).getBytes();
+	}
+
+	/**
+	 * Returns a body of random bytes, as an image or archive would be
+	 * @param random
+	 * @param size
+	 * @return the body
+	 */
+	static byte[] randomBinary(Random random, int size) {
+		byte[] body = new byte[size];
+		random.nextBytes(body);
+		return body;
+	}
+
+	/**
+	 * Returns a body of the given kind
+	 * @param payload html or binary
+	 * @param size
+	 * @return the body
+	 */
+	static byte[] body(String payload, int size) {
+		Random random = new Random(42);
+		if(payload.equals("binary")) return randomBinary(random, size);
+		return randomHtml(random, size, randomWords(random, 100));
+	}
+
+	/**
+	 * Returns the header a typical server sends with a body of the given kind
+	 * @param payload html or binary
+	 * @param length the Content-Length, or -1 for a chunked body
+	 * @return the header
+	 */
+	static String responseHeader(String payload, long length) {
+		return "HTTP/1.1 200 OK\r\n"
+				+ "Date: Sun, 11 Sep 2016 10:00:00 GMT\r\n"
+				+ "Server: Apache/2.4.18 (Ubuntu)\r\n"
+				+ "Last-Modified: Sat, 10 Sep 2016 08:00:00 GMT\r\n"
+				+ "ETag: \"5d2-53c1e3a4b7e80\"\r\n"
+				+ "Accept-Ranges: bytes\r\n"
+				+ "Cache-Control: max-age=3600\r\n"
+				+ "Vary: Accept-Encoding\r\n"
+				+ "Content-Type: " + (payload.equals("binary") ? "image/png" : "text/html; charset=UTF-8") + "\r\n"
+				+ (length < 0 ? "Transfer-Encoding: chunked\r\n" : "Content-Length: " + length + "\r\n")
+				+ "Keep-Alive: timeout=5, max=100\r\n"
+				+ "Connection: Keep-Alive\r\n"
+				+ "\r\n";
+	}
+
+	/**
+	 * Returns a whole response carrying a body, chunked in 8 KB chunks if asked
+	 * @param payload html or binary
+	 * @param body
+	 * @param chunked
+	 * @return the response
+	 */
+	static byte[] response(String payload, byte[] body, boolean chunked) {
+		ByteArrayOutputStream response = new ByteArrayOutputStream(body.length + 1024);
+		byte[] header = responseHeader(payload, chunked ? -1 : body.length).getBytes();
+		response.write(header, 0, header.length);
+		if(!chunked) {
+			response.write(body, 0, body.length);
+			return response.toByteArray();
+		}
+		for(int offset = 0; offset < body.length; offset += 8192) {
+			int length = Math.min(8192, body.length - offset);
+			byte[] size = (Integer.toHexString(length) + "\r\n").getBytes();
+			response.write(size, 0, size.length);
+			response.write(body, offset, length);
+			response.write('\r');
+			response.write('\n');
+		}
+		response.write('0');
+		response.write('\r');
+		response.write('\n');
+		response.write('\r');
+		response.write('\n');
+		return response.toByteArray();
+	}
+
+	/**
+	 * Points the proxy's cache at a new temporary directory, so that loading
+	 * WebProxyThread does not leave a cache in the working directory
+	 * @return the directory
+	 * @throws IOException
+	 */
+	static Path useTemporaryCache() throws IOException {
+		Path directory = Files.createTempDirectory("webproxy-bench-cache");
+		WebProxyConfig.parse(new String[] {"--cache-dir=" + directory}, 0);
+		return directory;
+	}
+
+	/**
+	 * Deletes a directory and the cache files and directories in it
+	 * @param dir
+	 * @throws IOException
+	 */
+	static void deleteDirectory(Path dir) throws IOException {
+		if(!Files.exists(dir)) return;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for(Path file : files) {
+				if(Files.isDirectory(file)) deleteDirectory(file);
+				else Files.deleteIfExists(file);
+			}
+		}
+		Files.deleteIfExists(dir);
+	}
+}
@@ -0,0 +1,115 @@
+package webproxy;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures cache lookups under contention: four threads looking up URLs, and
+ * three looking up while one stores new objects, as busy clients of a proxy
+ * that is also filling its cache would. The synchronized Hashtable the cache
+ * started as is measured the same way as the baseline.
+ *
+ * Usage (from the repository root):
+ *   mvn -B package
+ *   java -jar benchmarks/target/benchmarks.jar WebProxyCacheBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebProxyCacheBenchmark {
+	// Number of cached URLs, and the size of every object stored
+	private static final int OBJECTS = 4096;
+	private static final int OBJECT_SIZE = 512;
+	private static final String DATE = "Sun, 11 Sep 2016 10:00:00 GMT";
+
+	private String[] urls = new String[OBJECTS];
+	private WebProxyCache cache;
+	private Hashtable<String, WebProxyCachedObject> hashtable = new Hashtable<String, WebProxyCachedObject>();
+	private Path cacheDir;
+	private byte[] object;
+
+	@Setup
+	public void setUp() throws IOException {
+		cacheDir = Files.createTempDirectory("webproxy-bench-cache");
+		cache = new WebProxyCache(64L * 1024 * 1024, 1024L * 1024 * 1024,
+				new WebProxyStore(cacheDir.toString(), 64L * 1024 * 1024));
+		object = WebProxyBenchmarkData.randomBinary(new Random(42), OBJECT_SIZE);
+		for(int i = 0; i < OBJECTS; i++) {
+			urls[i] = "http://www.example.com/objects/" + i + ".png";
+			cache.put(urls[i], newObject());
+			hashtable.put(urls[i], new WebProxyCachedObject(DATE, null, false, true));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		WebProxyBenchmarkData.deleteDirectory(cacheDir);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public WebProxyCachedObject get() {
+		return cache.get(randomUrl());
+	}
+
+	@Benchmark
+	@Group("getWhilePutting")
+	@GroupThreads(3)
+	public WebProxyCachedObject getWhilePuttingGet() {
+		return cache.get(randomUrl());
+	}
+
+	@Benchmark
+	@Group("getWhilePutting")
+	@GroupThreads(1)
+	public void getWhilePuttingPut() throws IOException {
+		cache.put(randomUrl(), newObject());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public WebProxyCachedObject hashtableGet() {
+		return hashtable.get(randomUrl());
+	}
+
+	@Benchmark
+	@Group("hashtableGetWhilePutting")
+	@GroupThreads(3)
+	public WebProxyCachedObject hashtableGetWhilePuttingGet() {
+		return hashtable.get(randomUrl());
+	}
+
+	@Benchmark
+	@Group("hashtableGetWhilePutting")
+	@GroupThreads(1)
+	public WebProxyCachedObject hashtableGetWhilePuttingPut() {
+		return hashtable.put(randomUrl(), new WebProxyCachedObject(DATE, null, false, true));
+	}
+
+	/**
+	 * Returns one of the cached URLs at random
+	 * @return the URL
+	 */
+	private String randomUrl() {
+		return urls[ThreadLocalRandom.current().nextInt(OBJECTS)];
+	}
+
+	/**
+	 * Writes an object to a staging file, as a response is while it is relayed
+	 * @return the object, ready to be cached
+	 * @throws IOException
+	 */
+	private WebProxyCachedObject newObject() throws IOException {
+		String filename = cache.newStagingFile();
+		Files.write(Paths.get(filename), object);
+		return new WebProxyCachedObject(DATE, filename, false, true);
+	}
+}
@@ -0,0 +1,131 @@
+package webproxy;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the compiled censor automaton, over a whole body and as the
+ * stream that censors a relayed body, with the word-by-word censorBytes()
+ * it replaced, over HTML bodies and censor lists of several sizes.
+ *
+ * Usage (from the repository root):
+ *   mvn -B package
+ *   java -jar benchmarks/target/benchmarks.jar WebProxyCensorBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebProxyCensorBenchmark {
+	// Benchmark parameters
+	@Param({"16384", "262144", "2097152"})
+	int bodySize;
+
+	@Param({"10", "100", "500"})
+	int listSize;
+
+	// Size of the reads a relayed body arrives in
+	private static final int READ_SIZE = 8192;
+
+	private String[] words;
+	private WebProxyCensor censor;
+	private byte[] body;
+	private Path cacheDir;
+
+	@Setup
+	public void setUp() throws IOException {
+		cacheDir = WebProxyBenchmarkData.useTemporaryCache();
+		Random random = new Random(42);
+		words = WebProxyBenchmarkData.randomWords(random, listSize);
+		censor = new WebProxyCensor(words);
+		body = WebProxyBenchmarkData.randomHtml(random, bodySize, words);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		WebProxyBenchmarkData.deleteDirectory(cacheDir);
+	}
+
+	@Benchmark
+	public byte[] automaton() {
+		return censor.censor(body, 0);
+	}
+
+	@Benchmark
+	public long stream() throws IOException {
+		WebProxyCensorStream stream = new WebProxyCensorStream(censor, OutputStream.nullOutputStream());
+		for(int offset = 0; offset < body.length; offset += READ_SIZE) {
+			stream.write(body, offset, Math.min(READ_SIZE, body.length - offset));
+		}
+		stream.finish();
+		return stream.getMatches();
+	}
+
+	@Benchmark
+	public byte[] censorBytes() {
+		byte[] result = body;
+		for(String word : words) result = censorBytes(result, 0, word, "---");
+		return result;
+	}
+
+	/**
+	 * The word-by-word censoring the automaton replaced, kept as the baseline
+	 * @param byteArray
+	 * @param bodyStart
+	 * @param censoredWord
+	 * @param replaceWith
+	 * @return the censored byteArray
+	 */
+	static byte[] censorBytes(byte[] byteArray, int bodyStart, String censoredWord, String replaceWith) {
+		byte[] replaceBytes = replaceWith.getBytes();
+
+		byte[] censorBytes = censoredWord.getBytes();
+		byte[] censorBytesUp = censoredWord.toUpperCase().getBytes();
+		byte[] censorBytesDown = censoredWord.toLowerCase().getBytes();
+
+		for(int i = bodyStart; i < byteArray.length; i++) {
+			for(int j = 0; i + j < byteArray.length && j < censorBytes.length &&
+			((byteArray[i + j] == censorBytesUp[j]) || (byteArray[i + j] == censorBytesDown[j])); j++) {
+				if(j == censorBytes.length - 1) {
+					byte[] head = WebProxyThread.getSubarray(byteArray, 0, i-1);
+					byte[] tail = WebProxyThread.getSubarray(byteArray, i+j+1, byteArray.length-1);
+					byteArray = combineThreeArrays(head, replaceBytes, tail);
+					i += replaceWith.length() - 1;
+				}
+			}
+		}
+
+		return byteArray;
+	}
+
+	/**
+	 * Combines first, second and third into one array
+	 * @param first
+	 * @param second
+	 * @param third
+	 * @return the combined array
+	 */
+	static byte[] combineThreeArrays(byte[] first, byte[] second, byte[] third) {
+		byte[] result = new byte[first.length + second.length + third.length];
+		int i = 0;
+		for(byte b : first) {
+			result[i] = b;
+			i++;
+		}
+		for(byte b : second) {
+			result[i] = b;
+			i++;
+		}
+		for(byte b : third) {
+			result[i] = b;
+			i++;
+		}
+		return result;
+	}
+}
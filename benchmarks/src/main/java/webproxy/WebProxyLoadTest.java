@@ -0,0 +1,482 @@
+package webproxy;
+
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Runs the whole proxy under load on one machine, without network access.
+ *
+ * Every scenario starts a new proxy process, with an empty cache, in front of
+ * an embedded origin on the loopback interface. Clients then keep requests in
+ * flight on persistent connections, warming up first and then measuring.
+ * What the origin serves is set per request in the query string: the object
+ * size, content type, max-age and the delay before it answers.
+ *
+ * Scenarios:
+ *   hot    a small set of cacheable HTML pages, so almost every request is a hit
+ *   cold   a new URL on every request, so every request goes to the origin
+ *   large  multi-megabyte binary downloads
+ *   slow   half of the clients read at a trickle while the others are measured
+ *
+ * Reported per scenario: requests and megabytes per second, latency
+ * percentiles, errors, the cache hit ratio, the heap allocated per request
+ * and the peak heap and platform threads of the proxy, read from its metrics
+ * endpoint.
+ *
+ * Usage (from the repository root):
+ *   mvn -B package
+ *   java -cp benchmarks/target/benchmarks.jar webproxy.WebProxyLoadTest [--scenarios=hot,cold,large,slow]
+ *       [--clients=n] [--warmup=s] [--duration=s] [--mode=thread|virtual|nio] [--proxy-args="--name=value ..."]
+ */
+public class WebProxyLoadTest {
+
+	// What one scenario requests, and how its clients behave
+	private static class Scenario {
+		final String name;
+		// Distinct objects requested, or 0 for a new URL every time
+		final int objects;
+		final int size;
+		final String type;
+		final int maxAge, originDelay, clients;
+		// Share of the clients that read slowly, and how fast they read in bytes per second
+		final double slowShare;
+		final int slowRate;
+
+		Scenario(String name, int objects, int size, String type, int maxAge, int originDelay,
+				int clients, double slowShare, int slowRate) {
+			this.name = name;
+			this.objects = objects;
+			this.size = size;
+			this.type = type;
+			this.maxAge = maxAge;
+			this.originDelay = originDelay;
+			this.clients = clients;
+			this.slowShare = slowShare;
+			this.slowRate = slowRate;
+		}
+	}
+
+	private static final Scenario[] SCENARIOS = {
+		new Scenario("hot", 200, 16 * 1024, "text/html", 3600, 20, 64, 0, 0),
+		new Scenario("cold", 0, 16 * 1024, "application/octet-stream", 3600, 20, 64, 0, 0),
+		new Scenario("large", 16, 8 * 1024 * 1024, "application/octet-stream", 3600, 0, 8, 0, 0),
+		new Scenario("slow", 100, 256 * 1024, "application/octet-stream", 3600, 0, 64, 0.5, 128 * 1024),
+	};
+
+	// Phases of a run, as seen by the clients
+	private static final int WARMUP = 0, MEASURE = 1, STOP = 2;
+
+	// Bodies served by the origin, by size and type
+	private static ConcurrentHashMap<String, byte[]> bodies = new ConcurrentHashMap<String, byte[]>();
+
+	// Distinguishes the URLs of the cold scenario
+	private static AtomicLong uniqueIds = new AtomicLong();
+
+	public static void main(String args[]) throws Exception {
+		WebProxyConfig.parse(args, 0);
+		String[] names = WebProxyConfig.getString("scenarios", "hot,cold,large,slow").split(",");
+		int warmup = WebProxyConfig.getInt("warmup", 3), duration = WebProxyConfig.getInt("duration", 10);
+		String mode = WebProxyConfig.getString("mode", "thread");
+
+		HttpServer origin = startOrigin();
+		System.out.println("mode " + mode + ", warm-up " + warmup + " s, measured " + duration + " s");
+		System.out.println(String.format("%-6s %7s %9s %8s %8s %8s %8s %8s %7s %6s %8s %8s %8s",
+				"", "clients", "req/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors", "hit %", "KB/req", "heap MB", "threads"));
+		for(String name : names) {
+			Scenario scenario = find(name.trim());
+			if(scenario == null) {
+				System.out.println("Error: Unknown scenario " + name);
+				continue;
+			}
+			run(scenario, origin.getAddress().getPort(), mode, warmup, duration);
+		}
+		origin.stop(0);
+		System.exit(0);
+	}
+
+	/**
+	 * Returns the scenario of the given name
+	 * @param name
+	 * @return the scenario, or null if there is none
+	 */
+	private static Scenario find(String name) {
+		for(Scenario scenario : SCENARIOS) {
+			if(scenario.name.equals(name)) return scenario;
+		}
+		return null;
+	}
+
+	/**
+	 * Starts the embedded origin, which answers /object?size=&type=&maxAge=&delay=
+	 * with a body of that size and type, after that delay, with validators and a
+	 * max-age so that the proxy caches and revalidates it as it would a real object
+	 * @return the running origin
+	 * @throws IOException
+	 */
+	private static HttpServer startOrigin() throws IOException {
+		HttpServer origin = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+		origin.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+				int size = Integer.parseInt(query.getOrDefault("size", "4096"));
+				String type = query.getOrDefault("type", "application/octet-stream");
+				int delay = Integer.parseInt(query.getOrDefault("delay", "0"));
+				if(delay > 0) {
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				Headers headers = exchange.getResponseHeaders();
+				headers.set("Content-Type", type);
+				headers.set("Cache-Control", "max-age=" + query.getOrDefault("maxAge", "3600"));
+				headers.set("ETag", "\"" + size + "\"");
+				headers.set("Last-Modified", "Sun, 11 Sep 2016 10:00:00 GMT");
+				if(exchange.getRequestHeaders().getFirst("If-None-Match") != null) {
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+				byte[] body = body(size, type);
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		origin.setExecutor(Executors.newCachedThreadPool());
+		origin.start();
+		return origin;
+	}
+
+	/**
+	 * Returns a body the origin serves, HTML for text and random bytes otherwise
+	 * @param size
+	 * @param type
+	 * @return the body
+	 */
+	private static byte[] body(final int size, final String type) {
+		return bodies.computeIfAbsent(size + " " + type, new java.util.function.Function<String, byte[]>() {
+			public byte[] apply(String key) {
+				Random random = new Random(42);
+				if(type.startsWith("text/")) return WebProxyBenchmarkData.randomHtml(random, size, new String[0]);
+				return WebProxyBenchmarkData.randomBinary(random, size);
+			}
+		});
+	}
+
+	/**
+	 * Parses a query string into its parameters
+	 * @param query
+	 * @return the parameters
+	 */
+	private static Map<String, String> parseQuery(String query) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if(query == null) return parameters;
+		for(String parameter : query.split("&")) {
+			String[] keyVal = parameter.split("=", 2);
+			parameters.put(keyVal[0], keyVal.length == 2 ? URLDecoder.decode(keyVal[1], java.nio.charset.StandardCharsets.UTF_8) : "");
+		}
+		return parameters;
+	}
+
+	/**
+	 * Runs one scenario against a new proxy process and prints its results
+	 * @param scenario
+	 * @param originPort
+	 * @param mode
+	 * @param warmup seconds
+	 * @param duration seconds
+	 * @throws Exception
+	 */
+	private static void run(final Scenario scenario, final int originPort, String mode, int warmup, int duration) throws Exception {
+		final int proxyPort = freePort();
+		Path workDir = Files.createTempDirectory("webproxy-load-" + scenario.name);
+		List<String> command = new ArrayList<String>(Arrays.asList(javaExecutable(), "-cp", classPath(),
+				WebProxy.class.getName(), String.valueOf(proxyPort), "--mode=" + mode, "--backlog=4096"));
+		String proxyArgs = WebProxyConfig.getString("proxy-args", "").trim();
+		if(!proxyArgs.isEmpty()) command.addAll(Arrays.asList(proxyArgs.split("\\s+")));
+		Process proxy = new ProcessBuilder(command).directory(workDir.toFile()).redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+		waitForPort(proxyPort);
+
+		final int clients = WebProxyConfig.getInt("clients", scenario.clients);
+		final AtomicInteger phase = new AtomicInteger(WARMUP);
+		final WebProxyMetrics.Histogram latencies = new WebProxyMetrics.Histogram("latency", "");
+		final LongAdder bytes = new LongAdder(), errors = new LongAdder();
+		final CountDownLatch done = new CountDownLatch(clients);
+		for(int c = 0; c < clients; c++) {
+			final boolean slow = c < clients * scenario.slowShare;
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					Client client = new Client(proxyPort, slow ? scenario.slowRate : 0);
+					try {
+						while(phase.get() != STOP) {
+							long begin = System.nanoTime();
+							long received = client.fetch(url(scenario, originPort));
+							if(phase.get() != MEASURE) continue;
+							if(received < 0) errors.increment();
+							else bytes.add(received);
+							// Slow clients only make the load, the others are measured
+							if(!slow) latencies.recordSince(begin);
+						}
+					} finally {
+						client.close();
+						done.countDown();
+					}
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		// Warm up, then measure while sampling the proxy's metrics
+		Thread.sleep(warmup * 1000L);
+		Map<String, Double> before = readMetrics(proxyPort);
+		phase.set(MEASURE);
+		long start = System.nanoTime(), end = start + duration * 1000000000L;
+		double peakHeap = 0, peakThreads = 0;
+		while(System.nanoTime() < end) {
+			Thread.sleep(200);
+			Map<String, Double> sample = readMetrics(proxyPort);
+			peakHeap = Math.max(peakHeap, sample.getOrDefault("webproxy_jvm_heap_used_bytes", 0.0));
+			peakThreads = Math.max(peakThreads, sample.getOrDefault("webproxy_jvm_threads", 0.0));
+		}
+		Map<String, Double> after = readMetrics(proxyPort);
+		phase.set(STOP);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		done.await(30, TimeUnit.SECONDS);
+		proxy.destroy();
+		proxy.waitFor();
+		WebProxyBenchmarkData.deleteDirectory(workDir);
+
+		double hits = delta(before, after, "webproxy_cache_hits_total"), misses = delta(before, after, "webproxy_cache_misses_total");
+		double requests = delta(before, after, "webproxy_requests_total");
+		double allocated = delta(before, after, "webproxy_jvm_allocated_bytes_total");
+		System.out.println(String.format("%-6s %7d %9.0f %8.1f %8.2f %8.2f %8.2f %8.2f %7d %6.1f %8.1f %8.1f %8.0f",
+				scenario.name, clients, latencies.getCount() / seconds, bytes.sum() / seconds / (1024 * 1024),
+				latencies.getValueAt(0.5) / 1e3, latencies.getValueAt(0.99) / 1e3, latencies.getValueAt(0.999) / 1e3,
+				latencies.getValueAt(1.0) / 1e3, errors.sum(), hits + misses == 0 ? 0 : hits * 100 / (hits + misses),
+				requests == 0 ? 0 : allocated / requests / 1024, peakHeap / (1024 * 1024), peakThreads));
+	}
+
+	/**
+	 * Returns the next URL a client of a scenario requests
+	 * @param scenario
+	 * @param originPort
+	 * @return the URL
+	 */
+	private static String url(Scenario scenario, int originPort) {
+		long id = scenario.objects == 0 ? uniqueIds.incrementAndGet() : ThreadLocalRandom.current().nextInt(scenario.objects);
+		return "http://127.0.0.1:" + originPort + "/object/" + id + "?size=" + scenario.size
+				+ "&type=" + URLEncoder.encode(scenario.type, java.nio.charset.StandardCharsets.UTF_8)
+				+ "&maxAge=" + scenario.maxAge + "&delay=" + scenario.originDelay;
+	}
+
+	/**
+	 * A client keeping one persistent connection to the proxy, reconnecting whenever the proxy closes it
+	 */
+	private static class Client {
+		private int proxyPort, readRate;
+		private Socket socket = null;
+		private InputStream in = null;
+		private OutputStream out = null;
+		private byte[] buffer = new byte[8192];
+
+		/**
+		 * Constructor: takes in the proxy port and how fast to read, in bytes per second
+		 * @param proxyPort
+		 * @param readRate 0 to read as fast as possible
+		 */
+		Client(int proxyPort, int readRate) {
+			this.proxyPort = proxyPort;
+			this.readRate = readRate;
+		}
+
+		/**
+		 * Fetches a URL through the proxy and reads the response to its end,
+		 * retrying once on a new connection if a reused one was closed
+		 * @param url
+		 * @return the number of bytes received, or -1 if the request failed
+		 */
+		long fetch(String url) {
+			for(int attempt = 0; attempt < 2; attempt++) {
+				boolean reused = socket != null;
+				try {
+					if(socket == null) connect();
+					out.write(("GET " + url + " HTTP/1.1\r\nHost: " + new URI(url).getRawAuthority() + "\r\n\r\n").getBytes());
+					out.flush();
+					long received = readResponse();
+					if(received == 0 && reused) {
+						close();
+						continue;
+					}
+					return received;
+				} catch (IOException | URISyntaxException e) {
+					close();
+					if(!reused) return -1;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Reads one response, at the client's read rate if it has one
+		 * @return the number of bytes received, 0 if the connection was closed
+		 * before any, or -1 if the response was not a complete 200
+		 * @throws IOException
+		 */
+		private long readResponse() throws IOException {
+			WebProxyResponseFraming framing = new WebProxyResponseFraming();
+			long received = 0, start = System.nanoTime();
+			int bytes_length;
+			while(!framing.isComplete() && (bytes_length = in.read(buffer)) != -1) {
+				received += bytes_length;
+				int consumed = framing.consume(buffer, 0, bytes_length);
+				if(consumed < bytes_length) framing.consume(buffer, consumed, bytes_length - consumed);
+				if(readRate > 0) throttle(received, start);
+			}
+			if(received == 0) return 0;
+			// A response without a length ends with the connection
+			boolean ok = framing.getHeader() != null && framing.getHeader().getStatusCode() == 200
+					&& (framing.isComplete() || !framing.isDelimited());
+			if(!framing.isReusable()) close();
+			return ok ? received : -1;
+		}
+
+		/**
+		 * Sleeps until reading the bytes received so far has taken as long as the read rate allows
+		 * @param received
+		 * @param start
+		 */
+		private void throttle(long received, long start) {
+			long due = start + received * 1000000000L / readRate - System.nanoTime();
+			if(due <= 0) return;
+			try {
+				Thread.sleep(due / 1000000, (int) (due % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Opens a connection to the proxy
+		 * @throws IOException
+		 */
+		private void connect() throws IOException {
+			socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+			socket.setSoTimeout(60000);
+			socket.setTcpNoDelay(true);
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+		}
+
+		/**
+		 * Closes the connection to the proxy, if any
+		 */
+		void close() {
+			if(socket == null) return;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+			socket = null;
+		}
+	}
+
+	/**
+	 * Reads the proxy's metrics endpoint
+	 * @param proxyPort
+	 * @return the value of every metric without labels, by name
+	 */
+	private static Map<String, Double> readMetrics(int proxyPort) {
+		Map<String, Double> metrics = new HashMap<String, Double>();
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort)) {
+			socket.setSoTimeout(10000);
+			socket.getOutputStream().write(("GET " + WebProxyMetrics.PATH + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes());
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] keyVal = line.split(" ");
+				if(keyVal.length != 2 || line.startsWith("#") || keyVal[0].contains("{")) continue;
+				try {
+					metrics.put(keyVal[0], Double.parseDouble(keyVal[1]));
+				} catch (NumberFormatException e) {
+					// A header line
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Error: Failed to read the proxy's metrics.");
+		}
+		return metrics;
+	}
+
+	/**
+	 * Returns how much a metric grew between two readings
+	 * @param before
+	 * @param after
+	 * @param name
+	 * @return the difference
+	 */
+	private static double delta(Map<String, Double> before, Map<String, Double> after, String name) {
+		return after.getOrDefault(name, 0.0) - before.getOrDefault(name, 0.0);
+	}
+
+	/**
+	 * Waits until something is listening at the given port
+	 * @param port
+	 * @throws InterruptedException
+	 */
+	private static void waitForPort(int port) throws InterruptedException {
+		for(int i = 0; i < 100; i++) {
+			try {
+				new Socket(InetAddress.getLoopbackAddress(), port).close();
+				return;
+			} catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+		throw new IllegalStateException("Proxy did not start listening on port " + port);
+	}
+
+	/**
+	 * Returns a port nothing is listening at
+	 * @return a free port
+	 * @throws IOException
+	 */
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Returns the java executable running this harness
+	 * @return path to the java executable
+	 */
+	private static String javaExecutable() {
+		return Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+	}
+
+	/**
+	 * Returns the class path of this JVM with absolute entries, as the proxy
+	 * runs in a directory of its own
+	 * @return the class path
+	 */
+	private static String classPath() {
+		StringBuilder classPath = new StringBuilder();
+		for(String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			if(classPath.length() > 0) classPath.append(File.pathSeparator);
+			classPath.append(Paths.get(entry).toAbsolutePath());
+		}
+		return classPath.toString();
+	}
+}
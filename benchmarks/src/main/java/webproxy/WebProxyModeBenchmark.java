@@ -0,0 +1,226 @@
+package webproxy;
+
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Compares the thread-per-connection and virtual thread serving modes.
+ *
+ * Every mode runs as its own proxy process in front of a local origin that
+ * answers after a fixed delay, while many clients keep requests in flight.
+ *
+ * Usage (from the repository root):
+ *   mvn -B package
+ *   java -cp benchmarks/target/benchmarks.jar webproxy.WebProxyModeBenchmark [clients] [requests per client] [origin delay ms] [modes]
+ */
+public class WebProxyModeBenchmark {
+	// Benchmark parameters
+	private static int clients = 500;
+	private static int requestsPerClient = 20;
+	private static int originDelay = 50;
+	private static String[] modes = {"thread", "virtual"};
+
+	// Size of every object served by the origin
+	private static final int OBJECT_SIZE = 4096;
+
+	public static void main(String args[]) throws Exception {
+		if(args.length > 0) clients = Integer.parseInt(args[0]);
+		if(args.length > 1) requestsPerClient = Integer.parseInt(args[1]);
+		if(args.length > 2) originDelay = Integer.parseInt(args[2]);
+		if(args.length > 3) modes = args[3].split(",");
+
+		HttpServer origin = startOrigin();
+		int originPort = origin.getAddress().getPort();
+		System.out.println(clients + " clients x " + requestsPerClient + " requests, origin delay " + originDelay + " ms");
+		System.out.println(String.format("%-8s %10s %10s %10s %10s %8s %8s %10s",
+				"mode", "req/s", "p50 ms", "p99 ms", "max ms", "errors", "threads", "rss MB"));
+		for(String mode : modes) {
+			runMode(mode, originPort);
+		}
+		origin.stop(0);
+		System.exit(0);
+	}
+
+	/**
+	 * Starts the local origin, which answers every request with a binary
+	 * object after the configured delay and closes the connection
+	 * @return the running origin
+	 * @throws IOException
+	 */
+	private static HttpServer startOrigin() throws IOException {
+		final byte[] body = new byte[OBJECT_SIZE];
+		new Random(42).nextBytes(body);
+		HttpServer origin = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+		origin.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					Thread.sleep(originDelay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+				exchange.getResponseHeaders().set("Connection", "close");
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+				exchange.close();
+			}
+		});
+		origin.setExecutor(Executors.newCachedThreadPool());
+		origin.start();
+		return origin;
+	}
+
+	/**
+	 * Runs the load against a proxy process started in the given mode
+	 * @param mode
+	 * @param originPort
+	 * @throws Exception
+	 */
+	private static void runMode(String mode, final int originPort) throws Exception {
+		final int proxyPort = freePort();
+		Path workDir = Files.createTempDirectory("webproxy-bench-" + mode);
+		Process proxy = new ProcessBuilder(javaExecutable(), "-cp", System.getProperty("java.class.path"),
+				WebProxy.class.getName(), String.valueOf(proxyPort), "--mode=" + mode, "--backlog=4096")
+				.directory(workDir.toFile()).redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+		waitForPort(proxyPort);
+
+		final long[] latencies = new long[clients * requestsPerClient];
+		final AtomicInteger completed = new AtomicInteger(0), errors = new AtomicInteger(0);
+		final CountDownLatch done = new CountDownLatch(clients);
+		long start = System.nanoTime();
+		for(int c = 0; c < clients; c++) {
+			final int client = c;
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					for(int r = 0; r < requestsPerClient; r++) {
+						// Every URL is distinct so each request goes to the origin
+						String url = "http://127.0.0.1:" + originPort + "/object?c=" + client + "&r=" + r;
+						long begin = System.nanoTime();
+						boolean ok = fetch(proxyPort, url);
+						long latency = System.nanoTime() - begin;
+						if(!ok) errors.incrementAndGet();
+						latencies[completed.getAndIncrement()] = latency;
+					}
+					done.countDown();
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		// Sample the proxy process while the load runs
+		long peakThreads = 0, peakRss = 0;
+		while(!done.await(100, TimeUnit.MILLISECONDS)) {
+			peakThreads = Math.max(peakThreads, procStatus(proxy.pid(), "Threads:"));
+			peakRss = Math.max(peakRss, procStatus(proxy.pid(), "VmRSS:"));
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		proxy.destroy();
+		proxy.waitFor();
+		WebProxyBenchmarkData.deleteDirectory(workDir);
+
+		long[] sorted = Arrays.copyOf(latencies, completed.get());
+		Arrays.sort(sorted);
+		System.out.println(String.format("%-8s %10.0f %10.1f %10.1f %10.1f %8d %8d %10.1f",
+				mode, sorted.length / seconds, percentile(sorted, 0.50), percentile(sorted, 0.99),
+				percentile(sorted, 1.0), errors.get(), peakThreads, peakRss / 1024.0));
+	}
+
+	/**
+	 * Fetches a URL through the proxy and reads the response to the end
+	 * @param proxyPort
+	 * @param url
+	 * @return true if the proxy answered with a complete 200 response, false otherwise
+	 */
+	private static boolean fetch(int proxyPort, String url) {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort)) {
+			socket.setSoTimeout(60000);
+			OutputStream out = socket.getOutputStream();
+			out.write(("GET " + url + " HTTP/1.0\r\nHost: " + URI.create(url).getAuthority() + "\r\n\r\n").getBytes());
+			out.flush();
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[8192];
+			int total = 0, bytes_length;
+			byte[] start = new byte[12];
+			while((bytes_length = in.read(buffer)) != -1) {
+				if(total < start.length) System.arraycopy(buffer, 0, start, total, Math.min(bytes_length, start.length - total));
+				total += bytes_length;
+			}
+			return new String(start).endsWith(" 200") && total > OBJECT_SIZE;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a value of a /proc/[pid]/status field, or 0 if it cannot be read
+	 * @param pid
+	 * @param field
+	 * @return the numeric value of the field
+	 */
+	private static long procStatus(long pid, String field) {
+		try {
+			for(String line : Files.readAllLines(Paths.get("/proc/" + pid + "/status"))) {
+				if(line.startsWith(field)) return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+			}
+		} catch (Exception e) {
+			// Not on Linux or the process has exited
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns a percentile of sorted latencies in ms
+	 * @param sorted
+	 * @param fraction
+	 * @return the percentile in ms
+	 */
+	private static double percentile(long[] sorted, double fraction) {
+		if(sorted.length == 0) return 0;
+		int index = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+
+	/**
+	 * Waits until something is listening at the given port
+	 * @param port
+	 * @throws InterruptedException
+	 */
+	private static void waitForPort(int port) throws InterruptedException {
+		for(int i = 0; i < 100; i++) {
+			try {
+				new Socket(InetAddress.getLoopbackAddress(), port).close();
+				return;
+			} catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+		throw new IllegalStateException("Proxy did not start listening on port " + port);
+	}
+
+	/**
+	 * Returns a port nothing is listening at
+	 * @return a free port
+	 * @throws IOException
+	 */
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Returns the java executable running this benchmark
+	 * @return path to the java executable
+	 */
+	private static String javaExecutable() {
+		return Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+	}
+}
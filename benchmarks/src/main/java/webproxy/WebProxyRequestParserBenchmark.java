@@ -0,0 +1,141 @@
+package webproxy;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares handling a request header with the String and regex methods
+ * processClientRequest() used, with WebProxyRequestParser.
+ *
+ * Both cases find what the proxy needs from every request: the URL, the
+ * server address, whether the client keeps the connection open, and the
+ * header as it is sent on to the server. The old methods also turned the
+ * whole 8 KB read buffer into a String, as a single read did.
+ *
+ * Usage (from the repository root):
+ *   mvn -B package
+ *   java -jar benchmarks/target/benchmarks.jar WebProxyRequestParserBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebProxyRequestParserBenchmark {
+	// Benchmark parameters: size of the Cookie field of each request
+	@Param({"0", "1024", "6144"})
+	int cookieSize;
+
+	private byte[] request, buffer;
+	private WebProxyRequestParser parser = new WebProxyRequestParser();
+
+	@Setup
+	public void setUp() {
+		request = createRequest(cookieSize);
+		buffer = Arrays.copyOf(request, Math.max(8192, request.length));
+	}
+
+	@Benchmark
+	public long string() {
+		String requestString = new String(buffer, 0, buffer.length);
+		String url = parseURL(requestString);
+		String address = getAddress(requestString);
+		String host = getHost(address);
+		int port = getPort(address);
+		int bodyStart = WebProxyHeader.indexOfBody(buffer, 0, request.length);
+		WebProxyHeader header = WebProxyHeader.parse(new String(buffer, 0, bodyStart));
+		boolean keepAlive = header.getVersion().equals("HTTP/1.1") && !header.hasToken("Connection", "close")
+				&& !header.hasToken("Proxy-Connection", "close");
+		header.remove("Connection");
+		header.remove("Proxy-Connection");
+		header.remove("Keep-Alive");
+		header.set("Connection", "keep-alive");
+		return url.length() + host.length() + port + header.toBytes().length + (keepAlive ? 1 : 0);
+	}
+
+	@Benchmark
+	public long parser() throws IOException {
+		parser.reset();
+		parser.consume(buffer, 0, request.length);
+		boolean keepAlive = parser.isHttp11() && !parser.hasToken("Connection", "close")
+				&& !parser.hasToken("Proxy-Connection", "close");
+		return parser.getTarget().length() + parser.getHost().length() + parser.getPort()
+				+ parser.getUpstreamHeader(true).length + (keepAlive ? 1 : 0);
+	}
+
+	/**
+	 * Returns a request a browser would send through the proxy
+	 * @param cookieSize
+	 * @return the request header
+	 */
+	private static byte[] createRequest(int cookieSize) {
+		StringBuilder request = new StringBuilder()
+				.append("GET http://www.example.com:8080/articles/2016/index.html?page=2 HTTP/1.1\r\n")
+				.append("Host: www.example.com:8080\r\n")
+				.append("User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:48.0) Gecko/20100101 Firefox/48.0\r\n")
+				.append("Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n")
+				.append("Accept-Language: en-US,en;q=0.5\r\n")
+				.append("Accept-Encoding: gzip, deflate\r\n")
+				.append("Referer: http://www.example.com:8080/articles/2016/index.html\r\n");
+		if(cookieSize > 0) {
+			StringBuilder cookie = new StringBuilder();
+			for(int i = 0; cookie.length() < cookieSize; i++) cookie.append("session").append(i).append("=abcdef0123456789; ");
+			request.append("Cookie: ").append(cookie, 0, cookieSize).append("\r\n");
+		}
+		request.append("Proxy-Connection: keep-alive\r\n")
+				.append("Upgrade-Insecure-Requests: 1\r\n")
+				.append("\r\n");
+		return request.toString().getBytes();
+	}
+
+	/**
+	 * Parses a request string to obtain the host address, as the proxy did
+	 * @param request
+	 * @return host address
+	 */
+	static String getAddress(String request) {
+		String[] lines = request.split("\\r?\\n");
+		for(String line : lines) {
+			String[] keyVal = line.split(":\\s+", 2);
+			if(keyVal[0].equalsIgnoreCase("Host")) return keyVal[1];
+		}
+		return "";
+	}
+
+	/**
+	 * Parses an address string to get the host, as the proxy did
+	 * @param address (e.g. google.com:8080)
+	 * @return host
+	 */
+	static String getHost(String address) {
+		return address.split(":", 2)[0];
+	}
+
+	/**
+	 * Parses a an address string to get the port number, as the proxy did
+	 * @param address (e.g. google.com:8080)
+	 * @return port number
+	 */
+	static int getPort(String address) {
+		String[] hostAddr = address.split(":", 2);
+		if(hostAddr.length == 2) return Integer.parseInt(hostAddr[1]);
+		else return 80;
+	}
+
+	/**
+	 * Parses a request string to obtain the request URL, as the proxy did
+	 * @param request
+	 * @return the request URL, or null if the request line is malformed
+	 */
+	static String parseURL(String request) {
+		String[] lines = request.split("\\r?\\n");
+		String requestLine = lines[0];
+		String[] requestAttr = requestLine.split("\\s+", 3);
+		if(requestAttr.length != 3) return null;
+		return requestAttr[1];
+	}
+}
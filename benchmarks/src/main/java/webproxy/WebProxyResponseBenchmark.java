@@ -0,0 +1,95 @@
+package webproxy;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the steps every relayed response goes through, over HTML and
+ * binary bodies of several sizes, sent with a Content-Length or chunked:
+ * finding the end of the header (endOfHeader() before the framing), parsing
+ * it, telling text from binary (isText), copying part of it (getSubarray),
+ * and framing the whole response as the relay does, which replaced
+ * filterResponse().
+ *
+ * Usage (from the repository root):
+ *   mvn -B package
+ *   java -jar benchmarks/target/benchmarks.jar WebProxyResponseBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebProxyResponseBenchmark {
+	// Benchmark parameters
+	@Param({"html", "binary"})
+	String payload;
+
+	@Param({"4096", "65536", "1048576"})
+	int bodySize;
+
+	@Param({"false", "true"})
+	boolean chunked;
+
+	// Size of the reads a relayed response arrives in
+	private static final int READ_SIZE = 8192;
+
+	private byte[] response;
+	private String headerString;
+	private WebProxyHeader header;
+	private int bodyStart;
+	private Path cacheDir;
+
+	@Setup
+	public void setUp() throws IOException {
+		cacheDir = WebProxyBenchmarkData.useTemporaryCache();
+		response = WebProxyBenchmarkData.response(payload, WebProxyBenchmarkData.body(payload, bodySize), chunked);
+		bodyStart = WebProxyHeader.indexOfBody(response, 0, response.length);
+		headerString = new String(response, 0, bodyStart);
+		header = WebProxyHeader.parse(headerString);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		WebProxyBenchmarkData.deleteDirectory(cacheDir);
+	}
+
+	@Benchmark
+	public int endOfHeader() {
+		return WebProxyHeader.indexOfBody(response, 0, response.length);
+	}
+
+	@Benchmark
+	public WebProxyHeader parseHeader() {
+		return WebProxyHeader.parse(headerString);
+	}
+
+	@Benchmark
+	public boolean isText() {
+		return WebProxyThread.isText(header);
+	}
+
+	@Benchmark
+	public byte[] getSubarray() {
+		return WebProxyThread.getSubarray(response, bodyStart, response.length - 1);
+	}
+
+	@Benchmark
+	public byte[] frame() throws IOException {
+		// Read by read, as the relay sees it, rewriting the header for the client
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		for(int offset = 0; offset < response.length && !framing.isComplete(); offset += READ_SIZE) {
+			int length = Math.min(READ_SIZE, response.length - offset);
+			int consumed = framing.consume(response, offset, length);
+			if(consumed < length && framing.isHeaderComplete()) framing.consume(response, offset + consumed, length - consumed);
+		}
+		WebProxyHeader relayed = framing.getHeader();
+		relayed.remove("Connection");
+		relayed.remove("Keep-Alive");
+		return relayed.toBytes();
+	}
+}
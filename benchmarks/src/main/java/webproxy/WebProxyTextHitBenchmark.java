@@ -0,0 +1,97 @@
+package webproxy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares serving a cached text object by censoring it on every hit, as
+ * getCensoredResponse() did, with sending the censored text kept from its
+ * first hit, over bodies of several sizes.
+ *
+ * Both cases build the whole response a client is sent, without the socket
+ * write, which costs the same either way. The cached text is not even copied,
+ * as both modes send its parts with one gathering write.
+ *
+ * Usage (from the repository root):
+ *   mvn -B package
+ *   java -jar benchmarks/target/benchmarks.jar WebProxyTextHitBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebProxyTextHitBenchmark {
+	// Benchmark parameters
+	@Param({"4096", "65536", "1048576"})
+	int bodySize;
+
+	private static final int LIST_SIZE = 100;
+
+	private WebProxyCensor censor;
+	private byte[] textCache;
+	private WebProxyCachedObject.CensoredText text;
+
+	@Setup
+	public void setUp() throws IOException {
+		Random random = new Random(42);
+		String[] words = new String[LIST_SIZE];
+		for(int i = 0; i < words.length; i++) words[i] = "word" + random.nextInt(1000000);
+		censor = new WebProxyCensor(words);
+
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		response.write(("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: " + bodySize
+				+ "\r\nCache-Control: max-age=3600\r\n\r\n").getBytes());
+		byte[] body = new byte[bodySize];
+		for(int i = 0; i < body.length; i++) body[i] = (byte) (i % 80 == 79 ? '\n' : 'a' + random.nextInt(26));
+		response.write(body);
+		textCache = response.toByteArray();
+		text = WebProxyCachedObject.CensoredText.censor(textCache, censor);
+	}
+
+	@Benchmark
+	public byte[] perHit() throws IOException {
+		return getCensoredResponse(textCache, censor, false);
+	}
+
+	@Benchmark
+	public ByteBuffer[] cached() {
+		// Every hit checks the censored text against the censor list
+		if(text.version != censor.getVersion()) return null;
+		return text.toClosingResponse();
+	}
+
+	/**
+	 * The censoring every hit did before the censored text was cached, kept as the baseline
+	 * @param responseBytes
+	 * @param censor
+	 * @param keepClientAlive
+	 * @return the censored response
+	 * @throws IOException
+	 */
+	static byte[] getCensoredResponse(byte[] responseBytes, WebProxyCensor censor, boolean keepClientAlive) throws IOException {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		framing.setBodySink(body);
+		int bodyStart = framing.consume(responseBytes, 0, responseBytes.length);
+		framing.consume(responseBytes, bodyStart, responseBytes.length - bodyStart);
+		WebProxyHeader header = framing.getHeader();
+		if(header == null) return responseBytes;
+
+		byte[] censoredBody = censor.censor(body.toByteArray(), 0);
+		header.remove("Transfer-Encoding");
+		header.set("Content-Length", String.valueOf(censoredBody.length));
+		if(!keepClientAlive) header.set("Connection", "close");
+
+		byte[] head = header.toBytes();
+		byte[] result = new byte[head.length + censoredBody.length];
+		System.arraycopy(head, 0, result, 0, head.length);
+		System.arraycopy(censoredBody, 0, result, head.length, censoredBody.length);
+		return result;
+	}
+}
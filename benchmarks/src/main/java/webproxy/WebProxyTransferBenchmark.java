@@ -0,0 +1,151 @@
+package webproxy;
+
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.io.*;
+
+/**
+ * Compares sending cached files to a client through an 8 KB heap buffer,
+ * flushing every chunk as sendDirectToClient() does, with FileChannel.transferTo.
+ *
+ * Every file is sent over a loopback connection to a client that reads and
+ * discards everything, as a download of a large cached object would be.
+ *
+ * Usage (from the repository root):
+ *   mvn -B package
+ *   java -cp benchmarks/target/benchmarks.jar webproxy.WebProxyTransferBenchmark [file sizes in MB]
+ */
+public class WebProxyTransferBenchmark {
+	// Benchmark parameters
+	private static int[] fileSizes = {1, 16, 128};
+
+	// Minimum time in ms spent measuring each case
+	private static final long MEASURE_TIME = 2000;
+
+	public static void main(String args[]) throws Exception {
+		if(args.length > 0) {
+			String[] sizes = args[0].split(",");
+			fileSizes = new int[sizes.length];
+			for(int i = 0; i < sizes.length; i++) fileSizes[i] = Integer.parseInt(sizes[i]);
+		}
+
+		System.out.println(String.format("%-10s %14s %14s %10s", "file", "stream", "transferTo", "speedup"));
+		for(int fileSize : fileSizes) {
+			final Path file = createFile(fileSize * 1024L * 1024);
+			double before = measure(file, new Sender() {
+				public void send(FileChannel channel, SocketChannel client) throws IOException {
+					// The loop sendDirectToClient() runs
+					InputStream stream = Channels.newInputStream(channel);
+					OutputStream toClient = client.socket().getOutputStream();
+					byte[] buffer = new byte[8192];
+					int bytes_length;
+					while((bytes_length = stream.read(buffer)) != -1) {
+						toClient.write(buffer, 0, bytes_length);
+						toClient.flush();
+					}
+				}
+			});
+			double after = measure(file, new Sender() {
+				public void send(FileChannel channel, SocketChannel client) throws IOException {
+					long position = 0, size = channel.size();
+					while(position < size) position += channel.transferTo(position, size - position, client);
+				}
+			});
+			System.out.println(String.format("%-10s %9.0f MB/s %9.0f MB/s %9.1fx",
+					fileSize + " MB", before, after, after / before));
+			Files.delete(file);
+		}
+	}
+
+	// Sends a whole file to a client
+	private interface Sender {
+		void send(FileChannel file, SocketChannel client) throws IOException;
+	}
+
+	/**
+	 * Sends a file repeatedly for at least MEASURE_TIME after a warm up
+	 * @param file
+	 * @param sender
+	 * @return the throughput in MB/s
+	 * @throws IOException
+	 */
+	private static double measure(Path file, Sender sender) throws IOException {
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			Thread client = startClient(server.socket().getLocalPort());
+			try (SocketChannel connection = server.accept()) {
+				long size = Files.size(file);
+				long warmUpEnd = System.nanoTime() + MEASURE_TIME * 1000000L / 2;
+				while(System.nanoTime() < warmUpEnd) sendFile(file, sender, connection);
+				long bytes = 0;
+				long start = System.nanoTime();
+				long end = start + MEASURE_TIME * 1000000L;
+				long now;
+				do {
+					sendFile(file, sender, connection);
+					bytes += size;
+				} while((now = System.nanoTime()) < end);
+				return bytes / 1024.0 / 1024.0 / ((now - start) / 1e9);
+			} finally {
+				client.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Opens a file and sends it, as the proxy does for every cache hit
+	 * @param file
+	 * @param sender
+	 * @param connection
+	 * @throws IOException
+	 */
+	private static void sendFile(Path file, Sender sender, SocketChannel connection) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			sender.send(channel, connection);
+		}
+	}
+
+	/**
+	 * Starts a client that reads and discards everything until the connection closes
+	 * @param port
+	 * @return the client thread
+	 */
+	private static Thread startClient(final int port) {
+		Thread client = new Thread(new Runnable() {
+			public void run() {
+				try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+					InputStream fromServer = socket.getInputStream();
+					byte[] buffer = new byte[64 * 1024];
+					while(fromServer.read(buffer) != -1);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		client.setDaemon(true);
+		client.start();
+		return client;
+	}
+
+	/**
+	 * Creates a temporary file of the given size, read once so that it is in the page cache
+	 * @param size
+	 * @return the file
+	 * @throws IOException
+	 */
+	private static Path createFile(long size) throws IOException {
+		Path file = Files.createTempFile("WebProxyTransferBenchmark", ".cache");
+		byte[] chunk = new byte[1024 * 1024];
+		new java.util.Random(42).nextBytes(chunk);
+		try (OutputStream out = Files.newOutputStream(file)) {
+			for(long written = 0; written < size; written += chunk.length) {
+				out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+			}
+		}
+		try (InputStream in = Files.newInputStream(file)) {
+			while(in.read(chunk) != -1);
+		}
+		return file;
+	}
+}
@@ -1,5 +1,9 @@
+package webproxy;
+
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 public class WebProxy {
@@ -9,32 +13,49 @@ public class WebProxy {
 	// Socket for client connections
 	private static ServerSocket socket;
 	
+	// Serving mode: thread, virtual or nio. The thread modes keep client connections
+	// alive and answer pipelined requests, nio closes each one after a single response
+	private static String mode;
+	
 	// Defines whether messages will be shown
 	private static boolean verbose = false; 
 	private static PrintStream originalSysOut = null;
 	private static PrintStream originalSysErr = null;
 	
-	// Array of censored words in whatever case
-	private static String[] censoredWords = {};
+	// Censored words in whatever case, compiled once into an automaton
+	private static WebProxyCensor censor = new WebProxyCensor(new String[0]);
 	
 	public static void main(String args[]) {		
-		if(!verbose) disableOutput();
+		WebProxyConfig.parse(args, 1);
+		// Debug tracing needs the standard output, along with the errors shown next to it
+		if(!verbose && !WebProxyLog.DEBUG) disableOutput();
 		
+		mode = WebProxyConfig.getString("mode", "thread");
 		initializeCensorshipList();
+		WebProxyMetrics.register();
 		
 		// Attempt to create a socket listening at the given port
 		if (!createSocketAtPort(args[0]))
 			// Quits if the operation fails
 			System.exit(1);
 		
-		// Spin off a thread for every incoming connection
-		// in order to handle multiple connections (multi-threading)
-		continuallyServeRequests();
+		if(mode.equals("nio")) {
+			// Multiplex every connection over a few event loops (non-blocking)
+			continuallyServeRequestsNonBlocking();
+		} else if(mode.equals("virtual")) {
+			// Run every incoming connection on its own virtual thread,
+			// turning connections away once too many are in flight
+			continuallyServeRequestsOnVirtualThreads();
+		} else {
+			// Spin off a thread for every incoming connection
+			// in order to handle multiple connections (multi-threading)
+			continuallyServeRequests();
+		}
 		
 		// Gracefully shutdown the proxy
 		halt();
 		
-		if(!verbose) restoreOutput();		
+		if(!verbose && !WebProxyLog.DEBUG) restoreOutput();		
 		return;
 	}
 	
@@ -64,8 +85,7 @@ public class WebProxy {
 		    while ((line = br.readLine()) != null) {
 		       words.add(line);
 		    }
-		    censoredWords = new String[words.size()];
-		    censoredWords = words.toArray(censoredWords);
+		    censor = new WebProxyCensor(words.toArray(new String[words.size()]));
 		} catch (FileNotFoundException e) {
 			System.out.println("No censor.txt found.");
 			return;
@@ -129,7 +149,92 @@ public class WebProxy {
 	private static void continuallyServeRequests() {
 		while (true) {
 			try {
-				new WebProxyThread(socket.accept(), censoredWords).start();
+				new Thread(new WebProxyThread(socket.accept(), censor)).start();
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+		}
+	}
+	
+	/**
+	 * Runs every new client connection on a virtual thread, and answers with
+	 * a 503 instead once the maximum number of connections is in flight
+	 */
+	private static void continuallyServeRequestsOnVirtualThreads() {
+		final Semaphore inFlight = new Semaphore(WebProxyConfig.getInt("max-connections", 10000));
+		ExecutorService executor = Executors.newThreadPerTaskExecutor(
+				Thread.ofVirtual().name("WebProxyThread-", 0).factory());
+		while (true) {
+			try {
+				Socket clientSocket = socket.accept();
+				if(!inFlight.tryAcquire()) {
+					rejectConnection(clientSocket);
+					continue;
+				}
+				final WebProxyThread task = new WebProxyThread(clientSocket, censor);
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							task.run();
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+		}
+	}
+	
+	/**
+	 * Sends a 503 Response to a client the proxy has no capacity for
+	 * @param clientSocket
+	 */
+	private static void rejectConnection(Socket clientSocket) {
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Too many connections in flight, sending 503 and closing socket.");
+		try {
+			OutputStream toClient = clientSocket.getOutputStream();
+			toClient.write(WebProxyThread.get503ErrorMessage());
+			toClient.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				clientSocket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Hands every new client connection to one of a few event loops,
+	 * which serve all of their connections without blocking. Each connection
+	 * carries a single request: it is closed once the response is sent
+	 */
+	private static void continuallyServeRequestsNonBlocking() {
+		int eventLoops = WebProxyConfig.getInt("event-loops", Runtime.getRuntime().availableProcessors());
+		WebProxyEventLoop[] loops = new WebProxyEventLoop[Math.max(1, eventLoops)];
+		try {
+			for(int i = 0; i < loops.length; i++) {
+				loops[i] = new WebProxyEventLoop(i, censor);
+				loops[i].start();
+			}
+		} catch (IOException e) {
+			System.out.println("Error: Failed to open event loop selectors.");
+			e.printStackTrace();
+			return;
+		}
+		
+		ServerSocketChannel serverChannel = socket.getChannel();
+		int next = 0;
+		while (true) {
+			try {
+				loops[next].register(serverChannel.accept());
+				next = (next + 1) % loops.length;
 			} catch (IOException e) {
 				e.printStackTrace();
 				continue;
@@ -190,9 +295,15 @@ public class WebProxy {
 	private static boolean listenToPort() {
 		boolean success = false;
 		
+		// Maximum number of connections waiting to be accepted
+		int backlog = WebProxyConfig.getInt("backlog", 50);
+		
 		// Try to create a server socket at the given port
 		try{
-			socket = new ServerSocket(port);
+			// The event loops need the channel behind the server socket, and the
+			// other modes send cached files to the channel behind each client socket
+			socket = ServerSocketChannel.open().socket();
+			socket.bind(new InetSocketAddress(port), backlog);
 			success = true;
 			System.out.println("Listening on port " + port + "...");
 		} catch(Exception e) {
@@ -0,0 +1,113 @@
+package webproxy;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared pool of byte buffers in a few size classes. Connections, relays and
+ * copies lease their buffers from it and release them when they are done, so
+ * that serving a connection does not leave its buffers behind as garbage.
+ * Each size class keeps the buffers released to it on a stack, most recently
+ * used first, up to a bound beyond which released buffers are dropped.
+ */
+public class WebProxyBufferPool {
+
+	// Capacities of the size classes, smallest first
+	private static final int[] SIZES = {8 * 1024, 32 * 1024, 256 * 1024};
+
+	// Heap buffers for the paths that work on byte arrays, direct ones for channel to channel relays
+	static final WebProxyBufferPool HEAP = new WebProxyBufferPool("heap", false,
+			WebProxyConfig.getLong("buffer-pool-max", 8L * 1024 * 1024));
+	static final WebProxyBufferPool DIRECT = new WebProxyBufferPool("direct", true,
+			WebProxyConfig.getLong("buffer-pool-max", 8L * 1024 * 1024));
+
+	/**
+	 * Free buffers of one capacity
+	 */
+	private static class SizeClass {
+		final int size;
+		final ByteBuffer[] free;
+		int count = 0;
+
+		SizeClass(int size, int maxFree) {
+			this.size = size;
+			this.free = new ByteBuffer[maxFree];
+		}
+
+		synchronized ByteBuffer pop() {
+			if(count == 0) return null;
+			ByteBuffer buffer = free[--count];
+			free[count] = null;
+			return buffer;
+		}
+
+		synchronized boolean push(ByteBuffer buffer) {
+			if(count == free.length) return false;
+			free[count++] = buffer;
+			return true;
+		}
+	}
+
+	// Instance variables
+	final String name;
+	private boolean direct = false;
+	private SizeClass[] classes = new SizeClass[SIZES.length];
+
+	// Buffers leased, and those of them that had to be allocated
+	final LongAdder leases = new LongAdder(), allocations = new LongAdder();
+
+	/**
+	 * Constructor: takes in a name for the metrics, the kind of buffer, and
+	 * the most bytes of free buffers kept in each size class
+	 * @param name
+	 * @param direct
+	 * @param maxFreeBytes
+	 */
+	WebProxyBufferPool(String name, boolean direct, long maxFreeBytes) {
+		this.name = name;
+		this.direct = direct;
+		for(int i = 0; i < SIZES.length; i++) {
+			classes[i] = new SizeClass(SIZES[i], (int) Math.min(Integer.MAX_VALUE, maxFreeBytes / SIZES[i]));
+		}
+	}
+
+	/**
+	 * Leases a cleared buffer of at least the given capacity. A heap
+	 * buffer's array starts at offset 0 and is as long as its capacity
+	 * @param size
+	 * @return the buffer, to be released once nothing uses it any more
+	 */
+	ByteBuffer lease(int size) {
+		leases.increment();
+		SizeClass sizeClass = find(size);
+		ByteBuffer buffer = sizeClass == null ? null : sizeClass.pop();
+		if(buffer != null) return buffer;
+		allocations.increment();
+		int capacity = sizeClass == null ? size : sizeClass.size;
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Returns a leased buffer to the pool. The caller must not use it afterwards
+	 * @param buffer the buffer, or null
+	 */
+	void release(ByteBuffer buffer) {
+		if(buffer == null || buffer.isDirect() != direct) return;
+		SizeClass sizeClass = find(buffer.capacity());
+		if(sizeClass == null || sizeClass.size != buffer.capacity()) return;
+		buffer.clear();
+		sizeClass.push(buffer);
+	}
+
+	/**
+	 * Returns the smallest size class holding the given capacity
+	 * @param size
+	 * @return the size class, or null if the capacity is larger than every class
+	 */
+	private SizeClass find(int size) {
+		for(SizeClass sizeClass : classes) {
+			if(size <= sizeClass.size) return sizeClass;
+		}
+		return null;
+	}
+}
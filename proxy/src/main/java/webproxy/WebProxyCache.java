@@ -0,0 +1,639 @@
+package webproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class WebProxyCache {
+
+	// A cached object, its place in one of the two LRU segments, and in the memory tier
+	private static class Entry {
+		String url;
+		WebProxyCachedObject object;
+		long diskSize;
+		boolean protectedSegment = false;
+		Entry previous, next;
+
+		// Lookups that found the object, halved now and then, and its size and
+		// index in the memory tier, or -1 if it is not in the tier
+		final AtomicInteger frequency = new AtomicInteger();
+		long tierSize = 0;
+		int tierIndex = -1;
+
+		Entry(String url, WebProxyCachedObject object, long diskSize) {
+			this.url = url;
+			this.object = object;
+			this.diskSize = diskSize;
+		}
+	}
+
+	// Share of the disk budget kept for objects that were hit at least once
+	private static final double PROTECTED_SHARE = 0.8;
+
+	// Largest object kept in the memory tier, and the lookups that earn an object its place there
+	private static final long MAX_TIER_OBJECT = WebProxyConfig.getLong("memory-tier-max-object", 256 * 1024);
+	private static final int MIN_TIER_HITS = WebProxyConfig.getInt("memory-tier-min-hits", 2);
+
+	// Objects of the tier compared to find one that is hit less often than a newcomer
+	private static final int TIER_SAMPLES = 8;
+
+	// Fewest hits, and hits per cached object, after which every frequency is halved
+	private static final long MIN_AGING_PERIOD = 1024, AGING_PERIOD_PER_OBJECT = 8;
+
+	// Cached objects by URL; lookups do not take the policy lock
+	private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	// Segmented LRU: new objects enter probation, and move to the protected
+	// segment when hit again, so a scan of one-off objects only evicts other
+	// one-off objects. Each list runs from the most to the least recently used
+	private ReentrantLock policyLock = new ReentrantLock();
+	private Entry probation = newList(), protectedList = newList();
+	private long diskUsed = 0, protectedDisk = 0;
+
+	// Memory tier: a copy of each small object that is hit often, served without
+	// touching the disk. Binary objects are kept outside the heap as they are stored,
+	// text objects on the heap as they were censored. An object that earns its place
+	// only gets it if the tier has room, or by pushing out objects hit less often
+	private List<Entry> tier = new ArrayList<Entry>();
+	private long memoryUsed = 0;
+
+	// Hits since the frequencies were last halved, so that objects that were popular once make way
+	private AtomicLong hitsSinceAging = new AtomicLong();
+
+	// Budgets in bytes of the memory tier and of stored objects
+	private long maxMemory, maxDisk;
+
+	// Where the objects are stored on disk
+	private WebProxyStore store;
+
+	// Counters
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+	private AtomicLong memoryHits = new AtomicLong(), diskHits = new AtomicLong();
+	private AtomicLong promotions = new AtomicLong(), demotions = new AtomicLong();
+
+	/**
+	 * Constructor: takes in the budgets in bytes of the memory tier and of
+	 * objects on disk, and the store, whose objects are cached right away
+	 * @param maxMemory
+	 * @param maxDisk
+	 * @param store
+	 */
+	public WebProxyCache(long maxMemory, long maxDisk, WebProxyStore store) {
+		this.maxMemory = maxMemory;
+		this.maxDisk = maxDisk;
+		this.store = store;
+		for(Map.Entry<String, WebProxyCachedObject> stored : store.load().entrySet()) {
+			insert(stored.getKey(), stored.getValue());
+		}
+	}
+
+	/**
+	 * Returns the cached object for a URL, counting a hit or a miss
+	 * @param url
+	 * @return the cached object, or null if none
+	 */
+	WebProxyCachedObject get(String url) {
+		Entry entry = entries.get(url);
+		if(entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		entry.frequency.incrementAndGet();
+		age();
+
+		// Reordering is only a hint, so it is skipped rather than waited for
+		if(policyLock.tryLock()) {
+			try {
+				if(entries.get(url) == entry) touch(entry);
+			} finally {
+				policyLock.unlock();
+			}
+		}
+		return entry.object;
+	}
+
+	/**
+	 * Stores an object written to its staging file and caches it for a URL,
+	 * replacing any older object for it
+	 * @param url
+	 * @param object
+	 */
+	void put(String url, WebProxyCachedObject object) {
+		if(fileSize(object.filename) > maxDisk) {
+			// Would never fit, so it is not cached at all
+			store.discard(object);
+			remove(url);
+			return;
+		}
+		if(store.append(url, object)) insert(url, object);
+	}
+
+	/**
+	 * Caches a stored object for a URL, replacing any older object for it
+	 * and evicting the least valuable objects until the budgets are met
+	 * @param url
+	 * @param object
+	 */
+	private void insert(String url, WebProxyCachedObject object) {
+		List<WebProxyCachedObject> removed = new ArrayList<WebProxyCachedObject>();
+		Entry entry = new Entry(url, object, object.location.length);
+
+		policyLock.lock();
+		try {
+			Entry old = entries.remove(url);
+			if(old != null) {
+				drop(old);
+				removed.add(old.object);
+			}
+			entries.put(url, entry);
+			linkFirst(probation, entry);
+			evict(removed);
+		} finally {
+			policyLock.unlock();
+		}
+		for(WebProxyCachedObject removedObject : removed) store.remove(removedObject);
+	}
+
+	/**
+	 * Removes the cached object for a URL from the cache and the store
+	 * @param url
+	 */
+	void remove(String url) {
+		Entry entry = null;
+		policyLock.lock();
+		try {
+			entry = entries.remove(url);
+			if(entry != null) drop(entry);
+		} finally {
+			policyLock.unlock();
+		}
+		if(entry != null) store.remove(entry.object);
+	}
+
+	/**
+	 * Records the new freshness of a cached object in the store, once the server
+	 * has confirmed it is current, so that the next run does not revalidate it again
+	 * @param object
+	 */
+	void revalidated(WebProxyCachedObject object) {
+		store.update(object);
+	}
+
+	/**
+	 * Returns a binary object from the memory tier, copying it there from disk first
+	 * if it is small and hit often enough to earn its place
+	 * @param url
+	 * @param object
+	 * @return the stored object, positioned at its start, or null if it is to be read from disk
+	 */
+	ByteBuffer openMemory(String url, WebProxyCachedObject object) {
+		ByteBuffer memory = object.memory;
+		if(memory != null) {
+			memoryHits.incrementAndGet();
+			return memory.duplicate();
+		}
+		// Partial objects grow as they are filled in, so they are only served from disk
+		Entry entry = entries.get(url);
+		if(entry == null || entry.object != object || object.isText || object.isPartial()
+				|| object.location == null || !fitsTier(entry, object.location.length)) {
+			return null;
+		}
+		try {
+			memory = store.readDirect(object);
+		} catch (IOException e) {
+			System.out.println("Error: Failed to read cached object: " + url);
+			e.printStackTrace();
+			return null;
+		}
+		if(memory == null || !promote(entry, memory.capacity(), memory.asReadOnlyBuffer(), null)) return null;
+		// This hit was still read from disk
+		diskHits.incrementAndGet();
+		return memory;
+	}
+
+	/**
+	 * Returns the censored form of a text object from the memory tier
+	 * @param object
+	 * @param version of the censor list the text has to be censored with
+	 * @return the censored text, or null if it is not in the tier or was censored with another version
+	 */
+	WebProxyCachedObject.CensoredText getText(WebProxyCachedObject object, long version) {
+		WebProxyCachedObject.CensoredText text = object.censoredText;
+		if(text == null || text.version != version) return null;
+		memoryHits.incrementAndGet();
+		return text;
+	}
+
+	/**
+	 * Offers the censored form of a text object to the memory tier, which keeps
+	 * it if the object is hit often enough, replacing any text censored before
+	 * @param url
+	 * @param object
+	 * @param text
+	 */
+	void putText(String url, WebProxyCachedObject object, WebProxyCachedObject.CensoredText text) {
+		long size = (text.header == null ? 0 : text.header.length) + text.body.length;
+		Entry entry = entries.get(url);
+		if(entry == null || entry.object != object || !fitsTier(entry, size)) return;
+		promote(entry, size, null, text);
+	}
+
+	/**
+	 * Reads the censored form of a text object from the copy kept in the store
+	 * @param object
+	 * @param version of the censor list the text has to be censored with
+	 * @return the censored text, or null if there is no copy or it was censored with another version
+	 * @throws IOException if the copy cannot be read
+	 */
+	WebProxyCachedObject.CensoredText readText(WebProxyCachedObject object, long version) throws IOException {
+		WebProxyCachedObject copy = object.censoredCopy;
+		if(copy == null || copy.censorVersion != version) return null;
+		byte[] bytes = store.read(copy);
+		if(bytes == null) return null;
+		diskHits.incrementAndGet();
+		return WebProxyCachedObject.CensoredText.fromStored(version, bytes, copy.headerLength);
+	}
+
+	/**
+	 * Keeps the censored form of a text object in the store, so that it is not
+	 * censored again while it is outside the memory tier, replacing any copy
+	 * censored before. The copy counts against the disk budget of the object
+	 * @param url
+	 * @param object
+	 * @param text
+	 */
+	void storeText(String url, WebProxyCachedObject object, WebProxyCachedObject.CensoredText text) {
+		WebProxyCachedObject old = object.censoredCopy;
+		if(old != null && old.censorVersion == text.version) return;
+		Entry entry = entries.get(url);
+		if(entry == null || entry.object != object) return;
+
+		WebProxyCachedObject copy = new WebProxyCachedObject(object.date, store.newStagingFile(), true, true);
+		copy.isCensoredCopy = true;
+		copy.censorVersion = text.version;
+		copy.headerLength = text.header == null ? 0 : text.header.length;
+		try (OutputStream out = Files.newOutputStream(Paths.get(copy.filename))) {
+			if(text.header != null) out.write(text.header);
+			out.write(text.body);
+		} catch (IOException e) {
+			System.out.println("Error: Failed to write censored copy: " + url);
+			e.printStackTrace();
+			store.discard(copy);
+			return;
+		}
+		if(!store.append(url, copy)) return;
+
+		List<WebProxyCachedObject> removed = new ArrayList<WebProxyCachedObject>();
+		policyLock.lock();
+		try {
+			// The object may have been replaced or copied again while the copy was written
+			if(entries.get(url) != entry || object.censoredCopy != old) {
+				removed.add(copy);
+			} else {
+				object.censoredCopy = copy;
+				long delta = copy.location.length - (old == null ? 0 : old.location.length);
+				entry.diskSize += delta;
+				diskUsed += delta;
+				if(entry.protectedSegment) protectedDisk += delta;
+				if(old != null) removed.add(old);
+				evict(removed);
+			}
+		} finally {
+			policyLock.unlock();
+		}
+		for(WebProxyCachedObject removedObject : removed) store.remove(removedObject);
+	}
+
+	/**
+	 * Opens a channel positioned at the start of a cached object
+	 * @param object
+	 * @return the channel, or null if the object is no longer stored
+	 */
+	FileChannel open(WebProxyCachedObject object) {
+		FileChannel channel = store.open(object);
+		if(channel != null) diskHits.incrementAndGet();
+		return channel;
+	}
+
+	/**
+	 * Reads a whole cached object into memory
+	 * @param object
+	 * @return the object's bytes, or null if it is no longer stored
+	 * @throws IOException if the object cannot be read
+	 */
+	byte[] read(WebProxyCachedObject object) throws IOException {
+		byte[] bytes = store.read(object);
+		if(bytes != null) diskHits.incrementAndGet();
+		return bytes;
+	}
+
+	/**
+	 * Returns a new file to write an object to while it is being fetched
+	 * @return the filename
+	 */
+	String newStagingFile() {
+		return store.newStagingFile();
+	}
+
+	/**
+	 * Returns the number of lookups that found an object
+	 * @return the number of hits
+	 */
+	long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups that found nothing
+	 * @return the number of misses
+	 */
+	long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of objects evicted to stay within the budgets
+	 * @return the number of evictions
+	 */
+	long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the number of cached objects served from the memory tier
+	 * @return the number of memory hits
+	 */
+	long getMemoryHits() {
+		return memoryHits.get();
+	}
+
+	/**
+	 * Returns the number of cached objects read from disk
+	 * @return the number of disk hits
+	 */
+	long getDiskHits() {
+		return diskHits.get();
+	}
+
+	/**
+	 * Returns the share of lookups answered from the memory tier
+	 * @return the hit ratio, 0 before the first lookup
+	 */
+	double getMemoryHitRatio() {
+		long lookups = getHits() + getMisses();
+		return lookups == 0 ? 0 : (double) getMemoryHits() / lookups;
+	}
+
+	/**
+	 * Returns the share of lookups the memory tier did not answer that were answered from disk
+	 * @return the hit ratio, 0 before the first such lookup
+	 */
+	double getDiskHitRatio() {
+		long lookups = getHits() + getMisses() - getMemoryHits();
+		return lookups <= 0 ? 0 : (double) getDiskHits() / lookups;
+	}
+
+	/**
+	 * Returns the number of objects copied to the memory tier
+	 * @return the number of promotions
+	 */
+	long getPromotions() {
+		return promotions.get();
+	}
+
+	/**
+	 * Returns the number of objects pushed out of the memory tier by objects hit more often
+	 * @return the number of demotions
+	 */
+	long getDemotions() {
+		return demotions.get();
+	}
+
+	/**
+	 * Returns the number of cached objects
+	 * @return the number of objects
+	 */
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the bytes of objects in the memory tier
+	 * @return the memory used
+	 */
+	long getMemoryUsed() {
+		policyLock.lock();
+		try {
+			return memoryUsed;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the bytes of stored objects on disk
+	 * @return the disk space used
+	 */
+	long getDiskUsed() {
+		policyLock.lock();
+		try {
+			return diskUsed;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	public String toString() {
+		return "WebProxyCache[objects=" + size() + ", memory=" + getMemoryUsed() + "/" + maxMemory
+				+ ", disk=" + getDiskUsed() + "/" + maxDisk + ", hits=" + getHits()
+				+ ", misses=" + getMisses() + ", memoryHits=" + getMemoryHits() + ", diskHits=" + getDiskHits()
+				+ ", evictions=" + getEvictions() + "]";
+	}
+
+	/**
+	 * Moves a hit entry to the front of the protected segment, demoting the
+	 * least recently used protected entries to probation if it overflows
+	 * @param entry
+	 */
+	private void touch(Entry entry) {
+		unlink(entry);
+		entry.protectedSegment = true;
+		linkFirst(protectedList, entry);
+		while(protectedList.previous != protectedList && protectedList.previous != entry
+				&& protectedDisk > maxDisk * PROTECTED_SHARE) {
+			Entry demoted = protectedList.previous;
+			unlink(demoted);
+			demoted.protectedSegment = false;
+			linkFirst(probation, demoted);
+		}
+	}
+
+	/**
+	 * Evicts from the end of probation, then of the protected segment,
+	 * until the disk budget is met
+	 * @param removed receives the evicted objects
+	 */
+	private void evict(List<WebProxyCachedObject> removed) {
+		while(diskUsed > maxDisk) {
+			Entry victim = probation.previous != probation ? probation.previous : protectedList.previous;
+			if(victim == protectedList) break;
+			entries.remove(victim.url);
+			drop(victim);
+			removed.add(victim.object);
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Halves the frequency of every object once enough hits have been counted
+	 * since the last time, so that the memory tier follows what is popular now
+	 */
+	private void age() {
+		long count = hitsSinceAging.incrementAndGet();
+		if(count < Math.max(MIN_AGING_PERIOD, AGING_PERIOD_PER_OBJECT * entries.size())) return;
+		if(!hitsSinceAging.compareAndSet(count, 0)) return;
+		for(Entry entry : entries.values()) entry.frequency.set(entry.frequency.get() >> 1);
+	}
+
+	/**
+	 * Checks if an object could get a place in the memory tier, before it is read for it
+	 * @param entry
+	 * @param size
+	 * @return true if it is small enough and hit often enough, false otherwise
+	 */
+	private boolean fitsTier(Entry entry, long size) {
+		return size <= MAX_TIER_OBJECT && size <= maxMemory && entry.frequency.get() >= MIN_TIER_HITS;
+	}
+
+	/**
+	 * Puts a copy of an object in the memory tier, in place of any copy it has there,
+	 * making room by demoting objects of the tier that are hit less often
+	 * @param entry
+	 * @param size
+	 * @param memory the stored object for a binary object, or null
+	 * @param text the censored text for a text object, or null
+	 * @return true if the copy was kept, false if the object is no longer cached or too cold to get in
+	 */
+	private boolean promote(Entry entry, long size, ByteBuffer memory, WebProxyCachedObject.CensoredText text) {
+		policyLock.lock();
+		try {
+			if(entries.get(entry.url) != entry) return false;
+			if(entry.tierIndex >= 0) leaveTier(entry);
+			int frequency = entry.frequency.get();
+			while(memoryUsed + size > maxMemory) {
+				Entry coldest = sampleTier();
+				if(coldest == null || coldest.frequency.get() >= frequency) return false;
+				leaveTier(coldest);
+				demotions.incrementAndGet();
+			}
+			if(memory != null) entry.object.memory = memory;
+			if(text != null) entry.object.censoredText = text;
+			entry.tierSize = size;
+			entry.tierIndex = tier.size();
+			tier.add(entry);
+			memoryUsed += size;
+			promotions.incrementAndGet();
+			return true;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the entry hit least often among a few picked at random from the memory tier
+	 * @return the entry, or null if the tier is empty
+	 */
+	private Entry sampleTier() {
+		Entry coldest = null;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for(int i = 0; i < TIER_SAMPLES && !tier.isEmpty(); i++) {
+			Entry sampled = tier.get(random.nextInt(tier.size()));
+			if(coldest == null || sampled.frequency.get() < coldest.frequency.get()) coldest = sampled;
+		}
+		return coldest;
+	}
+
+	/**
+	 * Drops the copy of an object from the memory tier, moving the last
+	 * entry of the tier into its place
+	 * @param entry
+	 */
+	private void leaveTier(Entry entry) {
+		Entry last = tier.remove(tier.size() - 1);
+		if(last != entry) {
+			tier.set(entry.tierIndex, last);
+			last.tierIndex = entry.tierIndex;
+		}
+		memoryUsed -= entry.tierSize;
+		entry.tierIndex = -1;
+		entry.tierSize = 0;
+		entry.object.memory = null;
+		entry.object.censoredText = null;
+	}
+
+	/**
+	 * Removes an entry that is no longer cached from its list and the memory tier
+	 * @param entry
+	 */
+	private void drop(Entry entry) {
+		unlink(entry);
+		if(entry.tierIndex >= 0) leaveTier(entry);
+	}
+
+	/**
+	 * Returns an empty circular list, whose head links to its first and last entries
+	 * @return the list head
+	 */
+	private static Entry newList() {
+		Entry head = new Entry(null, null, 0);
+		head.previous = head.next = head;
+		return head;
+	}
+
+	/**
+	 * Adds an entry to the front of a list and to the disk space in use
+	 * @param list
+	 * @param entry
+	 */
+	private void linkFirst(Entry list, Entry entry) {
+		entry.previous = list;
+		entry.next = list.next;
+		list.next.previous = entry;
+		list.next = entry;
+		diskUsed += entry.diskSize;
+		if(entry.protectedSegment) protectedDisk += entry.diskSize;
+	}
+
+	/**
+	 * Removes an entry from its list and from the disk space in use
+	 * @param entry
+	 */
+	private void unlink(Entry entry) {
+		entry.previous.next = entry.next;
+		entry.next.previous = entry.previous;
+		entry.previous = entry.next = null;
+		diskUsed -= entry.diskSize;
+		if(entry.protectedSegment) protectedDisk -= entry.diskSize;
+	}
+
+	/**
+	 * Returns the size of a staging file
+	 * @param filename
+	 * @return the size in bytes, or 0 if it cannot be read
+	 */
+	private static long fileSize(String filename) {
+		try {
+			return Files.size(Paths.get(filename));
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,565 @@
+package webproxy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.concurrent.atomic.*;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+public class WebProxyCachedObject {
+	// Censored form of a text response, and the version of the censor list it was made with
+	static class CensoredText {
+		// Ends the header of a response whose connection is closed after it
+		static final byte[] CONNECTION_CLOSE = "Connection: close\r\n\r\n".getBytes();
+
+		final long version;
+
+		// Header up to its last field, framed with the Content-Length of the
+		// censored body, or null if the response could not be framed
+		final byte[] header;
+		final byte[] body;
+
+		CensoredText(long version, byte[] header, byte[] body) {
+			this.version = version;
+			this.header = header;
+			this.body = body;
+		}
+
+		/**
+		 * Censors the body of a complete text response and frames it with
+		 * a Content-Length matching the censored body
+		 * @param response
+		 * @param censor
+		 * @return the censored text
+		 * @throws IOException
+		 */
+		static CensoredText censor(byte[] response, WebProxyCensor censor) throws IOException {
+			WebProxyResponseFraming framing = new WebProxyResponseFraming();
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			framing.setBodySink(body);
+			int bodyStart = framing.consume(response, 0, response.length);
+			framing.consume(response, bodyStart, response.length - bodyStart);
+			WebProxyHeader header = framing.getHeader();
+			if(header == null) return new CensoredText(censor.getVersion(), null, response);
+
+			byte[] censoredBody = censor.censor(body.toByteArray(), 0);
+			return new CensoredText(censor.getVersion(), frame(header, censoredBody.length), censoredBody);
+		}
+
+		/**
+		 * Censors the body of a complete text response read from a stream into
+		 * a buffer, for responses too long to be censored on the heap
+		 * @param response
+		 * @param censor
+		 * @param censoredBody receives the censored body, or the whole response if it could not be framed
+		 * @return the header up to its last field, framed with the Content-Length
+		 * of the censored body, or null if the response could not be framed
+		 * @throws IOException
+		 */
+		static byte[] censor(InputStream response, WebProxyCensor censor, WebProxyTextBuffer censoredBody) throws IOException {
+			WebProxyResponseFraming framing = new WebProxyResponseFraming();
+			WebProxyCensorStream body = new WebProxyCensorStream(censor, censoredBody);
+			byte[] buffer = new byte[64 * 1024];
+			int bytes_length;
+			while((bytes_length = response.read(buffer)) != -1) {
+				int bodyStart = 0;
+				if(!framing.isHeaderComplete()) {
+					bodyStart = framing.consume(buffer, 0, bytes_length);
+					if(!framing.isHeaderComplete()) continue;
+					if(framing.getHeader() == null) censoredBody.write(framing.getHeaderBytes());
+					else framing.setBodySink(body);
+				}
+				if(framing.getHeader() == null) censoredBody.write(buffer, bodyStart, bytes_length - bodyStart);
+				else framing.consume(buffer, bodyStart, bytes_length - bodyStart);
+			}
+			if(!framing.isHeaderComplete()) censoredBody.write(framing.getHeaderBytes());
+			if(framing.getHeader() == null) return null;
+			body.finish();
+			body.flush();
+			return frame(framing.getHeader(), censoredBody.size());
+		}
+
+		/**
+		 * Returns censored text from the copy kept in the store, which holds
+		 * the header up to its last field followed by the body
+		 * @param version of the censor list the copy was made with
+		 * @param stored
+		 * @param headerLength the length of the header, or 0 if the response could not be framed
+		 * @return the censored text
+		 */
+		static CensoredText fromStored(long version, byte[] stored, int headerLength) {
+			if(headerLength == 0) return new CensoredText(version, null, stored);
+			return new CensoredText(version, Arrays.copyOf(stored, headerLength), Arrays.copyOfRange(stored, headerLength, stored.length));
+		}
+
+		/**
+		 * Frames a header with the Content-Length of a censored body
+		 * @param header
+		 * @param length
+		 * @return the header up to its last field
+		 */
+		private static byte[] frame(WebProxyHeader header, long length) {
+			header.remove("Transfer-Encoding");
+			header.set("Content-Length", String.valueOf(length));
+
+			// Leave out the blank line, as a Connection field may still follow
+			byte[] head = header.toBytes();
+			return Arrays.copyOf(head, head.length - 2);
+		}
+
+		/**
+		 * Returns the whole response for a client whose connection is closed after it,
+		 * as parts for a gathering write rather than a copy of the text
+		 * @return the parts of the response
+		 */
+		ByteBuffer[] toClosingResponse() {
+			if(header == null) return new ByteBuffer[] {ByteBuffer.wrap(body)};
+			return new ByteBuffer[] {ByteBuffer.wrap(header), ByteBuffer.wrap(CONNECTION_CLOSE), ByteBuffer.wrap(body)};
+		}
+	}
+
+	// Longest heuristic freshness lifetime in ms, for responses that only carry Last-Modified
+	private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000L;
+
+	// How long in ms an expired object may still be served while it is refreshed in the background,
+	// and when the server cannot be reached, for responses that do not say (stale-while-revalidate, stale-if-error)
+	private static final long DEFAULT_STALE_WHILE_REVALIDATE = WebProxyConfig.getLong("stale-while-revalidate", 10000);
+	private static final long DEFAULT_STALE_IF_ERROR = WebProxyConfig.getLong("stale-if-error", 60000);
+
+	// Hits while fresh that make an object popular, and the share of its lifetime
+	// after which a popular object is refreshed before it expires
+	private static final int HOT_HITS = WebProxyConfig.getInt("refresh-hot-hits", 8);
+	private static final double REFRESH_AFTER = 0.75;
+
+	// Staging file the object is written to until it is stored
+	public String filename = null;
+	public String date = null;
+	// Copy of the object in the memory tier of the cache, or null if it is only on disk:
+	// the stored object outside the heap for binary objects, the censored form for text
+	volatile ByteBuffer memory = null;
+	volatile CensoredText censoredText = null;
+
+	// Censored form of a text object kept in the store, so that text outside the memory tier is
+	// not censored again on every hit, or null if there is none. A copy records the version of the
+	// censor list it was made with, and is left out of the index, as it is only made again when needed
+	volatile WebProxyCachedObject censoredCopy = null;
+	boolean isCensoredCopy = false;
+	long censorVersion = 0;
+	public boolean isText = false;
+	public boolean delimited = false;
+
+	// Status of the cached response, as responses whose header could not be parsed are not cached
+	int status = 0;
+
+	// Length of the stored header, and of the whole body if it was sent as it is with a
+	// Content-Length, so that ranges of it can be served. Less of the body may be stored
+	// if its download was cut short, in which case the object is partial
+	int headerLength = 0;
+	long contentLength = -1;
+
+	// Validators sent by the server, or null if it sent none
+	public volatile String etag = null, lastModified = null;
+
+	// Request fields the response varies on (its Vary field), and their values in the request
+	// it answered, as only requests with the same values may be served it. Null if it does not vary
+	String vary = null, variant = null;
+
+	// How long in ms the object stays fresh, and the time (System.currentTimeMillis)
+	// until which it may be served without asking the server
+	private volatile long lifetime = 0, freshUntil = 0;
+
+	// How long in ms past freshUntil the object may be served while it is refreshed, and while the server fails
+	private volatile long staleWhileRevalidate = 0, staleIfError = 0;
+
+	// Hits since the object was last validated, and whether it is being refreshed in the background
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+	// Where the object is stored, or null until it is
+	volatile WebProxyStore.Location location = null;
+
+	WebProxyCachedObject(String date, String filename, boolean isText, boolean delimited) {
+		this.date = date;
+		this.filename = filename;
+		this.isText = isText;
+		this.delimited = delimited;
+	}
+
+	/**
+	 * Writes everything but the object itself and its location to the cache index
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeMetadata(DataOutputStream out) throws IOException {
+		WebProxyStore.writeString(out, date);
+		out.writeBoolean(isText);
+		out.writeBoolean(delimited);
+		out.writeShort(status);
+		out.writeInt(headerLength);
+		out.writeLong(contentLength);
+		WebProxyStore.writeString(out, etag);
+		WebProxyStore.writeString(out, lastModified);
+		out.writeLong(lifetime);
+		out.writeLong(freshUntil);
+		out.writeLong(staleWhileRevalidate);
+		out.writeLong(staleIfError);
+		WebProxyStore.writeString(out, vary);
+		WebProxyStore.writeString(out, variant);
+	}
+
+	/**
+	 * Reads an object written by writeMetadata from the cache index
+	 * @param in
+	 * @return the object, whose text is still to be read
+	 * @throws IOException
+	 */
+	static WebProxyCachedObject readMetadata(DataInputStream in) throws IOException {
+		String date = WebProxyStore.readString(in);
+		boolean isText = in.readBoolean();
+		boolean delimited = in.readBoolean();
+		WebProxyCachedObject object = new WebProxyCachedObject(date, null, isText, delimited);
+		object.status = in.readShort();
+		object.headerLength = in.readInt();
+		object.contentLength = in.readLong();
+		object.etag = WebProxyStore.readString(in);
+		object.lastModified = WebProxyStore.readString(in);
+		object.lifetime = in.readLong();
+		object.freshUntil = in.readLong();
+		object.staleWhileRevalidate = in.readLong();
+		object.staleIfError = in.readLong();
+		object.vary = WebProxyStore.readString(in);
+		object.variant = WebProxyStore.readString(in);
+		return object;
+	}
+
+	/**
+	 * Returns an object with the same metadata, to be stored from another staging file
+	 * @param filename
+	 * @return the object
+	 */
+	WebProxyCachedObject copy(String filename) {
+		WebProxyCachedObject object = new WebProxyCachedObject(date, filename, isText, delimited);
+		object.status = status;
+		object.headerLength = headerLength;
+		object.contentLength = contentLength;
+		object.etag = etag;
+		object.lastModified = lastModified;
+		object.lifetime = lifetime;
+		object.freshUntil = freshUntil;
+		object.staleWhileRevalidate = staleWhileRevalidate;
+		object.staleIfError = staleIfError;
+		object.vary = vary;
+		object.variant = variant;
+		return object;
+	}
+
+	/**
+	 * Records where the body starts in the stored response and, if the response
+	 * is a 200 whose body is sent as it is with a Content-Length, how long it is
+	 * @param headerLength
+	 * @param header the response header, or null if it could not be parsed
+	 */
+	void setLayout(int headerLength, WebProxyHeader header) {
+		if(header == null || header.getStatusCode() != 200 || header.isChunked()) return;
+		this.headerLength = headerLength;
+		this.contentLength = header.getContentLength();
+	}
+
+	/**
+	 * Checks if ranges of the body can be served from the stored object
+	 * @return true if the stored body is sent as it is and its length is known, false otherwise
+	 */
+	boolean hasRanges() {
+		return headerLength > 0 && contentLength >= 0;
+	}
+
+	/**
+	 * Returns how much of the body is stored
+	 * @return the length in bytes
+	 */
+	long getStoredBodyLength() {
+		return location.length - headerLength;
+	}
+
+	/**
+	 * Checks if only the start of the body is stored, as its download was cut short
+	 * @return true if the rest of the body is still to be fetched, false otherwise
+	 */
+	boolean isPartial() {
+		return hasRanges() && getStoredBodyLength() < contentLength;
+	}
+
+	/**
+	 * Checks if the server can be asked for the rest of a partial body, which needs
+	 * a validator to be sure that the rest belongs to the same object
+	 * @return true if the object has an entity tag or modification date, false otherwise
+	 */
+	boolean canResume() {
+		return !isText && (etag != null || lastModified != null);
+	}
+
+	/**
+	 * Sets the status, validators and freshness lifetime from the response header
+	 * @param header the response header, or null if it could not be parsed
+	 */
+	void setFreshness(WebProxyHeader header) {
+		if(header == null) return;
+		status = header.getStatusCode();
+		etag = header.get("ETag");
+		lastModified = header.get("Last-Modified");
+		lifetime = explicitLifetime(header);
+		if(lifetime < 0) lifetime = header.getStatusCode() == 200 ? heuristicLifetime(header) : 0;
+		freshUntil = System.currentTimeMillis() + lifetime - age(header);
+		setStaleness(header);
+	}
+
+	/**
+	 * Records the request fields the response varies on, with their values in the request it answered
+	 * @param header the response header, or null if it could not be parsed
+	 * @param request
+	 */
+	void setVariant(WebProxyHeader header, WebProxyRequestParser request) {
+		vary = header == null ? null : header.get("Vary");
+		variant = vary == null ? null : variantOf(vary, request);
+	}
+
+	/**
+	 * Checks if the object may answer a request, which has to carry the same
+	 * values as the request it answered in the fields the object varies on
+	 * @param request
+	 * @return true if the object does not vary or the values match, false otherwise
+	 */
+	boolean matches(WebProxyRequestParser request) {
+		return vary == null || variantOf(vary, request).equals(variant);
+	}
+
+	/**
+	 * Checks if a shared cache may store the response at all: not if the server or the client
+	 * forbids it, if it is meant for a single user, or if it varies on more than the request fields.
+	 * A response to a request with credentials is only stored if the server explicitly allows it
+	 * @param header
+	 * @param request the request the response answers, or null if the proxy sent it on its own
+	 * @return true if the response may be stored, false otherwise
+	 */
+	static boolean isStorable(WebProxyHeader header, WebProxyRequestParser request) {
+		if(hasDirective(header, "no-store") || hasDirective(header, "private")) return false;
+		if(header.get("Set-Cookie") != null) return false;
+		if(request != null) {
+			if(request.hasToken("Cache-Control", "no-store")) return false;
+			if(request.get("Authorization") != null && !hasDirective(header, "public")
+					&& !hasDirective(header, "s-maxage") && !hasDirective(header, "must-revalidate")) return false;
+		}
+		return !header.hasToken("Vary", "*");
+	}
+
+	/**
+	 * Checks if a request may be answered with a stored response, which
+	 * the client refuses with no-cache or no-store (or Pragma: no-cache)
+	 * @param request
+	 * @return true if a stored response may be sent, false if the request goes to the server
+	 */
+	static boolean isServable(WebProxyRequestParser request) {
+		return !request.hasToken("Cache-Control", "no-cache") && !request.hasToken("Cache-Control", "no-store")
+				&& !request.hasToken("Pragma", "no-cache");
+	}
+
+	/**
+	 * Updates the validators and freshness after the server confirmed
+	 * that the object is current (304 Not Modified)
+	 * @param header the header of the 304 response
+	 */
+	void revalidated(WebProxyHeader header) {
+		if(header.get("ETag") != null) etag = header.get("ETag");
+		long explicit = explicitLifetime(header);
+		if(explicit >= 0) lifetime = explicit;
+		freshUntil = System.currentTimeMillis() + lifetime - age(header);
+		if(header.get("Cache-Control") != null) setStaleness(header);
+		hits.set(0);
+	}
+
+	/**
+	 * Checks if the object may be served without asking the server
+	 * @return true if the object is fresh, false otherwise
+	 */
+	boolean isFresh() {
+		return System.currentTimeMillis() < freshUntil;
+	}
+
+	/**
+	 * Checks if the expired object may be served while it is refreshed in the background
+	 * @return true if it expired less than its stale-while-revalidate ago, false otherwise
+	 */
+	boolean isStaleWhileRevalidate() {
+		return System.currentTimeMillis() < freshUntil + staleWhileRevalidate;
+	}
+
+	/**
+	 * Checks if the expired object may be served because the server could not be asked about it
+	 * @return true if it expired less than its stale-if-error ago, false otherwise
+	 */
+	boolean isStaleIfError() {
+		return System.currentTimeMillis() < freshUntil + staleIfError;
+	}
+
+	/**
+	 * Counts a hit on the fresh object and checks if it is popular enough
+	 * and close enough to expiring to be refreshed ahead of time
+	 * @return true if the object is to be refreshed, false otherwise
+	 */
+	boolean hitAndCheckRefresh() {
+		if(hits.incrementAndGet() < HOT_HITS || refreshing.get()) return false;
+		return System.currentTimeMillis() > freshUntil - (long) (lifetime * (1 - REFRESH_AFTER));
+	}
+
+	/**
+	 * Marks the object as being refreshed in the background
+	 * @return true if it was not being refreshed already, false otherwise
+	 */
+	boolean startRefresh() {
+		return refreshing.compareAndSet(false, true);
+	}
+
+	/**
+	 * Marks the background refresh of the object as done
+	 */
+	void endRefresh() {
+		refreshing.set(false);
+	}
+
+	/**
+	 * Sets how long the object may be served stale from Cache-Control, or the proxy's defaults
+	 * if it has a freshness lifetime at all. A response that must be revalidated is never served stale
+	 * @param header
+	 */
+	private void setStaleness(WebProxyHeader header) {
+		if(header.hasToken("Cache-Control", "must-revalidate") || header.hasToken("Cache-Control", "proxy-revalidate")
+				|| header.hasToken("Cache-Control", "no-cache") || header.hasToken("Pragma", "no-cache")) {
+			staleWhileRevalidate = staleIfError = 0;
+			return;
+		}
+		long seconds = directive(header, "stale-while-revalidate");
+		staleWhileRevalidate = seconds >= 0 ? seconds * 1000 : lifetime > 0 ? DEFAULT_STALE_WHILE_REVALIDATE : 0;
+		seconds = directive(header, "stale-if-error");
+		staleIfError = seconds >= 0 ? seconds * 1000 : lifetime > 0 ? DEFAULT_STALE_IF_ERROR : 0;
+	}
+
+	/**
+	 * Returns the freshness lifetime given by Cache-Control or Expires
+	 * @param header
+	 * @return the lifetime in ms, or -1 if the header does not give one
+	 */
+	private static long explicitLifetime(WebProxyHeader header) {
+		if(header.hasToken("Cache-Control", "no-cache") || header.hasToken("Pragma", "no-cache")) return 0;
+
+		// A shared cache uses s-maxage over max-age
+		long maxAge = directive(header, "s-maxage");
+		if(maxAge < 0) maxAge = directive(header, "max-age");
+		if(maxAge >= 0) return maxAge * 1000;
+
+		String expires = header.get("Expires");
+		if(expires == null) return -1;
+		long expiresTime = parseDate(expires);
+		// An invalid Expires means already expired
+		if(expiresTime < 0) return 0;
+		long dateTime = parseDate(header.get("Date"));
+		if(dateTime < 0) dateTime = System.currentTimeMillis();
+		return Math.max(0, expiresTime - dateTime);
+	}
+
+	/**
+	 * Returns a tenth of the time since the object was last modified, as
+	 * caches commonly do for responses without an explicit lifetime
+	 * @param header
+	 * @return the lifetime in ms, or 0 if the header has no Last-Modified
+	 */
+	private static long heuristicLifetime(WebProxyHeader header) {
+		long modified = parseDate(header.get("Last-Modified"));
+		if(modified < 0) return 0;
+		long dateTime = parseDate(header.get("Date"));
+		if(dateTime < 0) dateTime = System.currentTimeMillis();
+		return Math.min(MAX_HEURISTIC_LIFETIME, Math.max(0, dateTime - modified) / 10);
+	}
+
+	/**
+	 * Returns how long in ms the response had already been cached elsewhere
+	 * @param header
+	 * @return the value of the Age field in ms, or 0 if there is none
+	 */
+	private static long age(WebProxyHeader header) {
+		String age = header.get("Age");
+		if(age == null) return 0;
+		try {
+			return Math.max(0, Long.parseLong(age.trim()) * 1000);
+		} catch(NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the values of the fields named by a Vary field in a request
+	 * @param vary
+	 * @param request
+	 * @return the values, a line each, with a NUL for each missing field
+	 */
+	private static String variantOf(String vary, WebProxyRequestParser request) {
+		StringBuilder variant = new StringBuilder();
+		for(String name : vary.split(",")) {
+			if(name.trim().isEmpty()) continue;
+			String value = request.get(name.trim());
+			variant.append(value == null ? "\0" : value.trim()).append('\n');
+		}
+		return variant.toString();
+	}
+
+	/**
+	 * Checks if Cache-Control has a directive, with or without a value (e.g. private="Set-Cookie")
+	 * @param header
+	 * @param name
+	 * @return true if the directive is present, false otherwise
+	 */
+	private static boolean hasDirective(WebProxyHeader header, String name) {
+		String cacheControl = header.get("Cache-Control");
+		if(cacheControl == null) return false;
+		for(String value : cacheControl.split(",")) {
+			if(value.split("=", 2)[0].trim().equalsIgnoreCase(name)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the value of a Cache-Control directive in seconds
+	 * @param header
+	 * @param name
+	 * @return the value of the directive, or -1 if it is missing or invalid
+	 */
+	private static long directive(WebProxyHeader header, String name) {
+		String cacheControl = header.get("Cache-Control");
+		if(cacheControl == null) return -1;
+		for(String value : cacheControl.split(",")) {
+			String[] keyVal = value.trim().split("=", 2);
+			if(keyVal.length < 2 || !keyVal[0].trim().equalsIgnoreCase(name)) continue;
+			try {
+				return Long.parseLong(keyVal[1].trim().replace("\"", ""));
+			} catch(NumberFormatException e) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses an HTTP date (e.g. Sun, 06 Nov 1994 08:49:37 GMT)
+	 * @param value
+	 * @return the time in ms since the epoch, or -1 if it is missing or invalid
+	 */
+	private static long parseDate(String value) {
+		if(value == null) return -1;
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch(DateTimeParseException e) {
+			return -1;
+		}
+	}
+}
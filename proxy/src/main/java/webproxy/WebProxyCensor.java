@@ -0,0 +1,246 @@
+package webproxy;
+
+import java.util.*;
+
+public class WebProxyCensor {
+
+	// What every censored word is replaced with
+	static final byte[] REPLACEMENT = "---".getBytes();
+
+	// Number of distinct (case folded) bytes used by the censored words, plus one
+	// class for every other byte
+	private int classes = 1;
+	private int[] byteClass = new int[256];
+
+	// Automaton: next state for every state and byte class, the number of bytes
+	// matched in every state, and the length of the longest censored word
+	// ending in every state (0 if none)
+	private int[] next = null;
+	private int[] depth = null;
+	private int[] matchLength = null;
+
+	// Longest censored word, in bytes
+	private int maxLength = 0;
+
+	// Identifies the censored words, so that text censored with another list can be told apart
+	private long version = 0;
+
+	/**
+	 * Constructor: takes in the censored words and compiles them
+	 * into a case-insensitive automaton
+	 * @param censoredWords
+	 */
+	public WebProxyCensor(String[] censoredWords) {
+		List<byte[]> words = new ArrayList<byte[]>();
+		for(String censoredWord : censoredWords) {
+			byte[] word = fold(censoredWord.getBytes());
+			if(word.length == 0) continue;
+			words.add(word);
+			maxLength = Math.max(maxLength, word.length);
+			version = hash(version, word);
+			for(byte b : word) {
+				if(byteClass[b & 0xff] == 0) byteClass[b & 0xff] = classes++;
+			}
+		}
+		// Upper case letters share the class of their lower case letter
+		for(int b = 'A'; b <= 'Z'; b++) byteClass[b] = byteClass[b + ('a' - 'A')];
+		compile(words);
+	}
+
+	/**
+	 * Checks if there is anything to censor
+	 * @return true if no words are censored, false otherwise
+	 */
+	boolean isEmpty() {
+		return maxLength == 0;
+	}
+
+	/**
+	 * Returns the version of the censored words, the same for the same words in any run
+	 * @return the version
+	 */
+	long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the length of the longest censored word
+	 * @return the length of the longest censored word in bytes
+	 */
+	int getMaxLength() {
+		return maxLength;
+	}
+
+	/**
+	 * Returns the state the automaton moves to on the given byte
+	 * @param state
+	 * @param b
+	 * @return the next state
+	 */
+	int next(int state, byte b) {
+		return next[state * classes + byteClass[b & 0xff]];
+	}
+
+	/**
+	 * Returns the number of bytes matched in a state
+	 * @param state
+	 * @return the number of trailing bytes that may start a censored word
+	 */
+	int depth(int state) {
+		return depth[state];
+	}
+
+	/**
+	 * Returns the length of the longest censored word ending in a state
+	 * @param state
+	 * @return the length of the censored word, or 0 if none ends there
+	 */
+	int matchLength(int state) {
+		return matchLength[state];
+	}
+
+	/**
+	 * Replaces every censored word in bytes from the given index onwards,
+	 * in a single pass over the bytes. Where censored words overlap, the one
+	 * starting first wins, and the longest of those starting at the same byte
+	 * @param bytes
+	 * @param start
+	 * @return the censored bytes, or the given array itself if nothing was censored
+	 */
+	byte[] censor(byte[] bytes, int start) {
+		if(isEmpty()) return bytes;
+
+		byte[] result = null;
+		int resultLength = 0;
+		int copied = 0;
+		int state = 0;
+		int matchStart = -1, matchEnd = -1, matches = 0;
+		for(int i = start; i <= bytes.length; i++) {
+			if(i < bytes.length) {
+				state = next[state * classes + byteClass[bytes[i] & 0xff]];
+				int length = matchLength[state];
+				if(length > 0 && (matchStart < 0 || i - length + 1 <= matchStart)) {
+					matchStart = i - length + 1;
+					matchEnd = i;
+				}
+			}
+
+			// Replace the match once no longer word can start where it starts
+			if(matchStart < 0 || (i < bytes.length && i - depth[state] + 1 <= matchStart)) continue;
+			if(result == null) result = new byte[bytes.length + REPLACEMENT.length * 4];
+			result = ensureCapacity(result, resultLength + (matchStart - copied) + REPLACEMENT.length);
+			System.arraycopy(bytes, copied, result, resultLength, matchStart - copied);
+			resultLength += matchStart - copied;
+			System.arraycopy(REPLACEMENT, 0, result, resultLength, REPLACEMENT.length);
+			resultLength += REPLACEMENT.length;
+			copied = matchEnd + 1;
+			matches++;
+
+			// Carry on matching right after the replaced word
+			i = matchEnd;
+			state = 0;
+			matchStart = matchEnd = -1;
+		}
+		if(result == null) return bytes;
+		WebProxyMetrics.censorMatches.add(matches);
+
+		result = ensureCapacity(result, resultLength + (bytes.length - copied));
+		System.arraycopy(bytes, copied, result, resultLength, bytes.length - copied);
+		resultLength += bytes.length - copied;
+		return resultLength == result.length ? result : Arrays.copyOf(result, resultLength);
+	}
+
+	/**
+	 * Builds the automaton: a trie of the censored words, whose missing
+	 * transitions follow the longest suffix that is also in the trie
+	 * @param words
+	 */
+	private void compile(List<byte[]> words) {
+		// Build the trie, with -1 as a missing transition
+		int maxStates = 1;
+		for(byte[] word : words) maxStates += word.length;
+		next = new int[maxStates * classes];
+		depth = new int[maxStates];
+		matchLength = new int[maxStates];
+		Arrays.fill(next, -1);
+		int states = 1;
+		for(byte[] word : words) {
+			int state = 0;
+			for(byte b : word) {
+				int index = state * classes + byteClass[b & 0xff];
+				if(next[index] < 0) {
+					depth[states] = depth[state] + 1;
+					next[index] = states++;
+				}
+				state = next[index];
+			}
+			matchLength[state] = Math.max(matchLength[state], word.length);
+		}
+
+		// Fill in the missing transitions breadth first
+		int[] fail = new int[states];
+		int[] queue = new int[states];
+		int head = 0, tail = 0;
+		for(int c = 0; c < classes; c++) {
+			if(next[c] < 0) {
+				next[c] = 0;
+			} else {
+				fail[next[c]] = 0;
+				queue[tail++] = next[c];
+			}
+		}
+		while(head < tail) {
+			int state = queue[head++];
+			// A state also ends every word its fallback state ends
+			matchLength[state] = Math.max(matchLength[state], matchLength[fail[state]]);
+			for(int c = 0; c < classes; c++) {
+				int index = state * classes + c;
+				int fallback = next[fail[state] * classes + c];
+				if(next[index] < 0) {
+					next[index] = fallback;
+				} else {
+					fail[next[index]] = fallback;
+					queue[tail++] = next[index];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a censored word to a hash of the words before it (64-bit FNV-1a)
+	 * @param hash
+	 * @param word
+	 * @return the new hash
+	 */
+	private static long hash(long hash, byte[] word) {
+		if(hash == 0) hash = 0xcbf29ce484222325L;
+		for(byte b : word) hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+		// Separates the words, so that "ab","c" and "a","bc" differ
+		return (hash ^ 0xff) * 0x100000001b3L;
+	}
+
+	/**
+	 * Returns a copy of bytes with ASCII upper case letters in lower case
+	 * @param bytes
+	 * @return the case folded bytes
+	 */
+	private static byte[] fold(byte[] bytes) {
+		byte[] result = new byte[bytes.length];
+		for(int i = 0; i < bytes.length; i++) {
+			byte b = bytes[i];
+			result[i] = (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns an array holding at least capacity bytes, growing the given one if needed
+	 * @param array
+	 * @param capacity
+	 * @return the array, or a larger copy of it
+	 */
+	private static byte[] ensureCapacity(byte[] array, int capacity) {
+		if(capacity <= array.length) return array;
+		return Arrays.copyOf(array, Math.max(capacity, array.length + (array.length >> 1)));
+	}
+}
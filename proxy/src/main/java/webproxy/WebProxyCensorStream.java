@@ -0,0 +1,174 @@
+package webproxy;
+
+import java.io.*;
+
+public class WebProxyCensorStream extends FilterOutputStream {
+
+	// Instance variables
+	private WebProxyCensor censor = null;
+	private int state = 0;
+	private long matches = 0;
+
+	// Bytes held back because they may still turn out to be part of a
+	// censored word that continues in the next write
+	private byte[] held = new byte[64];
+	private int heldLength = 0;
+
+	// A single byte, reused for every write of one
+	private byte[] single = new byte[1];
+
+	// Longest censored word found so far that may still grow, as positions
+	// in the held bytes followed by the bytes being written (-1 if none)
+	private int matchStart = -1, matchEnd = -1;
+
+	/**
+	 * Constructor: takes in the censor and the stream receiving the censored bytes
+	 * @param censor
+	 * @param out
+	 */
+	public WebProxyCensorStream(WebProxyCensor censor, OutputStream out) {
+		super(out);
+		this.censor = censor;
+	}
+
+	/**
+	 * Censors a single byte
+	 * @param b
+	 * @throws IOException
+	 */
+	public void write(int b) throws IOException {
+		single[0] = (byte) b;
+		write(single, 0, 1);
+	}
+
+	/**
+	 * Censors bytes and writes out everything that cannot be part of a censored word
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(censor.isEmpty()) out.write(b, off, len);
+		else censor(b, off, len, false);
+	}
+
+	/**
+	 * Censors and writes out the held back bytes, as no more bytes will follow
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if(!censor.isEmpty()) censor(null, 0, 0, true);
+		WebProxyMetrics.censorMatches.add(matches);
+	}
+
+	/**
+	 * Returns the number of censored words replaced so far
+	 * @return the number of replacements
+	 */
+	long getMatches() {
+		return matches;
+	}
+
+	/**
+	 * Runs the automaton over the held bytes followed by the given bytes,
+	 * replacing each censored word as soon as no longer word can start where it starts
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @param end true if no more bytes will follow
+	 * @throws IOException
+	 */
+	private void censor(byte[] b, int off, int len, boolean end) throws IOException {
+		int total = heldLength + len;
+		int written = 0;
+		// The held bytes have been run through the automaton already
+		int i = heldLength;
+		while(true) {
+			if(i < total) {
+				state = censor.next(state, byteAt(b, off, i));
+				int length = censor.matchLength(state);
+				if(length > 0 && (matchStart < 0 || i - length + 1 <= matchStart)) {
+					matchStart = i - length + 1;
+					matchEnd = i;
+				}
+			}
+
+			boolean replace = matchStart >= 0 && (i < total ? i - censor.depth(state) + 1 > matchStart : end);
+			if(replace) {
+				writeRange(b, off, written, matchStart);
+				out.write(WebProxyCensor.REPLACEMENT);
+				matches++;
+				// Carry on matching right after the replaced word
+				written = i = matchEnd + 1;
+				state = 0;
+				matchStart = matchEnd = -1;
+				continue;
+			}
+			if(i >= total) break;
+			i++;
+		}
+
+		// Hold back everything still undecided: the bytes the automaton is matching, which may be the
+		// start of a longer word beginning before the pending match, and the pending match itself
+		int keep = total;
+		if(!end) {
+			keep = total - censor.depth(state);
+			if(matchStart >= 0) keep = Math.min(keep, matchStart);
+		}
+		writeRange(b, off, written, keep);
+		hold(b, off, keep, total);
+		if(matchStart >= 0) {
+			matchStart -= keep;
+			matchEnd -= keep;
+		}
+	}
+
+	/**
+	 * Returns the byte at a position in the held bytes followed by the given bytes
+	 * @param b
+	 * @param off
+	 * @param position
+	 * @return the byte at the position
+	 */
+	private byte byteAt(byte[] b, int off, int position) {
+		return position < heldLength ? held[position] : b[off + position - heldLength];
+	}
+
+	/**
+	 * Writes out a range of the held bytes followed by the given bytes
+	 * @param b
+	 * @param off
+	 * @param from
+	 * @param to
+	 * @throws IOException
+	 */
+	private void writeRange(byte[] b, int off, int from, int to) throws IOException {
+		if(from < heldLength) out.write(held, from, Math.min(to, heldLength) - from);
+		if(to > heldLength) {
+			int start = Math.max(from, heldLength);
+			out.write(b, off + start - heldLength, to - start);
+		}
+	}
+
+	/**
+	 * Keeps a range of the held bytes followed by the given bytes as the new held bytes
+	 * @param b
+	 * @param off
+	 * @param from
+	 * @param to
+	 */
+	private void hold(byte[] b, int off, int from, int to) {
+		byte[] result = held;
+		if(to - from > held.length) result = new byte[Math.max(to - from, held.length * 2)];
+		int kept = 0;
+		if(from < heldLength) {
+			kept = heldLength - from;
+			System.arraycopy(held, from, result, 0, kept);
+		}
+		int start = Math.max(from, heldLength);
+		if(to > start) System.arraycopy(b, off + start - heldLength, result, kept, to - start);
+		held = result;
+		heldLength = to - from;
+	}
+}
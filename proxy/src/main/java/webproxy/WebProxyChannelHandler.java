@@ -0,0 +1,1029 @@
+package webproxy;
+
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+public class WebProxyChannelHandler {
+
+	// States of a client connection, in the order they are normally visited. There is no way
+	// back to READING_REQUEST: keep-alive is not supported, the connection is closed after one response
+	private enum State { READING_REQUEST, WAITING, CONNECTING, SENDING_REQUEST, RELAYING_RESPONSE, SENDING_RESPONSE, SENDING_CACHED, TUNNELING, CLOSED }
+
+	// Instance variables
+	private WebProxyEventLoop loop = null;
+	private SocketChannel clientChannel = null, serverChannel = null;
+	private SelectionKey clientKey = null, serverKey = null;
+	private State state = null;
+	private String URL = null;
+	private WebProxyCensor censor = null;
+
+	// Buffers for the request and response, leased from the pool until the connection is closed
+	private ByteBuffer request = WebProxyBufferPool.HEAP.lease(8192), response = WebProxyBufferPool.HEAP.lease(8192);
+
+	// Parser of the request, and the header and part of the body waiting to be sent to the server
+	private WebProxyRequestParser requestParser = new WebProxyRequestParser();
+	private ByteBuffer[] upstreamRequest = null;
+
+	// Whole response waiting to be written to the client (text, 502), in parts
+	private ByteBuffer[] pendingResponse = null;
+
+	// Cached object being sent to the client, and where the region being sent ends in its segment
+	private FileChannel cachedFile = null;
+	private long cachedEnd = 0;
+
+	// Ranges of the cached body being sent, the next one, where the body starts in
+	// the segment, and the header or part header to write before the current region
+	private WebProxyRange cachedRanges = null;
+	private int nextRange = 0;
+	private long cachedBody = 0;
+	private ByteBuffer cachedPrefix = null;
+
+	// Cache entry being written while relaying the response
+	private String filename = null;
+	private OutputStream thisCache = null;
+	private WebProxyTextBuffer textCache = null;
+	private boolean isText = false;
+	private WebProxyHeader responseHeader = null;
+	private int reads = 0;
+
+	// Response bytes read before its header was complete, held until it is known whether the
+	// response is text, then the part of them still to be relayed ahead of the response buffer
+	private ByteArrayOutputStream heldResponse = null;
+	private ByteBuffer heldPrefix = null;
+
+	// Where the body of the final response starts in the read that completed its header
+	private int bodyStart = 0;
+	// The length of the header as it is cached, once it is written
+	private int cacheHeaderLength = 0;
+
+	// Censored text too long to be kept on the heap, being sent from its file
+	private WebProxyTextBuffer censoredText = null;
+
+	// Tracks where the response ends, so that it is finished as soon as its last byte arrives
+	private WebProxyResponseFraming framing = null;
+
+	// Relay between client and server once a CONNECT request is answered
+	private WebProxyTunnel tunnel = null;
+
+	// Whether the response buffer is waiting for the client to drain it
+	private boolean draining = false;
+
+	// Time (System.nanoTime) after which the current step times out
+	private long deadline = 0;
+
+	// Times (System.nanoTime) the connection was accepted, the remote server was
+	// looked up, and the request was sent to it, for the metrics
+	private long requestStart = 0, connectStart = 0, requestSentAt = 0;
+
+	// Outcome of the request for the access log: the status sent, how the cache answered, the bytes
+	// sent to the client, the times in microseconds it took in all, to connect and to the first byte
+	// or -1 for a step it did not take, and the remote server it went to
+	private int status = 0;
+	private String cacheResult = WebProxyLog.NONE;
+	private long bytesSent = 0, totalMicros = -1, connectMicros = -1, firstByteMicros = -1;
+	private String serverHost = null;
+	private int serverPort = 0;
+
+	// default timeout value in ms for connections
+	int connTimeout = 20000;
+
+	// timeout value in ms for a CONNECT tunnel that relays nothing either way
+	int tunnelIdleTimeout = WebProxyConfig.getInt("tunnel-idle-timeout", 60000);
+
+	/**
+	 * Constructor: takes in the owning event loop, a client channel and censor
+	 * @param loop
+	 * @param clientChannel
+	 * @param censor
+	 */
+	public WebProxyChannelHandler(WebProxyEventLoop loop, SocketChannel clientChannel, WebProxyCensor censor) {
+		this.loop = loop;
+		this.clientChannel = clientChannel;
+		this.censor = censor;
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Received a connection from: " + clientChannel.toString());
+	}
+
+	/**
+	 * Registers the client channel and starts reading its request
+	 */
+	public void start() {
+		WebProxyMetrics.activeConnections.increment();
+		requestStart = System.nanoTime();
+		try {
+			clientChannel.configureBlocking(false);
+			clientKey = clientChannel.register(loop.selector(), SelectionKey.OP_READ, this);
+			enterState(State.READING_REQUEST, connTimeout);
+		} catch (IOException e) {
+			System.out.println("Error: Failed to register client channel.");
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Handles a ready key of either the client or the server channel
+	 * @param key
+	 * @throws IOException
+	 */
+	public void handle(SelectionKey key) throws IOException {
+		if(!key.isValid() || state == State.CLOSED) return;
+		if(state == State.TUNNELING) {
+			relayTunnel();
+		} else if(key == clientKey) {
+			if(key.isReadable() && state == State.READING_REQUEST) readRequest();
+			else if(key.isReadable() && state == State.SENDING_REQUEST) readRequestBody();
+			else if(key.isWritable()) writeToClient();
+		} else if(key == serverKey) {
+			if(key.isConnectable()) finishConnect();
+			else if(key.isWritable()) writeRequest();
+			else if(key.isReadable()) readResponse();
+		}
+	}
+
+	/**
+	 * Ends the current step if it has run past its deadline
+	 * @param now
+	 */
+	public void checkTimeout(long now) {
+		if(state == State.CLOSED || now - deadline < 0) return;
+		switch(state) {
+		case READING_REQUEST:
+			processClientRequest();
+			break;
+		case CONNECTING:
+		case SENDING_REQUEST:
+			if(WebProxyLog.DEBUG) WebProxyLog.debug("Connection to remote server timed out.");
+			send502Response();
+			break;
+		case RELAYING_RESPONSE:
+			// A stalled client is dropped, a stalled server ends the response
+			if(draining) close();
+			else finishResponse();
+			break;
+		case WAITING:
+			// A blocking task that takes too long is abandoned, and its result ignored
+			if(WebProxyLog.DEBUG) WebProxyLog.debug("Waiting on a blocking task timed out.");
+			send502Response();
+			break;
+		default:
+			close();
+		}
+	}
+
+	/**
+	 * Parses the request as it is read until its header is complete
+	 * @throws IOException
+	 */
+	private void readRequest() throws IOException {
+		int bytes_length = clientChannel.read(request);
+		if(bytes_length == -1) {
+			processClientRequest();
+			return;
+		}
+		WebProxyMetrics.bytesReceived.add(bytes_length);
+		int bodyStart = requestParser.consume(request.array(), 0, request.position());
+		if(!requestParser.isHeaderComplete() && !requestParser.isInvalid()) {
+			// The parser keeps the header, so the buffer can take the next read
+			request.clear();
+			return;
+		}
+		if(requestParser.isHeaderComplete()) {
+			WebProxyMetrics.requests.increment();
+			WebProxyMetrics.parse.recordSince(requestStart);
+			// Only the part of the body already received is sent with the header,
+			// while everything after a CONNECT goes through the tunnel
+			int bodyLength = requestParser.isMethod("CONNECT") ? request.position() - bodyStart
+					: requestParser.consume(request.array(), bodyStart, request.position() - bodyStart);
+			upstreamRequest = new ByteBuffer[] {ByteBuffer.wrap(requestParser.getUpstreamHeader(false)),
+					ByteBuffer.wrap(request.array(), bodyStart, bodyLength)};
+			// Rather than wait for the server, tell the client to send the rest of the body.
+			// The socket buffer of a new connection always has room for it
+			if(requestParser.expectsContinue()) {
+				sent(clientChannel.write(ByteBuffer.wrap(WebProxyThread.get100ContinueMessage())));
+			}
+		}
+		processClientRequest();
+	}
+
+	/**
+	 * Reads more of the request body once the server has taken what was received
+	 * @throws IOException
+	 */
+	private void readRequestBody() throws IOException {
+		request.clear();
+		int bytes_length = clientChannel.read(request);
+		if(bytes_length == -1) {
+			close();
+			return;
+		}
+		if(bytes_length == 0) return;
+		WebProxyMetrics.bytesReceived.add(bytes_length);
+		int bodyLength = requestParser.consume(request.array(), 0, bytes_length);
+		if(requestParser.isInvalid()) {
+			// The server connection is in an unknown state once the end of the body cannot be found
+			closeServer();
+			processClientRequest();
+			return;
+		}
+		upstreamRequest[1] = ByteBuffer.wrap(request.array(), 0, bodyLength);
+		clientKey.interestOps(0);
+		serverKey.interestOps(SelectionKey.OP_WRITE);
+		enterState(State.SENDING_REQUEST, connTimeout);
+	}
+
+	/**
+	 * Processes the client's request and performs the caching check
+	 */
+	private void processClientRequest() {
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Processing the request...");
+		clientKey.interestOps(0);
+		if(requestParser.isInvalid()) {
+			System.out.println("Error: Invalid request, sending 400 and closing socket.");
+			status = 400;
+			sendToClient(WebProxyThread.get400ErrorMessage());
+			return;
+		}
+		if(!requestParser.isHeaderComplete()) {
+			if(WebProxyLog.DEBUG) WebProxyLog.debug("Blank request detected, closing client socket...");
+			close();
+			return;
+		}
+
+		// Requests for the proxy itself are answered by it
+		if(WebProxyMetrics.isMetricsRequest(requestParser)) {
+			boolean local = clientChannel.socket().getInetAddress().isLoopbackAddress();
+			status = local ? 200 : 403;
+			sendToClient(local ? WebProxyMetrics.getResponse(false) : WebProxyThread.get403ErrorMessage());
+			return;
+		}
+
+		// Everything after a CONNECT is relayed as it is, typically TLS
+		if(requestParser.isMethod("CONNECT")) {
+			cacheResult = WebProxyLog.TUNNEL;
+			resolveServer();
+			return;
+		}
+
+		// Only a GET is answered from the cache, anything else goes to the server,
+		// as does a request whose client wants the response from the server
+		URL = requestParser.getTarget();
+		long lookupStart = System.nanoTime();
+		boolean servable = URL != null && requestParser.isMethod("GET") && WebProxyCachedObject.isServable(requestParser);
+		WebProxyCachedObject cachedObject = servable ? WebProxyThread.cache.get(URL) : null;
+		WebProxyMetrics.cacheLookup.recordSince(lookupStart);
+		// An object that varies is only served to requests like the one it answered
+		if(cachedObject != null && !cachedObject.matches(requestParser)) cachedObject = null;
+		if(cachedObject != null) revalidateCache(cachedObject);
+		else resolveServer();
+	}
+
+	/**
+	 * Serves the cached object right away if the server need not be asked about it,
+	 * otherwise checks it against the server off the event loop, then continues
+	 * with either the cached object or the server
+	 * @param cachedObject
+	 */
+	private void revalidateCache(final WebProxyCachedObject cachedObject) {
+		String result = WebProxyThread.checkCache(URL, cachedObject, connTimeout, false);
+		if(result != null) {
+			cacheResult = result;
+			sendCachedToClient(cachedObject);
+			return;
+		}
+		enterState(State.WAITING, connTimeout);
+		final String url = URL;
+		WebProxyEventLoop.blockingTasks.execute(new Runnable() {
+			public void run() {
+				final String result = WebProxyThread.checkCache(url, cachedObject, connTimeout, true);
+				loop.execute(new Runnable() {
+					public void run() {
+						if(state != State.WAITING) return;
+						if(result == null) {
+							resolveServer();
+							return;
+						}
+						cacheResult = result;
+						sendCachedToClient(cachedObject);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Reads and censors a cached text object off the event loop, then sends it
+	 * to the client, or goes to the server if it is no longer stored
+	 * @param thisCache
+	 */
+	private void readCensoredText(final WebProxyCachedObject thisCache) {
+		enterState(State.WAITING, connTimeout);
+		final String url = URL;
+		WebProxyEventLoop.blockingTasks.execute(new Runnable() {
+			public void run() {
+				final WebProxyCachedObject.CensoredText text = WebProxyThread.getCensoredText(url, thisCache, censor);
+				loop.execute(new Runnable() {
+					public void run() {
+						if(state != State.WAITING) return;
+						sendCensoredText(thisCache, text);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Sends a cached text object to the client as it was censored
+	 * @param thisCache
+	 * @param text the censored text, or null to go to the server as the object is no longer stored
+	 */
+	private void sendCensoredText(WebProxyCachedObject thisCache, WebProxyCachedObject.CensoredText text) {
+		if(text == null) {
+			resolveServer();
+			return;
+		}
+		WebProxyMetrics.cacheHits.increment();
+		WebProxyRange ranges = text.header == null ? null : WebProxyRange.parse(requestParser, thisCache, text.body.length);
+		if(ranges == null) sendToClient(text.toClosingResponse());
+		else sendToClient(getRangeResponse(text, ranges));
+	}
+
+	/**
+	 * Starts sending the cached object to the client
+	 * @param thisCache
+	 */
+	private void sendCachedToClient(WebProxyCachedObject thisCache) {
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Sending cached response...");
+		status = thisCache.status;
+		if(thisCache.isText) {
+			// Text from the memory tier goes out right away, any other text is read and censored off the event loop
+			WebProxyCachedObject.CensoredText text = WebProxyThread.cache.getText(thisCache, censor.getVersion());
+			if(text != null) sendCensoredText(thisCache, text);
+			else readCensoredText(thisCache);
+			return;
+		}
+		WebProxyRange ranges = thisCache.hasRanges() ? WebProxyRange.parse(requestParser, thisCache, thisCache.contentLength) : null;
+		// Only the blocking modes fill in partial objects, so anything past the stored start goes to the server
+		if(thisCache.isPartial() && (ranges == null || ranges.getLast() > thisCache.getStoredBodyLength())) {
+			resolveServer();
+			return;
+		}
+		ByteBuffer memory = WebProxyThread.cache.openMemory(URL, thisCache);
+		if(memory != null) {
+			WebProxyMetrics.cacheHits.increment();
+			sendToClient(getMemoryResponse(memory, thisCache, ranges));
+			return;
+		}
+		try {
+			cachedFile = WebProxyThread.cache.open(thisCache);
+			if(cachedFile == null) {
+				// Evicted since the lookup
+				resolveServer();
+				return;
+			}
+			WebProxyMetrics.cacheHits.increment();
+			long start = cachedFile.position();
+			cachedEnd = start + thisCache.location.length;
+			if(ranges != null) {
+				WebProxyMetrics.rangeResponses.increment();
+				if(ranges.size() == 0) {
+					status = 416;
+					cachedFile.close();
+					cachedFile = null;
+					sendToClient(WebProxyRange.getUnsatisfiableResponse(thisCache.contentLength, false));
+					return;
+				}
+				status = 206;
+				cachedRanges = ranges;
+				cachedBody = start + thisCache.headerLength;
+				cachedPrefix = ByteBuffer.wrap(ranges.getResponseHeader(WebProxyThread.readStoredHeader(cachedFile, start, thisCache.headerLength), false));
+				// Nothing of the segment goes before the first part
+				cachedEnd = start;
+			}
+			enterState(State.SENDING_CACHED, connTimeout);
+			clientKey.interestOps(SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			System.out.println("Error: Failed to open cached object: " + URL);
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Returns the 206 or 416 response for ranges of a censored text, in parts
+	 * @param text
+	 * @param ranges
+	 * @return the parts of the response
+	 */
+	private ByteBuffer[] getRangeResponse(WebProxyCachedObject.CensoredText text, WebProxyRange ranges) {
+		WebProxyMetrics.rangeResponses.increment();
+		if(ranges.size() == 0) {
+			status = 416;
+			return new ByteBuffer[] {ByteBuffer.wrap(WebProxyRange.getUnsatisfiableResponse(text.body.length, false))};
+		}
+		status = 206;
+		return ranges.getResponse(WebProxyHeader.parse(new String(text.header)), ByteBuffer.wrap(text.body), false);
+	}
+
+	/**
+	 * Returns the response for a binary object in the memory tier, whole or the
+	 * 206 or 416 response for ranges of its body, in parts
+	 * @param memory the stored object
+	 * @param object
+	 * @param ranges the ranges to send, or null to send the whole object
+	 * @return the parts of the response
+	 */
+	private ByteBuffer[] getMemoryResponse(ByteBuffer memory, WebProxyCachedObject object, WebProxyRange ranges) {
+		if(ranges == null) return new ByteBuffer[] {memory};
+		WebProxyMetrics.rangeResponses.increment();
+		if(ranges.size() == 0) {
+			status = 416;
+			return new ByteBuffer[] {ByteBuffer.wrap(WebProxyRange.getUnsatisfiableResponse(object.contentLength, false))};
+		}
+		status = 206;
+		WebProxyHeader header = WebProxyThread.readStoredHeader(memory, object.headerLength);
+		memory.position(memory.position() + object.headerLength);
+		return ranges.getResponse(header, memory, false);
+	}
+
+	/**
+	 * Moves on to the next range of the cached body being sent, or to the
+	 * trailer after the last one
+	 * @return true if there is more to send, false once everything has been sent
+	 * @throws IOException
+	 */
+	private boolean nextCachedRange() throws IOException {
+		if(cachedRanges == null || nextRange > cachedRanges.size()) return false;
+		if(nextRange == cachedRanges.size()) {
+			nextRange++;
+			cachedPrefix = ByteBuffer.wrap(cachedRanges.getTrailer());
+			cachedEnd = cachedFile.position();
+			return cachedPrefix.hasRemaining();
+		}
+		int i = nextRange++;
+		cachedPrefix = ByteBuffer.wrap(cachedRanges.getPartHeader(i));
+		cachedFile.position(cachedBody + cachedRanges.getStart(i));
+		cachedEnd = cachedBody + cachedRanges.getEnd(i) + 1;
+		return true;
+	}
+
+	/**
+	 * Resolves the remote host, off the event loop unless it is cached, then connects to it
+	 */
+	private void resolveServer() {
+		enterState(State.WAITING, connTimeout);
+		if(!requestParser.isMethod("CONNECT")) {
+			WebProxyMetrics.cacheMisses.increment();
+			cacheResult = requestParser.isMethod("GET") ? WebProxyLog.MISS : WebProxyLog.PASS;
+		}
+		connectStart = System.nanoTime();
+		final String host = requestParser.getHost();
+		final int port = requestParser.getPort();
+		serverHost = host;
+		serverPort = port;
+		if(port < 0) {
+			send502Response();
+			return;
+		}
+		if(WebProxyThread.resolver.isCached(host)) {
+			connectToServer(getServerAddress(host, port));
+			return;
+		}
+
+		WebProxyEventLoop.blockingTasks.execute(new Runnable() {
+			public void run() {
+				final InetSocketAddress server = getServerAddress(host, port);
+				loop.execute(new Runnable() {
+					public void run() {
+						if(state == State.WAITING) connectToServer(server);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Returns the address of the remote server through the shared resolver
+	 * @param host
+	 * @param port
+	 * @return the address, unresolved if the host does not resolve
+	 */
+	private static InetSocketAddress getServerAddress(String host, int port) {
+		InetAddress address = WebProxyThread.resolver.resolve(host);
+		if(address == null) return InetSocketAddress.createUnresolved(host, port);
+		return new InetSocketAddress(address, port);
+	}
+
+	/**
+	 * Starts a non-blocking connection to the remote server
+	 * @param server
+	 */
+	private void connectToServer(InetSocketAddress server) {
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Connecting to remote server " + server.getHostString() + " at port " + server.getPort() + "...");
+		if(server.isUnresolved()) {
+			send502Response();
+			return;
+		}
+		try {
+			serverChannel = SocketChannel.open();
+			serverChannel.configureBlocking(false);
+			if(serverChannel.connect(server)) {
+				serverKey = serverChannel.register(loop.selector(), 0, this);
+				connected();
+			} else {
+				serverKey = serverChannel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+				enterState(State.CONNECTING, connTimeout);
+			}
+		} catch (IOException e) {
+			System.out.println("Error: Failed to create channel to remote server " + server.getHostString());
+			e.printStackTrace();
+			send502Response();
+		}
+	}
+
+	/**
+	 * Completes the connection to the remote server
+	 */
+	private void finishConnect() {
+		try {
+			if(!serverChannel.finishConnect()) return;
+			connected();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to connect to remote server.");
+			e.printStackTrace();
+			send502Response();
+		}
+	}
+
+	/**
+	 * Starts sending the request once connected to the remote server, or
+	 * starts the tunnel if the request is a CONNECT
+	 * @throws IOException
+	 */
+	private void connected() throws IOException {
+		connectMicros = WebProxyMetrics.upstreamConnect.recordSince(connectStart);
+		if(!requestParser.isMethod("CONNECT")) {
+			serverKey.interestOps(SelectionKey.OP_WRITE);
+			enterState(State.SENDING_REQUEST, connTimeout);
+			return;
+		}
+
+		// The socket buffer of a new connection always has room for the response
+		status = 200;
+		sent(clientChannel.write(ByteBuffer.wrap(WebProxyThread.get200ConnectionEstablishedMessage())));
+		totalMicros = WebProxyMetrics.total.recordSince(requestStart);
+		tunnel = new WebProxyTunnel(clientChannel, serverChannel, upstreamRequest[1]);
+		enterState(State.TUNNELING, tunnelIdleTimeout);
+		relayTunnel();
+	}
+
+	/**
+	 * Moves whatever the client and server are ready for through the tunnel,
+	 * then waits for whichever side can take it further
+	 * @throws IOException
+	 */
+	private void relayTunnel() throws IOException {
+		if(tunnel.pump()) deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(tunnelIdleTimeout);
+		if(tunnel.isDone()) {
+			close();
+			return;
+		}
+		clientKey.interestOps(tunnel.clientOps());
+		serverKey.interestOps(tunnel.serverOps());
+	}
+
+	/**
+	 * Sends the client's request to the remote server, then starts relaying the response
+	 * @throws IOException
+	 */
+	private void writeRequest() throws IOException {
+		serverChannel.write(upstreamRequest);
+		if(upstreamRequest[1].hasRemaining()) return;
+		if(!requestParser.isComplete()) {
+			// Wait for more of the body from the client
+			serverKey.interestOps(0);
+			clientKey.interestOps(SelectionKey.OP_READ);
+			return;
+		}
+
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Sending response to client...");
+		requestSentAt = System.nanoTime();
+		// Only responses to GET are cached
+		if(requestParser.isMethod("GET")) {
+			filename = WebProxyThread.generateFilename(URL);
+			thisCache = WebProxyThread.getFileOutputStream(filename);
+		}
+		heldResponse = new ByteArrayOutputStream();
+		framing = newFraming();
+		serverKey.interestOps(SelectionKey.OP_READ);
+		enterState(State.RELAYING_RESPONSE, connTimeout);
+	}
+
+	/**
+	 * Relays one read of the server's response and writes it to cache
+	 * @throws IOException
+	 */
+	private void readResponse() throws IOException {
+		int bytes_length = serverChannel.read(response);
+		if(bytes_length == -1) {
+			finishResponse();
+			return;
+		}
+		if(bytes_length == 0) return;
+		if(++reads == 1) firstByteMicros = WebProxyMetrics.timeToFirstByte.recordSince(requestSentAt);
+		deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connTimeout);
+		trackResponse(bytes_length);
+
+		// Whether the response is text is only known once its header is complete, which may take several reads
+		int cacheOffset = 0;
+		if(heldResponse != null) {
+			if(!framing.isHeaderComplete()) {
+				heldResponse.write(response.array(), 0, bytes_length);
+				response.clear();
+				return;
+			}
+			classifyResponse();
+			cacheOffset = bodyStart;
+		}
+
+		// Write to cache, after the header written in its place
+		if(thisCache != null) thisCache.write(response.array(), cacheOffset, bytes_length - cacheOffset);
+
+		// Text is kept until the response is complete so it can be censored
+		if(isText) {
+			textCache.write(response.array(), 0, bytes_length);
+			response.clear();
+			if(framing.isComplete() || framing.isMalformed()) finishResponse();
+			return;
+		}
+
+		// Anything else is relayed to the client right away
+		response.flip();
+		if(!relayToClient()) {
+			// Stop reading from the server until the client catches up
+			draining = true;
+			serverKey.interestOps(0);
+			clientKey.interestOps(SelectionKey.OP_WRITE);
+			deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connTimeout);
+		} else {
+			response.clear();
+			if(framing.isComplete() || framing.isMalformed()) finishResponse();
+		}
+	}
+
+	/**
+	 * Decides whether the response is text from its header, or from the lack of one, and
+	 * hands the bytes held until then to the censor or queues them to be relayed first.
+	 * The header is cached as in thread mode, without interim responses or connection fields
+	 * @throws IOException
+	 */
+	private void classifyResponse() throws IOException {
+		responseHeader = framing.getHeader();
+		isText = WebProxyThread.isText(responseHeader);
+		status = responseHeader == null ? 0 : responseHeader.getStatusCode();
+		if(responseHeader == null) {
+			// Nothing without a header is cached
+			closeCacheFile();
+		} else if(thisCache != null) {
+			byte[] header = WebProxyThread.getCacheHeader(framing);
+			cacheHeaderLength = header.length;
+			thisCache.write(header);
+		}
+		if(isText) {
+			// Only text needs a buffer, with a staging file to spill to
+			textCache = new WebProxyTextBuffer(WebProxyThread.cache.newStagingFile());
+			heldResponse.writeTo(textCache);
+		} else if(heldResponse.size() > 0) heldPrefix = ByteBuffer.wrap(heldResponse.toByteArray());
+		heldResponse = null;
+	}
+
+	/**
+	 * Writes the held bytes and the response buffer to the client, as much as it takes
+	 * @return true if everything was written, false if the client has to catch up first
+	 * @throws IOException
+	 */
+	private boolean relayToClient() throws IOException {
+		if(heldPrefix == null) {
+			sent(clientChannel.write(response));
+		} else {
+			sent(clientChannel.write(new ByteBuffer[] {heldPrefix, response}));
+			if(!heldPrefix.hasRemaining()) heldPrefix = null;
+		}
+		return heldPrefix == null && !response.hasRemaining();
+	}
+
+	/**
+	 * Consumes a read of the response, moving past interim responses (e.g. 100 Continue)
+	 * @param bytes_length
+	 * @throws IOException
+	 */
+	private void trackResponse(int bytes_length) throws IOException {
+		int offset = 0;
+		while(offset < bytes_length && !framing.isComplete() && !framing.isMalformed()) {
+			boolean header = !framing.isHeaderComplete();
+			offset += framing.consume(response.array(), offset, bytes_length - offset);
+			if(framing.isInterim()) framing = newFraming();
+			else if(header && framing.isHeaderComplete()) bodyStart = offset;
+		}
+	}
+
+	/**
+	 * Returns a framing for the response to the current request
+	 * @return the framing
+	 */
+	private WebProxyResponseFraming newFraming() {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		framing.setHeadRequest(requestParser.isMethod("HEAD"));
+		return framing;
+	}
+
+	/**
+	 * Caches the complete response and sends the censored text, if any, to the client
+	 */
+	private void finishResponse() {
+		closeServer();
+		closeCacheFile();
+		// The server may have stopped before the header was complete
+		if(heldResponse != null) {
+			try {
+				classifyResponse();
+			} catch (IOException e) {
+				System.out.println("Error: Failed to buffer response.");
+				e.printStackTrace();
+			}
+		}
+		WebProxyCachedObject cachedObject = null;
+		if(filename != null && WebProxyThread.isCacheable(responseHeader, requestParser)) {
+			cachedObject = new WebProxyCachedObject(WebProxyThread.getServerTime(), filename, isText, framing.isComplete());
+			cachedObject.setFreshness(responseHeader);
+			cachedObject.setVariant(responseHeader, requestParser);
+			cachedObject.setLayout(cacheHeaderLength, responseHeader);
+		}
+		// A response cut short by the server is only kept as the start of the object when it can be resumed
+		boolean whole = framing.isComplete() || (responseHeader != null && !framing.isDelimited() && !framing.isMalformed());
+		if(cachedObject != null && (whole || WebProxyThread.isResumable(cachedObject, filename))) {
+			WebProxyThread.cache.put(URL, cachedObject);
+		} else if(filename != null) {
+			new File(filename).delete();
+		}
+		filename = null;
+
+		if(!isText) {
+			// Whatever was held back while the header was incomplete still goes to the client
+			if(heldPrefix != null) sendToClient(new ByteBuffer[] {heldPrefix});
+			else close();
+			return;
+		}
+		if(textCache.isSpilled()) {
+			censorSpilled();
+			return;
+		}
+		try {
+			// A response without a body (e.g. to HEAD) keeps its header as it is
+			byte[] text = textCache.getMemory().toByteArray();
+			textCache.release();
+			if(framing.hasBody()) sendToClient(WebProxyCachedObject.CensoredText.censor(text, censor).toClosingResponse());
+			else sendToClient(text);
+		} catch (IOException e) {
+			System.out.println("Error: Failed to censor response.");
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Censors a text response that spilled to its file off the event loop, into another
+	 * file, then sends the censored response from that file as a cached object is sent
+	 */
+	private void censorSpilled() {
+		enterState(State.WAITING, connTimeout);
+		final WebProxyTextBuffer received = textCache;
+		final WebProxyTextBuffer censored = new WebProxyTextBuffer(WebProxyThread.cache.newStagingFile());
+		censoredText = censored;
+		WebProxyEventLoop.blockingTasks.execute(new Runnable() {
+			public void run() {
+				byte[] header = null;
+				boolean failed = false;
+				try (InputStream in = received.openStream()) {
+					header = WebProxyCachedObject.CensoredText.censor(in, censor, censored);
+					censored.flush();
+				} catch (IOException e) {
+					System.out.println("Error: Failed to censor response.");
+					e.printStackTrace();
+					failed = true;
+				}
+				final byte[] censoredHeader = header;
+				final boolean censorFailed = failed;
+				loop.execute(new Runnable() {
+					public void run() {
+						if(state != State.WAITING) return;
+						if(censorFailed) close();
+						else sendCensoredToClient(censoredHeader);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Starts sending a censored text response that was censored into its own buffer
+	 * @param header the censored header up to its last field, or null if the buffer holds the whole response
+	 */
+	private void sendCensoredToClient(byte[] header) {
+		ByteBuffer prefix = ByteBuffer.allocate(0);
+		if(header != null) {
+			byte[] close = WebProxyCachedObject.CensoredText.CONNECTION_CLOSE;
+			prefix = ByteBuffer.allocate(header.length + close.length);
+			prefix.put(header).put(close).flip();
+		}
+		if(censoredText.getFilename() == null) {
+			// Censoring shortened it enough to stay on the heap
+			sendToClient(new ByteBuffer[] {prefix, ByteBuffer.wrap(censoredText.getMemory().toByteArray())});
+			return;
+		}
+		try {
+			cachedFile = FileChannel.open(Paths.get(censoredText.getFilename()), StandardOpenOption.READ);
+			cachedPrefix = prefix;
+			cachedEnd = censoredText.size();
+			enterState(State.SENDING_CACHED, connTimeout);
+			clientKey.interestOps(SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			System.out.println("Error: Failed to open censored response.");
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Writes whatever is pending for the client
+	 * @throws IOException
+	 */
+	private void writeToClient() throws IOException {
+		switch(state) {
+		case RELAYING_RESPONSE:
+			if(!relayToClient()) return;
+			response.clear();
+			draining = false;
+			if(framing.isComplete() || framing.isMalformed()) {
+				finishResponse();
+				break;
+			}
+			clientKey.interestOps(0);
+			serverKey.interestOps(SelectionKey.OP_READ);
+			deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connTimeout);
+			break;
+		case SENDING_RESPONSE:
+			sent(clientChannel.write(pendingResponse));
+			if(!pendingResponse[pendingResponse.length - 1].hasRemaining()) close();
+			break;
+		case SENDING_CACHED:
+			while(true) {
+				if(cachedPrefix != null && cachedPrefix.hasRemaining()) {
+					sent(clientChannel.write(cachedPrefix));
+					if(cachedPrefix.hasRemaining()) return;
+				}
+				long position = cachedFile.position();
+				if(position < cachedEnd) {
+					long sent = cachedFile.transferTo(position, cachedEnd - position, clientChannel);
+					sent(sent);
+					position += sent;
+					cachedFile.position(position);
+					if(position < cachedEnd) return;
+				}
+				if(!nextCachedRange()) {
+					close();
+					return;
+				}
+			}
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Queues a whole response to be written to the client, then closes the connection
+	 * @param bytes
+	 */
+	private void sendToClient(byte[] bytes) {
+		sendToClient(new ByteBuffer[] {ByteBuffer.wrap(bytes)});
+	}
+
+	/**
+	 * Queues the parts of a whole response to be written to the client with
+	 * gathering writes, then closes the connection
+	 * @param parts
+	 */
+	private void sendToClient(ByteBuffer[] parts) {
+		pendingResponse = parts;
+		enterState(State.SENDING_RESPONSE, connTimeout);
+		clientKey.interestOps(SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Counts bytes written to the client
+	 * @param bytes
+	 */
+	private void sent(long bytes) {
+		bytesSent += bytes;
+		WebProxyMetrics.bytesSent.add(bytes);
+	}
+
+	/**
+	 * Sends a 502 Response to the client
+	 */
+	private void send502Response() {
+		System.out.println("Error: Unknown host, sending 502 and closing socket.");
+		WebProxyMetrics.badGateways.increment();
+		status = 502;
+		closeServer();
+		sendToClient(WebProxyThread.get502ErrorMessage());
+	}
+
+	/**
+	 * Moves to the given state with a deadline of timeoutMillis from now
+	 * @param next
+	 * @param timeoutMillis
+	 */
+	private void enterState(State next, long timeoutMillis) {
+		state = next;
+		deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/**
+	 * Attempts to close the connection to the remote server
+	 */
+	private void closeServer() {
+		if(serverChannel == null) return;
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to close server channel.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Attempts to close the cache file being written
+	 */
+	private void closeCacheFile() {
+		if(thisCache == null) return;
+		try {
+			thisCache.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		thisCache = null;
+	}
+
+	/**
+	 * Attempts to close every channel and file held by this handler
+	 */
+	public void close() {
+		if(state == State.CLOSED) return;
+		state = State.CLOSED;
+		WebProxyMetrics.activeConnections.decrement();
+		// A tunnel has already recorded its request, as it outlasts it
+		if(requestParser.isHeaderComplete() && tunnel == null) totalMicros = WebProxyMetrics.total.recordSince(requestStart);
+		if(requestParser.isHeaderComplete() || requestParser.isInvalid()) logAccess();
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Closing channels...");
+		if(tunnel != null) tunnel.close();
+		closeServer();
+		closeCacheFile();
+		// A response cut short is not cached
+		if(filename != null) new File(filename).delete();
+		if(textCache != null) textCache.close();
+		if(censoredText != null) censoredText.close();
+		try {
+			if(cachedFile != null) cachedFile.close();
+			clientChannel.close();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to close channel(s).");
+			e.printStackTrace();
+		}
+		// Nothing reads the buffers once the channels are closed
+		WebProxyBufferPool.HEAP.release(request);
+		WebProxyBufferPool.HEAP.release(response);
+		request = response = null;
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Done.");
+	}
+
+	/**
+	 * Hands the outcome of the request to the access log, if there is one
+	 */
+	private void logAccess() {
+		if(!WebProxyLog.ACCESS) return;
+		WebProxyLog.Access access = new WebProxyLog.Access(clientChannel.socket().getInetAddress(), requestParser);
+		access.status = status;
+		access.cache = cacheResult;
+		access.bytes = bytesSent;
+		access.upstream = serverHost;
+		access.upstreamPort = serverPort;
+		access.totalMicros = totalMicros;
+		access.connectMicros = connectMicros;
+		access.firstByteMicros = firstByteMicros;
+		WebProxyLog.access(access);
+	}
+}
@@ -0,0 +1,67 @@
+package webproxy;
+
+import java.io.*;
+
+public class WebProxyChunkedStream extends FilterOutputStream {
+
+	// Ends a chunk size line or chunk
+	private static final byte[] CRLF = "\r\n".getBytes();
+
+	// The last chunk, with no trailer
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+
+	// Digits of a chunk size
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	// Chunk size line, written from its end, and a single byte, reused for every write
+	private byte[] sizeLine = new byte[10], single = new byte[1];
+
+	/**
+	 * Constructor: takes in the stream receiving the chunked bytes
+	 * @param out
+	 */
+	public WebProxyChunkedStream(OutputStream out) {
+		super(out);
+	}
+
+	/**
+	 * Writes a single byte as a chunk
+	 * @param b
+	 * @throws IOException
+	 */
+	public void write(int b) throws IOException {
+		single[0] = (byte) b;
+		write(single, 0, 1);
+	}
+
+	/**
+	 * Writes bytes as one chunk
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		// An empty chunk would end the body
+		if(len == 0) return;
+		int start = sizeLine.length - 2;
+		sizeLine[start] = '\r';
+		sizeLine[start + 1] = '\n';
+		int size = len;
+		do {
+			sizeLine[--start] = HEX[size & 0xf];
+			size >>>= 4;
+		} while(size != 0);
+		out.write(sizeLine, start, sizeLine.length - start);
+		out.write(b, off, len);
+		out.write(CRLF);
+	}
+
+	/**
+	 * Writes the last chunk, ending the body
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		out.write(LAST_CHUNK);
+	}
+}
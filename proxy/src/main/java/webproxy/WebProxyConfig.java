@@ -0,0 +1,74 @@
+package webproxy;
+
+import java.util.*;
+
+public class WebProxyConfig {
+	// Options given on the command line as --name=value
+	private static Properties options = new Properties();
+
+	/**
+	 * Parses the --name=value options in args, starting from the given index
+	 * @param args
+	 * @param start
+	 */
+	static void parse(String[] args, int start) {
+		for(int i = start; i < args.length; i++) {
+			String arg = args[i];
+			int separator = arg.indexOf('=');
+			if(!arg.startsWith("--") || separator < 0) {
+				System.out.println("Warning: Ignoring unrecognised argument " + arg);
+				continue;
+			}
+			options.setProperty(arg.substring(2, separator), arg.substring(separator + 1));
+		}
+	}
+
+	/**
+	 * Returns the value of an option
+	 * @param name
+	 * @param defaultVal
+	 * @return the value of the option, or defaultVal if it was not given
+	 */
+	static String getString(String name, String defaultVal) {
+		return options.getProperty(name, defaultVal);
+	}
+
+	/**
+	 * Returns the integer value of an option
+	 * @param name
+	 * @param defaultVal
+	 * @return the value of the option, or defaultVal if it was not given or is not an integer
+	 */
+	static int getInt(String name, int defaultVal) {
+		return (int) getLong(name, defaultVal);
+	}
+
+	/**
+	 * Returns the long value of an option
+	 * @param name
+	 * @param defaultVal
+	 * @return the value of the option, or defaultVal if it was not given or is not an integer
+	 */
+	static long getLong(String name, long defaultVal) {
+		String value = options.getProperty(name);
+		if(value == null) return defaultVal;
+		try {
+			return Long.parseLong(value.trim());
+		} catch(NumberFormatException e) {
+			System.out.println("Error: Option " + name + " must be an integer, using " + defaultVal + ".");
+			return defaultVal;
+		}
+	}
+
+	/**
+	 * Returns the boolean value of an option
+	 * @param name
+	 * @param defaultVal
+	 * @return the value of the option, or defaultVal if it was not given
+	 */
+	static boolean getBoolean(String name, boolean defaultVal) {
+		String value = options.getProperty(name);
+		if(value == null) return defaultVal;
+		return Boolean.parseBoolean(value.trim());
+	}
+}
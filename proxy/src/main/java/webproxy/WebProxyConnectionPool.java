@@ -0,0 +1,148 @@
+package webproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class WebProxyConnectionPool {
+
+	// An idle connection and the time (System.nanoTime) it was returned to the pool
+	private static class IdleConnection {
+		Socket socket;
+		long idleSince;
+
+		IdleConnection(Socket socket, long idleSince) {
+			this.socket = socket;
+			this.idleSince = idleSince;
+		}
+	}
+
+	// Idle connections per host:port, most recently used first
+	private Map<String, Deque<IdleConnection>> idle = new HashMap<String, Deque<IdleConnection>>();
+	private int idleCount = 0;
+
+	// Limits of this pool
+	private int maxIdle, maxPerHost;
+	private long idleTtl;
+
+	/**
+	 * Constructor: takes in the maximum number of idle connections in total and per host,
+	 * and how long in ms a connection may stay idle before it is closed
+	 * @param maxIdle
+	 * @param maxPerHost
+	 * @param idleTtl
+	 */
+	public WebProxyConnectionPool(int maxIdle, int maxPerHost, long idleTtl) {
+		this.maxIdle = maxIdle;
+		this.maxPerHost = maxPerHost;
+		this.idleTtl = TimeUnit.MILLISECONDS.toNanos(idleTtl);
+		if(maxIdle <= 0 || idleTtl <= 0) return;
+
+		// Close connections that outlived their TTL even if their host is never requested again
+		ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "WebProxyConnectionPoolCleaner");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		cleaner.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				closeExpired();
+			}
+		}, idleTtl, idleTtl, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Takes an idle connection to the given host out of the pool
+	 * @param host
+	 * @param port
+	 * @return an open connection, or null if none is idle
+	 */
+	Socket acquire(String host, int port) {
+		List<Socket> expired = new ArrayList<Socket>();
+		Socket socket = null;
+		long now = System.nanoTime();
+		synchronized(this) {
+			Deque<IdleConnection> connections = idle.get(key(host, port));
+			while(socket == null && connections != null && !connections.isEmpty()) {
+				IdleConnection connection = connections.pollFirst();
+				idleCount--;
+				if(now - connection.idleSince > idleTtl || connection.socket.isClosed()) expired.add(connection.socket);
+				else socket = connection.socket;
+			}
+		}
+		closeAll(expired);
+		return socket;
+	}
+
+	/**
+	 * Returns a connection to the pool, or closes it if the pool is full
+	 * @param host
+	 * @param port
+	 * @param socket
+	 */
+	void release(String host, int port, Socket socket) {
+		if(socket.isClosed()) return;
+		synchronized(this) {
+			String key = key(host, port);
+			Deque<IdleConnection> connections = idle.get(key);
+			if(connections == null) {
+				connections = new ArrayDeque<IdleConnection>();
+				idle.put(key, connections);
+			}
+			if(idleCount < maxIdle && connections.size() < maxPerHost) {
+				connections.addFirst(new IdleConnection(socket, System.nanoTime()));
+				idleCount++;
+				return;
+			}
+		}
+		closeAll(Collections.singletonList(socket));
+	}
+
+	/**
+	 * Closes every idle connection that outlived its TTL
+	 */
+	void closeExpired() {
+		List<Socket> expired = new ArrayList<Socket>();
+		long now = System.nanoTime();
+		synchronized(this) {
+			Iterator<Deque<IdleConnection>> hosts = idle.values().iterator();
+			while(hosts.hasNext()) {
+				Deque<IdleConnection> connections = hosts.next();
+				// The oldest connections are at the end
+				while(!connections.isEmpty() && now - connections.peekLast().idleSince > idleTtl) {
+					expired.add(connections.pollLast().socket);
+					idleCount--;
+				}
+				if(connections.isEmpty()) hosts.remove();
+			}
+		}
+		closeAll(expired);
+	}
+
+	/**
+	 * Returns the pool key of a host and port
+	 * @param host
+	 * @param port
+	 * @return the key (e.g. google.com:80)
+	 */
+	private static String key(String host, int port) {
+		return host.toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * Attempts to close the given connections
+	 * @param sockets
+	 */
+	private static void closeAll(List<Socket> sockets) {
+		for(Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
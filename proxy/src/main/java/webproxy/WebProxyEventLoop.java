@@ -0,0 +1,131 @@
+package webproxy;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class WebProxyEventLoop extends Thread {
+
+	// Pool shared by all loops for the few steps that can only block,
+	// i.e. host name resolution and cache revalidation
+	static ExecutorService blockingTasks = Executors.newFixedThreadPool(
+			WebProxyConfig.getInt("blocking-threads", 4), new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "WebProxyBlockingTask");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	// Maximum time in ms to wait in select() before checking for timeouts
+	private static final long SELECT_TIMEOUT = 250;
+
+	// Instance variables
+	private Selector selector = null;
+	private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private WebProxyCensor censor = null;
+
+	/**
+	 * Constructor: takes in an id and censor
+	 * and opens the selector for this event loop
+	 * @param id
+	 * @param censor
+	 * @throws IOException
+	 */
+	public WebProxyEventLoop(int id, WebProxyCensor censor) throws IOException {
+		super("WebProxyEventLoop-" + id);
+		this.censor = censor;
+		selector = Selector.open();
+	}
+
+	/**
+	 * Hands a newly accepted client channel over to this event loop
+	 * @param client
+	 */
+	public void register(final SocketChannel client) {
+		execute(new Runnable() {
+			public void run() {
+				new WebProxyChannelHandler(WebProxyEventLoop.this, client, censor).start();
+			}
+		});
+	}
+
+	/**
+	 * Queues a task to be run on this event loop's thread
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Returns the selector of this event loop
+	 * @return the selector of this event loop
+	 */
+	Selector selector() {
+		return selector;
+	}
+
+	/**
+	 * Waits for ready channels and dispatches them to their handlers
+	 */
+	public void run() {
+		while (true) {
+			try {
+				selector.select(SELECT_TIMEOUT);
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			runTasks();
+			handleSelectedKeys();
+			checkTimeouts();
+		}
+	}
+
+	/**
+	 * Runs every task queued by other threads
+	 */
+	private void runTasks() {
+		Runnable task;
+		while((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Dispatches every selected key to the handler attached to it
+	 */
+	private void handleSelectedKeys() {
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while(keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			WebProxyChannelHandler handler = (WebProxyChannelHandler) key.attachment();
+			try {
+				handler.handle(key);
+			} catch (Exception e) {
+				System.out.println("Error: Failed to handle channel event.");
+				e.printStackTrace();
+				handler.close();
+			}
+		}
+	}
+
+	/**
+	 * Lets every handler of this event loop check whether it has timed out
+	 */
+	private void checkTimeouts() {
+		long now = System.nanoTime();
+		for(SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+			WebProxyChannelHandler handler = (WebProxyChannelHandler) key.attachment();
+			if(handler != null) handler.checkTimeout(now);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package webproxy;
+
+import java.util.*;
+
+public class WebProxyHeader {
+	// The request or status line
+	private String startLine = "";
+
+	// Header fields as {name, value} pairs, in the order they were received
+	private List<String[]> fields = new ArrayList<String[]>();
+
+	/**
+	 * Parses a header block (without the body)
+	 * @param header
+	 * @return the parsed header
+	 */
+	static WebProxyHeader parse(String header) {
+		WebProxyHeader result = new WebProxyHeader();
+		String[] lines = header.split("\\r?\\n");
+		result.startLine = lines[0];
+		for(int i = 1; i < lines.length; i++) {
+			if(lines[i].isEmpty()) break;
+			String[] keyVal = lines[i].split(":\\s*", 2);
+			if(keyVal.length == 2) result.fields.add(keyVal);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the index right after the double CRLF ending the header
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return the index where the body starts, or -1 if the header is incomplete
+	 */
+	static int indexOfBody(byte[] bytes, int offset, int length) {
+		for(int i = offset + 3; i < offset + length; i++) {
+			if(bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') return i + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the request or status line
+	 * @return the start line
+	 */
+	String getStartLine() {
+		return startLine;
+	}
+
+	/**
+	 * Replaces the request or status line
+	 * @param startLine
+	 */
+	void setStartLine(String startLine) {
+		this.startLine = startLine;
+	}
+
+	/**
+	 * Returns the status code of a response header
+	 * @return the status code, or -1 if this is not a valid status line
+	 */
+	int getStatusCode() {
+		String[] status = startLine.split("\\s+", 3);
+		if(status.length < 2 || !status[0].startsWith("HTTP/")) return -1;
+		try {
+			return Integer.parseInt(status[1]);
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the HTTP version of a request or response header
+	 * @return the HTTP version (e.g. HTTP/1.1)
+	 */
+	String getVersion() {
+		String[] parts = startLine.split("\\s+");
+		if(parts[0].startsWith("HTTP/")) return parts[0];
+		return parts[parts.length - 1];
+	}
+
+	/**
+	 * Returns the value of the first field with the given name
+	 * @param name
+	 * @return the value of the field, or null if there is no such field
+	 */
+	String get(String name) {
+		for(String[] field : fields) {
+			if(field[0].equalsIgnoreCase(name)) return field[1];
+		}
+		return null;
+	}
+
+	/**
+	 * Checks if a comma separated field (e.g. Connection) contains a token
+	 * @param name
+	 * @param token
+	 * @return true if any field with the given name lists the token, false otherwise
+	 */
+	boolean hasToken(String name, String token) {
+		for(String[] field : fields) {
+			if(!field[0].equalsIgnoreCase(name)) continue;
+			for(String value : field[1].split(",")) {
+				if(value.trim().equalsIgnoreCase(token)) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the value of the Content-Length field
+	 * @return the content length, or -1 if it is missing or invalid
+	 */
+	long getContentLength() {
+		String value = get("Content-Length");
+		if(value == null) return -1;
+		try {
+			return Long.parseLong(value.trim());
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Checks if the body is sent with chunked transfer coding
+	 * @return true if the body is chunked, false otherwise
+	 */
+	boolean isChunked() {
+		return hasToken("Transfer-Encoding", "chunked");
+	}
+
+	/**
+	 * Replaces every field with the given name by a single field
+	 * @param name
+	 * @param value
+	 */
+	void set(String name, String value) {
+		remove(name);
+		fields.add(new String[] {name, value});
+	}
+
+	/**
+	 * Removes every field with the given name
+	 * @param name
+	 */
+	void remove(String name) {
+		Iterator<String[]> iterator = fields.iterator();
+		while(iterator.hasNext()) {
+			if(iterator.next()[0].equalsIgnoreCase(name)) iterator.remove();
+		}
+	}
+
+	/**
+	 * Returns the header block, including the double CRLF
+	 * @return the header in byte array
+	 */
+	byte[] toBytes() {
+		StringBuilder header = new StringBuilder(startLine).append("\r\n");
+		for(String[] field : fields) {
+			header.append(field[0]).append(": ").append(field[1]).append("\r\n");
+		}
+		return header.append("\r\n").toString().getBytes();
+	}
+}
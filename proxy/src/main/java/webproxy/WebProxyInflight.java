@@ -0,0 +1,108 @@
+package webproxy;
+
+import java.io.*;
+import java.nio.file.*;
+
+public class WebProxyInflight {
+
+	// Cache file being written by the task fetching the object, and how many
+	// bytes of it have been written so far
+	private String filename = null;
+	private long written = 0;
+	private boolean finished = false;
+
+	/**
+	 * Records the cache file the fetched response is written to
+	 * @param filename
+	 */
+	synchronized void start(String filename) {
+		this.filename = filename;
+		notifyAll();
+	}
+
+	/**
+	 * Records bytes written to the cache file, waking up the tasks waiting for them
+	 * @param length
+	 */
+	synchronized void wrote(int length) {
+		written += length;
+		notifyAll();
+	}
+
+	/**
+	 * Records that no more bytes will be written, whether the fetch succeeded or not
+	 */
+	synchronized void finish() {
+		finished = true;
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the first bytes of the response and opens the cache file,
+	 * to be read as the rest of the response is written
+	 * @param timeout in ms to wait for bytes before giving up
+	 * @return a stream of the response, or null if the fetch ended without one
+	 */
+	InputStream open(long timeout) {
+		try {
+			if(await(0, timeout) <= 0) return null;
+			return new Tail(Files.newInputStream(Paths.get(filename)), timeout);
+		} catch (NoSuchFileException e) {
+			// Not cached after all, and already deleted
+			return null;
+		} catch (IOException e) {
+			System.out.println("Error: Failed to follow fetch of: " + filename);
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Waits until bytes beyond the given position have been written
+	 * @param position
+	 * @param timeout in ms to wait for bytes before giving up
+	 * @return the number of bytes that can be read, or 0 if no more will be written
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	private synchronized long await(long position, long timeout) throws InterruptedIOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long now;
+		while(written <= position && !finished && (now = System.currentTimeMillis()) < deadline) {
+			try {
+				wait(deadline - now);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+		return written - position;
+	}
+
+	// Reads the cache file up to what has been written, waiting for more until the fetch finishes
+	private class Tail extends InputStream {
+		private InputStream file;
+		private long position = 0, timeout;
+		private byte[] single = new byte[1];
+
+		Tail(InputStream file, long timeout) {
+			this.file = file;
+			this.timeout = timeout;
+		}
+
+		public int read() throws IOException {
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0) return 0;
+			long available = await(position, timeout);
+			if(available <= 0) return -1;
+			int bytes_length = file.read(b, off, (int) Math.min(len, available));
+			if(bytes_length > 0) position += bytes_length;
+			return bytes_length;
+		}
+
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+}
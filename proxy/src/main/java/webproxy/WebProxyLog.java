@@ -0,0 +1,281 @@
+package webproxy;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log and debug trace of the proxy. Serving threads only put their
+ * records into a bounded lock-free ring, which a single background writer
+ * drains in batches, formatting each batch and writing it with one write.
+ * A record that finds the ring full is dropped and counted rather than
+ * holding up the request. Debug tracing is a compile-time constant, so
+ * javac drops every call site guarded by DEBUG when it is off, message
+ * formatting included; turning it on takes a rebuild.
+ */
+public class WebProxyLog {
+
+	// Whether per-request trace messages are written to the standard output.
+	// A literal, so that it stays a compile-time constant: set it to true and rebuild to trace
+	static final boolean DEBUG = false;
+
+	// Access log file, or an empty path to keep no access log
+	private static final String ACCESS_LOG = WebProxyConfig.getString("access-log", "access.log");
+	static final boolean ACCESS = !ACCESS_LOG.isEmpty();
+
+	// Cache results recorded in the access log
+	static final String HIT = "HIT", STALE = "STALE", REVALIDATED = "REVALIDATED", MISS = "MISS", COALESCED = "COALESCED",
+			PARTIAL = "PARTIAL", PASS = "PASS", TUNNEL = "TUNNEL", NONE = "NONE";
+
+	// Most records taken from the ring per write, and how long the writer waits when it is empty
+	private static final int BATCH_SIZE = 512;
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private static final WebProxyLog LOG = new WebProxyLog(WebProxyConfig.getInt("log-buffer", 16384));
+
+	/**
+	 * One line of the access log, filled in while the request is served
+	 */
+	static class Access {
+		// Time (System.currentTimeMillis) the response was complete, set when it is logged
+		long time = 0;
+		InetAddress client = null;
+		String method = null, url = null, cache = NONE;
+		// Status sent to the client, or 0 if no response was
+		int status = 0;
+		// Bytes sent to the client for this request
+		long bytes = 0;
+		// Remote server, or null if the request never reached one
+		String upstream = null;
+		int upstreamPort = 0;
+		// Times in microseconds, or -1 for a step the request did not take
+		long totalMicros = -1, connectMicros = -1, firstByteMicros = -1;
+
+		/**
+		 * Constructor: takes in the client and the parsed request
+		 * @param client
+		 * @param requestParser
+		 */
+		Access(InetAddress client, WebProxyRequestParser requestParser) {
+			this.client = client;
+			this.method = requestParser.getMethod();
+			this.url = requestParser.getTarget();
+		}
+	}
+
+	// Ring of records: producers claim slots by moving the tail, and publish
+	// a record by filling its slot, which the writer empties before moving the head
+	private final AtomicReferenceArray<Object> slots;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head = 0;
+
+	// Where the access log and the debug trace are written
+	private FileChannel accessLog = null;
+	private OutputStream trace = new FileOutputStream(FileDescriptor.out);
+
+	// Formats the records of a batch, used by the writer only
+	private StringBuilder accessLines = new StringBuilder(), traceLines = new StringBuilder();
+
+	// Records written, and those dropped because the ring was full
+	final LongAdder written = new LongAdder(), dropped = new LongAdder();
+
+	/**
+	 * Constructor: takes in the number of records the ring holds, rounded up to a power
+	 * of two, then opens the access log and starts the writer
+	 * @param capacity
+	 */
+	private WebProxyLog(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		slots = new AtomicReferenceArray<Object>(size);
+		mask = size - 1;
+		if(ACCESS) {
+			try {
+				accessLog = FileChannel.open(Paths.get(ACCESS_LOG),
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			} catch (IOException e) {
+				System.out.println("Error: Failed to open access log " + ACCESS_LOG + ".");
+				e.printStackTrace();
+			}
+		}
+		if(!ACCESS && !DEBUG) return;
+
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				while(true) {
+					if(drain() == 0) LockSupport.parkNanos(IDLE_NANOS);
+				}
+			}
+		}, "WebProxyLogWriter");
+		writer.setDaemon(true);
+		writer.start();
+		// Whatever is still in the ring when the proxy stops is written out
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				while(drain() > 0);
+			}
+		}, "WebProxyLogFlush"));
+	}
+
+	/**
+	 * Logs a served request
+	 * @param access the record, which must not be changed afterwards
+	 */
+	static void access(Access access) {
+		access.time = System.currentTimeMillis();
+		LOG.offer(access);
+	}
+
+	/**
+	 * Writes a trace message. Callers check DEBUG first, so that the
+	 * message is not even built when tracing is off
+	 * @param message
+	 */
+	static void debug(String message) {
+		LOG.offer("[" + Thread.currentThread().getName() + "] " + message);
+	}
+
+	/**
+	 * Returns the number of records written
+	 * @return the count
+	 */
+	static long getWritten() {
+		return LOG.written.sum();
+	}
+
+	/**
+	 * Returns the number of records dropped because the writer fell behind
+	 * @return the count
+	 */
+	static long getDropped() {
+		return LOG.dropped.sum();
+	}
+
+	/**
+	 * Puts a record into the ring unless it is full
+	 * @param record an Access or a trace line
+	 */
+	private void offer(Object record) {
+		long slot;
+		do {
+			slot = tail.get();
+			if(slot - head >= slots.length()) {
+				dropped.increment();
+				return;
+			}
+		} while(!tail.compareAndSet(slot, slot + 1));
+		slots.lazySet((int) slot & mask, record);
+	}
+
+	/**
+	 * Takes the record at the head of the ring. Only the writer takes records
+	 * @return the record, or null if the next one has not been published yet
+	 */
+	private Object poll() {
+		int index = (int) head & mask;
+		Object record = slots.get(index);
+		if(record == null) return null;
+		slots.lazySet(index, null);
+		head = head + 1;
+		return record;
+	}
+
+	/**
+	 * Formats up to a batch of records and writes each kind of record at once
+	 * @return the number of records taken from the ring
+	 */
+	private synchronized int drain() {
+		int count = 0;
+		Object record;
+		while(count < BATCH_SIZE && (record = poll()) != null) {
+			if(record instanceof Access) format((Access) record, accessLines);
+			else traceLines.append(record).append('\n');
+			count++;
+		}
+		if(count == 0) return 0;
+		try {
+			if(accessLines.length() > 0 && accessLog != null) {
+				ByteBuffer bytes = ByteBuffer.wrap(accessLines.toString().getBytes(StandardCharsets.UTF_8));
+				while(bytes.hasRemaining()) accessLog.write(bytes);
+			}
+			if(traceLines.length() > 0) {
+				trace.write(traceLines.toString().getBytes(StandardCharsets.UTF_8));
+				trace.flush();
+			}
+		} catch (IOException e) {
+			System.out.println("Error: Failed to write log records.");
+			e.printStackTrace();
+		}
+		accessLines.setLength(0);
+		traceLines.setLength(0);
+		written.add(count);
+		return count;
+	}
+
+	/**
+	 * Appends an access record as a line of JSON
+	 * @param access
+	 * @param out
+	 */
+	private static void format(Access access, StringBuilder out) {
+		out.append("{\"time\":\"");
+		DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(access.time), out);
+		out.append("\",\"client\":");
+		string(out, access.client == null ? null : access.client.getHostAddress());
+		out.append(",\"method\":");
+		string(out, access.method);
+		out.append(",\"url\":");
+		string(out, access.url);
+		out.append(",\"status\":").append(access.status);
+		out.append(",\"bytes\":").append(access.bytes);
+		out.append(",\"cache\":");
+		string(out, access.cache);
+		out.append(",\"upstream\":");
+		string(out, access.upstream == null ? null : access.upstream + ":" + access.upstreamPort);
+		out.append(",\"total_us\":");
+		micros(out, access.totalMicros);
+		out.append(",\"connect_us\":");
+		micros(out, access.connectMicros);
+		out.append(",\"first_byte_us\":");
+		micros(out, access.firstByteMicros);
+		out.append("}\n");
+	}
+
+	/**
+	 * Appends a JSON string, or null
+	 * @param out
+	 * @param value
+	 */
+	private static void string(StringBuilder out, String value) {
+		if(value == null) {
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\') out.append('\\').append(c);
+			else if(c < 0x20) out.append(String.format("\\u%04x", (int) c));
+			else out.append(c);
+		}
+		out.append('"');
+	}
+
+	/**
+	 * Appends a time, or null for a step that was not taken
+	 * @param out
+	 * @param micros
+	 */
+	private static void micros(StringBuilder out, long micros) {
+		if(micros < 0) out.append("null");
+		else out.append(micros);
+	}
+}
@@ -0,0 +1,453 @@
+package webproxy;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+public class WebProxyMetrics implements WebProxyMetricsMXBean {
+
+	/**
+	 * Latency histogram in the manner of HdrHistogram: values in microseconds fall into
+	 * buckets whose width doubles with every power of two, 16 to a power, so every
+	 * percentile is within about 6% of the true value while recording stays a single
+	 * atomic increment
+	 */
+	static class Histogram {
+		// Number of buckets per power of two, and how many powers are counted (up to about 38 hours)
+		private static final int SUB_BUCKETS = 16;
+		private static final int MAX_EXPONENT = 32;
+		private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 5)) - 1;
+
+		final String name, help;
+		private AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT + 2) * SUB_BUCKETS);
+		private LongAdder count = new LongAdder(), sum = new LongAdder();
+		private AtomicLong max = new AtomicLong();
+
+		/**
+		 * Constructor: takes in the metric name and its description
+		 * @param name
+		 * @param help
+		 */
+		Histogram(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		/**
+		 * Records the time since a given start
+		 * @param startNanos a System.nanoTime() value
+		 * @return the time recorded, in microseconds
+		 */
+		long recordSince(long startNanos) {
+			long micros = (System.nanoTime() - startNanos) / 1000;
+			record(micros);
+			return micros;
+		}
+
+		/**
+		 * Records a value
+		 * @param micros
+		 */
+		void record(long micros) {
+			micros = Math.max(0, Math.min(micros, MAX_VALUE));
+			counts.incrementAndGet(index(micros));
+			count.increment();
+			sum.add(micros);
+			long current;
+			while(micros > (current = max.get()) && !max.compareAndSet(current, micros));
+		}
+
+		/**
+		 * Returns the number of recorded values
+		 * @return the count
+		 */
+		long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * Returns the sum of the recorded values
+		 * @return the sum in microseconds
+		 */
+		long getSum() {
+			return sum.sum();
+		}
+
+		/**
+		 * Returns the value below which the given share of the recorded values fall
+		 * @param quantile between 0 and 1
+		 * @return the highest value of the bucket holding the quantile, in microseconds
+		 */
+		long getValueAt(double quantile) {
+			long total = 0;
+			long[] snapshot = new long[counts.length()];
+			for(int i = 0; i < snapshot.length; i++) total += snapshot[i] = counts.get(i);
+			if(total == 0) return 0;
+			long target = Math.max(1, (long) Math.ceil(quantile * total)), seen = 0;
+			for(int i = 0; i < snapshot.length; i++) {
+				if((seen += snapshot[i]) >= target) return Math.min(highestValue(i), max.get());
+			}
+			return max.get();
+		}
+
+		/**
+		 * Returns the bucket of a value: values below 32 have a bucket each,
+		 * above that every power of two is split into SUB_BUCKETS buckets
+		 * @param value
+		 * @return the index of the bucket
+		 */
+		private static int index(long value) {
+			if(value < 2 * SUB_BUCKETS) return (int) value;
+			int exponent = 59 - Long.numberOfLeadingZeros(value);
+			return exponent * SUB_BUCKETS + (int) (value >>> exponent);
+		}
+
+		/**
+		 * Returns the highest value that falls into a bucket
+		 * @param index
+		 * @return the value
+		 */
+		private static long highestValue(int index) {
+			if(index < 2 * SUB_BUCKETS) return index;
+			int exponent = index / SUB_BUCKETS - 1;
+			long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+			return ((subBucket + 1) << exponent) - 1;
+		}
+	}
+
+	// Path at which local clients can read the metrics
+	static final String PATH = "/__proxy/metrics";
+
+	// Percentiles reported for every timer
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+	private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+	// Timers of the steps of a request
+	static final Histogram parse = new Histogram("webproxy_parse_seconds",
+			"Time from accepting the connection, or from the first byte of a later request, to a parsed request header");
+	static final Histogram cacheLookup = new Histogram("webproxy_cache_lookup_seconds", "Time to look up the cache");
+	static final Histogram revalidation = new Histogram("webproxy_revalidation_seconds",
+			"Time to revalidate a stale cached object with the remote server");
+	static final Histogram upstreamConnect = new Histogram("webproxy_upstream_connect_seconds",
+			"Time to resolve and connect to the remote server");
+	static final Histogram timeToFirstByte = new Histogram("webproxy_upstream_first_byte_seconds",
+			"Time from sending the request to the first byte of the remote server's response");
+	static final Histogram total = new Histogram("webproxy_request_seconds",
+			"Time from accepting the connection, or from the first byte of a later request, to the end of the response");
+	static final Histogram tunnel = new Histogram("webproxy_tunnel_seconds",
+			"Time from establishing a CONNECT tunnel to its close");
+	private static final Histogram[] TIMERS = {parse, cacheLookup, revalidation, upstreamConnect, timeToFirstByte, total, tunnel};
+
+	// Counters
+	static final LongAdder requests = new LongAdder(), cacheHits = new LongAdder(), cacheMisses = new LongAdder(),
+			badGateways = new LongAdder(), bytesReceived = new LongAdder(), bytesSent = new LongAdder(),
+			censorMatches = new LongAdder(), activeConnections = new LongAdder(),
+			tunnels = new LongAdder(), tunnelBytesUp = new LongAdder(), tunnelBytesDown = new LongAdder(),
+			rangeResponses = new LongAdder(), partialFills = new LongAdder(),
+			staleResponses = new LongAdder(), staleOnErrorResponses = new LongAdder();
+
+	/**
+	 * Stream to a client that counts the bytes sent through it
+	 */
+	static class CountingOutputStream extends FilterOutputStream {
+		// Bytes sent to this client, whichever way they were sent
+		long count = 0;
+
+		/**
+		 * Constructor: takes in the client's stream
+		 * @param out
+		 */
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			sent(1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			sent(len);
+		}
+
+		/**
+		 * Counts bytes sent to the client past this stream, straight to its channel
+		 * @param bytes
+		 */
+		void sent(long bytes) {
+			count += bytes;
+			bytesSent.add(bytes);
+		}
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server
+	 */
+	static void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new WebProxyMetrics(), new ObjectName("WebProxy:type=Metrics"));
+		} catch (JMException e) {
+			System.out.println("Error: Failed to register metrics MBean.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Checks if a request asks the proxy itself for its metrics
+	 * @param requestParser holding a complete request header
+	 * @return true if the request is a GET of PATH in origin form, false otherwise
+	 */
+	static boolean isMetricsRequest(WebProxyRequestParser requestParser) {
+		return requestParser.isMethod("GET") && PATH.equals(requestParser.getTarget());
+	}
+
+	/**
+	 * Returns a response with every metric in the Prometheus text format
+	 * @param keepAlive whether the client connection stays open
+	 * @return the response in byte array
+	 */
+	static byte[] getResponse(boolean keepAlive) {
+		byte[] body = format().getBytes();
+		String eol = "\r\n";
+		String header = "HTTP/1.1 200 OK" + eol
+				+ "Content-Type: text/plain; version=0.0.4" + eol
+				+ "Content-Length: " + body.length + eol
+				+ "Cache-Control: no-store" + eol
+				+ (keepAlive ? "" : "Connection: close" + eol) + eol;
+		ByteArrayOutputStream response = new ByteArrayOutputStream(header.length() + body.length);
+		response.write(header.getBytes(), 0, header.length());
+		response.write(body, 0, body.length);
+		return response.toByteArray();
+	}
+
+	/**
+	 * Returns every metric in the Prometheus text format
+	 * @return the metrics
+	 */
+	static String format() {
+		StringBuilder out = new StringBuilder();
+		for(Histogram timer : TIMERS) {
+			out.append("# HELP ").append(timer.name).append(' ').append(timer.help).append('\n');
+			out.append("# TYPE ").append(timer.name).append(" summary\n");
+			for(double quantile : QUANTILES) {
+				out.append(timer.name).append("{quantile=\"").append(quantile).append("\"} ")
+						.append(seconds(timer.getValueAt(quantile))).append('\n');
+			}
+			out.append(timer.name).append("_sum ").append(seconds(timer.getSum())).append('\n');
+			out.append(timer.name).append("_count ").append(timer.getCount()).append('\n');
+		}
+		counter(out, "webproxy_requests_total", "Requests parsed", requests.sum());
+		counter(out, "webproxy_cache_hits_total", "Responses served from the cache", cacheHits.sum());
+		counter(out, "webproxy_cache_misses_total", "Responses fetched from remote servers", cacheMisses.sum());
+		counter(out, "webproxy_cache_range_responses_total", "206 and 416 responses to range requests served from the cache", rangeResponses.sum());
+		counter(out, "webproxy_cache_partial_fills_total", "Partial cached objects whose rest was fetched from remote servers", partialFills.sum());
+		counter(out, "webproxy_cache_stale_responses_total", "Expired objects served while they were refreshed in the background", staleResponses.sum());
+		counter(out, "webproxy_cache_stale_on_error_responses_total", "Expired objects served because their server could not be asked about them", staleOnErrorResponses.sum());
+		counter(out, "webproxy_bad_gateway_total", "502 responses sent", badGateways.sum());
+		counter(out, "webproxy_received_bytes_total", "Bytes received from clients", bytesReceived.sum());
+		counter(out, "webproxy_sent_bytes_total", "Bytes sent to clients", bytesSent.sum());
+		counter(out, "webproxy_censor_matches_total", "Censored words replaced", censorMatches.sum());
+		counter(out, "webproxy_text_buffer_spills_total", "Text responses too long to be buffered on the heap", WebProxyTextBuffer.getSpills());
+		counter(out, "webproxy_tunnels_total", "CONNECT tunnels established", tunnels.sum());
+		counter(out, "webproxy_tunnel_sent_bytes_total", "Bytes relayed from clients to remote servers through tunnels", tunnelBytesUp.sum());
+		counter(out, "webproxy_tunnel_received_bytes_total", "Bytes relayed from remote servers to clients through tunnels", tunnelBytesDown.sum());
+		counter(out, "webproxy_log_records_total", "Access log and trace records written", WebProxyLog.getWritten());
+		counter(out, "webproxy_log_dropped_total", "Access log and trace records dropped because the log writer fell behind", WebProxyLog.getDropped());
+		gauge(out, "webproxy_active_connections", "Client connections being served", activeConnections.sum());
+		gauge(out, "webproxy_text_buffer_bytes", "Bytes of text responses being buffered on the heap", WebProxyTextBuffer.getTotalMemory());
+		gauge(out, "webproxy_jvm_heap_used_bytes", "Heap in use", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+		gauge(out, "webproxy_jvm_threads", "Live platform threads", ManagementFactory.getThreadMXBean().getThreadCount());
+		counter(out, "webproxy_jvm_allocated_bytes_total", "Heap allocated by all threads, or -1 if not measured", getAllocatedBytes());
+
+		WebProxyCache cache = WebProxyThread.cache;
+		counter(out, "webproxy_cache_evictions_total", "Objects evicted from the cache", cache.getEvictions());
+		gauge(out, "webproxy_cache_objects", "Objects in the cache", cache.size());
+		gauge(out, "webproxy_cache_memory_bytes", "Bytes of objects in the memory tier", cache.getMemoryUsed());
+		gauge(out, "webproxy_cache_disk_bytes", "Bytes of objects stored on disk", cache.getDiskUsed());
+		counter(out, "webproxy_cache_memory_hits_total", "Cached objects served from the memory tier", cache.getMemoryHits());
+		counter(out, "webproxy_cache_disk_hits_total", "Cached objects read from disk", cache.getDiskHits());
+		gauge(out, "webproxy_cache_memory_hit_ratio", "Share of cache lookups answered from the memory tier", cache.getMemoryHitRatio());
+		gauge(out, "webproxy_cache_disk_hit_ratio", "Share of cache lookups not answered from the memory tier that were answered from disk", cache.getDiskHitRatio());
+		counter(out, "webproxy_cache_memory_promotions_total", "Objects copied to the memory tier", cache.getPromotions());
+		counter(out, "webproxy_cache_memory_demotions_total", "Objects pushed out of the memory tier by objects hit more often", cache.getDemotions());
+
+		WebProxyResolver resolver = WebProxyThread.resolver;
+		counter(out, "webproxy_dns_hits_total", "Host lookups answered from the resolver cache", resolver.getHits());
+		counter(out, "webproxy_dns_misses_total", "Host lookups that resolved the host", resolver.getMisses());
+		counter(out, "webproxy_dns_negative_hits_total", "Host lookups answered with a cached failure", resolver.getNegativeHits());
+		counter(out, "webproxy_dns_refreshes_total", "Hosts resolved again in the background", resolver.getRefreshes());
+
+		WebProxyRefresher refresher = WebProxyThread.refresher;
+		counter(out, "webproxy_cache_refreshes_total", "Cached objects revalidated in the background", refresher.getRefreshes());
+		counter(out, "webproxy_cache_refreshes_dropped_total", "Background revalidations dropped because too many were waiting", refresher.getDropped());
+
+		for(WebProxyBufferPool pool : new WebProxyBufferPool[] {WebProxyBufferPool.HEAP, WebProxyBufferPool.DIRECT}) {
+			String name = "webproxy_" + pool.name + "_buffer_";
+			counter(out, name + "leases_total", "Buffers leased from the " + pool.name + " buffer pool", pool.leases.sum());
+			counter(out, name + "allocations_total", "Leases the " + pool.name + " buffer pool had to allocate for", pool.allocations.sum());
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Returns the bytes allocated on the heap since the JVM started, which
+	 * divided by the requests served gives the allocation per request
+	 * @return the bytes, or -1 if the JVM does not measure them
+	 */
+	static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+		return ((com.sun.management.ThreadMXBean) threads).getTotalThreadAllocatedBytes();
+	}
+
+	/**
+	 * Appends a counter
+	 * @param out
+	 * @param name
+	 * @param help
+	 * @param value
+	 */
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		metric(out, name, help, "counter", String.valueOf(value));
+	}
+
+	/**
+	 * Appends a gauge
+	 * @param out
+	 * @param name
+	 * @param help
+	 * @param value
+	 */
+	private static void gauge(StringBuilder out, String name, String help, long value) {
+		metric(out, name, help, "gauge", String.valueOf(value));
+	}
+
+	/**
+	 * Appends a gauge whose value is a fraction
+	 * @param out
+	 * @param name
+	 * @param help
+	 * @param value
+	 */
+	private static void gauge(StringBuilder out, String name, String help, double value) {
+		metric(out, name, help, "gauge", String.valueOf(value));
+	}
+
+	/**
+	 * Appends a metric with a single value
+	 * @param out
+	 * @param name
+	 * @param help
+	 * @param type
+	 * @param value
+	 */
+	private static void metric(StringBuilder out, String name, String help, String type, String value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Converts microseconds to the seconds Prometheus expects
+	 * @param micros
+	 * @return the seconds as text
+	 */
+	private static String seconds(long micros) {
+		return String.valueOf(micros / 1e6);
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	public long getBadGateways() {
+		return badGateways.sum();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	public long getCensorMatches() {
+		return censorMatches.sum();
+	}
+
+	public long getActiveConnections() {
+		return activeConnections.sum();
+	}
+
+	public long getTunnels() {
+		return tunnels.sum();
+	}
+
+	public long getTunnelBytesUp() {
+		return tunnelBytesUp.sum();
+	}
+
+	public long getTunnelBytesDown() {
+		return tunnelBytesDown.sum();
+	}
+
+	public long getRangeResponses() {
+		return rangeResponses.sum();
+	}
+
+	public long getPartialFills() {
+		return partialFills.sum();
+	}
+
+	public long getStaleResponses() {
+		return staleResponses.sum() + staleOnErrorResponses.sum();
+	}
+
+	public long getCacheRefreshes() {
+		return WebProxyThread.refresher.getRefreshes();
+	}
+
+	public long getCacheMemoryHits() {
+		return WebProxyThread.cache.getMemoryHits();
+	}
+
+	public long getCacheDiskHits() {
+		return WebProxyThread.cache.getDiskHits();
+	}
+
+	public double getCacheMemoryHitRatio() {
+		return WebProxyThread.cache.getMemoryHitRatio();
+	}
+
+	public double getCacheDiskHitRatio() {
+		return WebProxyThread.cache.getDiskHitRatio();
+	}
+
+	public long getLogRecordsDropped() {
+		return WebProxyLog.getDropped();
+	}
+
+	public Map<String, Long> getLatencyMicros() {
+		Map<String, Long> latencies = new TreeMap<String, Long>();
+		for(Histogram timer : TIMERS) {
+			String name = timer.name.substring("webproxy_".length(), timer.name.length() - "_seconds".length());
+			for(int i = 0; i < QUANTILES.length; i++) {
+				latencies.put(name + "." + QUANTILE_NAMES[i], timer.getValueAt(QUANTILES[i]));
+			}
+			latencies.put(name + ".max", timer.max.get());
+		}
+		return latencies;
+	}
+}
@@ -0,0 +1,56 @@
+package webproxy;
+
+import java.util.Map;
+
+/**
+ * Management interface of the proxy's metrics, registered with the platform
+ * MBean server as WebProxy:type=Metrics
+ */
+public interface WebProxyMetricsMXBean {
+	long getRequests();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	long getBadGateways();
+
+	long getBytesReceived();
+
+	long getBytesSent();
+
+	long getCensorMatches();
+
+	long getActiveConnections();
+
+	long getTunnels();
+
+	long getTunnelBytesUp();
+
+	long getTunnelBytesDown();
+
+	long getRangeResponses();
+
+	long getPartialFills();
+
+	long getStaleResponses();
+
+	long getCacheRefreshes();
+
+	long getCacheMemoryHits();
+
+	long getCacheDiskHits();
+
+	double getCacheMemoryHitRatio();
+
+	double getCacheDiskHitRatio();
+
+	long getLogRecordsDropped();
+
+	/**
+	 * Returns the latency percentiles of every timer in microseconds,
+	 * keyed by timer and percentile (e.g. total.p99)
+	 * @return the percentiles
+	 */
+	Map<String, Long> getLatencyMicros();
+}
@@ -0,0 +1,257 @@
+package webproxy;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class WebProxyRange {
+
+	// Most ranges served in one response, as a request for more gets the whole object instead
+	private static final int MAX_RANGES = 16;
+
+	// Separates the parts of a multipart/byteranges body, chosen once so that it cannot be guessed
+	private static final String BOUNDARY = "webproxy-" + Long.toHexString(new Random().nextLong() | Long.MIN_VALUE);
+
+	// Length of the whole body, and the ranges of it in order, as offsets of their first and last byte
+	private long length = 0;
+	private long[] starts = new long[0], ends = new long[0];
+
+	// Content type of the body, given to every part of a multipart body
+	private String contentType = null;
+
+	/**
+	 * Parses a Range field (e.g. bytes=0-499,-500) against a body of the given
+	 * length. Overlapping and adjacent ranges are merged, in order of their offsets
+	 * @param value the value of the field
+	 * @param length the length of the whole body
+	 * @return the ranges, none if not one of them is satisfiable, or null if the
+	 * field is invalid or asks for too many ranges, in which case it is ignored
+	 */
+	static WebProxyRange parse(String value, long length) {
+		if(value == null) return null;
+		value = value.trim();
+		if(!value.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+		List<long[]> ranges = new ArrayList<long[]>();
+		for(String spec : value.substring(6).split(",")) {
+			spec = spec.trim();
+			if(spec.isEmpty()) continue;
+			int dash = spec.indexOf('-');
+			if(dash < 0) return null;
+			long first = parseNumber(spec.substring(0, dash)), last = parseNumber(spec.substring(dash + 1));
+			if(dash == 0) {
+				// The last bytes of the body (e.g. -500)
+				if(last < 0) return null;
+				if(last > 0 && length > 0) ranges.add(new long[] {Math.max(0, length - last), length - 1});
+			} else {
+				if(first < 0 || (dash < spec.length() - 1 && last < 0) || (last >= 0 && last < first)) return null;
+				if(first < length) ranges.add(new long[] {first, last < 0 ? length - 1 : Math.min(last, length - 1)});
+			}
+			if(ranges.size() > MAX_RANGES) return null;
+		}
+
+		Collections.sort(ranges, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return Long.compare(a[0], b[0]);
+			}
+		});
+		List<long[]> merged = new ArrayList<long[]>();
+		for(long[] range : ranges) {
+			long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if(previous != null && range[0] <= previous[1] + 1) previous[1] = Math.max(previous[1], range[1]);
+			else merged.add(range);
+		}
+
+		WebProxyRange result = new WebProxyRange();
+		result.length = length;
+		result.starts = new long[merged.size()];
+		result.ends = new long[merged.size()];
+		for(int i = 0; i < merged.size(); i++) {
+			result.starts[i] = merged.get(i)[0];
+			result.ends[i] = merged.get(i)[1];
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ranges of a cached body that a GET asks for, unless If-Range
+	 * names another version of the object than the one cached
+	 * @param requestParser holding a complete request header
+	 * @param object
+	 * @param length the length of the whole body
+	 * @return the ranges, or null if the whole object is to be sent
+	 */
+	static WebProxyRange parse(WebProxyRequestParser requestParser, WebProxyCachedObject object, long length) {
+		String range = requestParser.get("Range");
+		if(range == null || !requestParser.isMethod("GET")) return null;
+		if(!ifRangeMatches(requestParser.get("If-Range"), object)) return null;
+		return parse(range, length);
+	}
+
+	/**
+	 * Checks the If-Range field of a request against a cached object, which
+	 * is only current if it carries the very validator the client names
+	 * @param ifRange the value of the field, or null if there is none
+	 * @param object
+	 * @return true if the ranges may be served from the object, false if the whole object has to be
+	 */
+	static boolean ifRangeMatches(String ifRange, WebProxyCachedObject object) {
+		if(ifRange == null) return true;
+		ifRange = ifRange.trim();
+		// Entity tags are compared strongly, so a weak one never matches
+		if(ifRange.startsWith("\"")) return ifRange.equals(object.etag);
+		if(ifRange.startsWith("W/")) return false;
+		return object.lastModified != null && ifRange.equals(object.lastModified.trim());
+	}
+
+	/**
+	 * Returns the number of ranges to serve
+	 * @return the number of ranges, 0 if none is satisfiable
+	 */
+	int size() {
+		return starts.length;
+	}
+
+	/**
+	 * Returns the offset of the first byte of a range
+	 * @param i
+	 * @return the offset in the body
+	 */
+	long getStart(int i) {
+		return starts[i];
+	}
+
+	/**
+	 * Returns the offset of the last byte of a range
+	 * @param i
+	 * @return the offset in the body
+	 */
+	long getEnd(int i) {
+		return ends[i];
+	}
+
+	/**
+	 * Returns the offset after the last byte of every range
+	 * @return the offset in the body
+	 */
+	long getLast() {
+		return starts.length == 0 ? 0 : ends[ends.length - 1] + 1;
+	}
+
+	/**
+	 * Returns the 206 header for the ranges, made from the header of the cached response
+	 * @param header the cached header, which is changed
+	 * @param keepAlive whether the client connection stays open
+	 * @return the header in byte array
+	 */
+	byte[] getResponseHeader(WebProxyHeader header, boolean keepAlive) {
+		contentType = header.get("Content-Type");
+		header.setStartLine("HTTP/1.1 206 Partial Content");
+		header.remove("Transfer-Encoding");
+		header.remove("Keep-Alive");
+		header.remove("Proxy-Connection");
+		if(size() == 1) {
+			header.set("Content-Range", contentRange(0));
+		} else {
+			header.remove("Content-Range");
+			header.set("Content-Type", "multipart/byteranges; boundary=" + BOUNDARY);
+		}
+		header.set("Content-Length", String.valueOf(getBodyLength()));
+		if(keepAlive) header.remove("Connection");
+		else header.set("Connection", "close");
+		return header.toBytes();
+	}
+
+	/**
+	 * Returns what goes before a range in the body: nothing for a single range,
+	 * and the boundary and header of its part for several
+	 * @param i
+	 * @return the bytes to send before the range
+	 */
+	byte[] getPartHeader(int i) {
+		if(size() == 1) return new byte[0];
+		StringBuilder part = new StringBuilder(i == 0 ? "" : "\r\n").append("--").append(BOUNDARY).append("\r\n");
+		if(contentType != null) part.append("Content-Type: ").append(contentType).append("\r\n");
+		return part.append("Content-Range: ").append(contentRange(i)).append("\r\n\r\n").toString().getBytes();
+	}
+
+	/**
+	 * Returns what ends the body: nothing for a single range, and the closing boundary for several
+	 * @return the bytes to send after the last range
+	 */
+	byte[] getTrailer() {
+		if(size() == 1) return new byte[0];
+		return ("\r\n--" + BOUNDARY + "--\r\n").getBytes();
+	}
+
+	/**
+	 * Returns the 206 response for the ranges of a body held in memory, in parts
+	 * for a gathering write, which share the body rather than copy it
+	 * @param header the cached header, which is changed
+	 * @param body the whole body, from its position on
+	 * @param keepAlive whether the client connection stays open
+	 * @return the parts of the response
+	 */
+	ByteBuffer[] getResponse(WebProxyHeader header, ByteBuffer body, boolean keepAlive) {
+		ByteBuffer[] parts = new ByteBuffer[2 * size() + 2];
+		parts[0] = ByteBuffer.wrap(getResponseHeader(header, keepAlive));
+		for(int i = 0; i < size(); i++) {
+			ByteBuffer part = body.duplicate();
+			part.position(body.position() + (int) starts[i]);
+			part.limit(body.position() + (int) ends[i] + 1);
+			parts[2 * i + 1] = ByteBuffer.wrap(getPartHeader(i));
+			parts[2 * i + 2] = part;
+		}
+		parts[parts.length - 1] = ByteBuffer.wrap(getTrailer());
+		return parts;
+	}
+
+	/**
+	 * Returns a 416 response for ranges of which none is satisfiable
+	 * @param length the length of the whole body
+	 * @param keepAlive whether the client connection stays open
+	 * @return the response in byte array
+	 */
+	static byte[] getUnsatisfiableResponse(long length, boolean keepAlive) {
+		String eol = "\r\n";
+		return ("HTTP/1.1 416 Range Not Satisfiable" + eol
+				+ "Content-Range: bytes */" + length + eol
+				+ "Content-Length: 0" + eol
+				+ (keepAlive ? "" : "Connection: close" + eol) + eol).getBytes();
+	}
+
+	/**
+	 * Returns the length of the 206 body, parts and boundaries included
+	 * @return the length in bytes
+	 */
+	private long getBodyLength() {
+		long bodyLength = getTrailer().length;
+		for(int i = 0; i < size(); i++) bodyLength += getPartHeader(i).length + ends[i] - starts[i] + 1;
+		return bodyLength;
+	}
+
+	/**
+	 * Returns the Content-Range of a range (e.g. bytes 0-499/1234)
+	 * @param i
+	 * @return the value of the field
+	 */
+	private String contentRange(int i) {
+		return "bytes " + starts[i] + "-" + ends[i] + "/" + length;
+	}
+
+	/**
+	 * Parses a byte offset
+	 * @param value
+	 * @return the offset, or -1 if the value is empty or not a number
+	 */
+	private static long parseNumber(String value) {
+		value = value.trim();
+		if(value.isEmpty()) return -1;
+		for(int i = 0; i < value.length(); i++) {
+			if(value.charAt(i) < '0' || value.charAt(i) > '9') return -1;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package webproxy;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Revalidates cached objects in the background: stale objects that are served
+ * while they are refreshed, and popular objects shortly before they expire, so
+ * that no client waits for the server on their behalf. At most a fixed number
+ * of refreshes run at once and a bounded number wait, anything beyond that is
+ * dropped and left to the next request.
+ */
+public class WebProxyRefresher {
+
+	private ThreadPoolExecutor executor;
+
+	// Counters
+	private AtomicLong refreshes = new AtomicLong(), dropped = new AtomicLong();
+
+	/**
+	 * Constructor: takes in how many refreshes run at once and how many may wait
+	 * @param threads
+	 * @param queueSize
+	 */
+	public WebProxyRefresher(int threads, int queueSize) {
+		executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "WebProxyRefresher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Revalidates a cached object in the background unless it is already being refreshed.
+	 * A 304 extends the object in place, a new response replaces it in the cache
+	 * @param URL
+	 * @param object
+	 * @param connTimeout
+	 * @return true if the refresh was started, false otherwise
+	 */
+	boolean refresh(final String URL, final WebProxyCachedObject object, final int connTimeout) {
+		if(!object.startRefresh()) return false;
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						WebProxyThread.revalidate(URL, object, connTimeout, true);
+						refreshes.incrementAndGet();
+					} finally {
+						object.endRefresh();
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			object.endRefresh();
+			dropped.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the number of refreshes done
+	 * @return the number of refreshes
+	 */
+	long getRefreshes() {
+		return refreshes.get();
+	}
+
+	/**
+	 * Returns the number of refreshes dropped because too many were waiting
+	 * @return the number of dropped refreshes
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	public String toString() {
+		return "WebProxyRefresher[active=" + executor.getActiveCount() + ", queued=" + executor.getQueue().size()
+				+ ", refreshes=" + getRefreshes() + ", dropped=" + getDropped() + "]";
+	}
+}
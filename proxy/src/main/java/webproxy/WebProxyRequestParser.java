@@ -0,0 +1,499 @@
+package webproxy;
+
+import java.io.*;
+
+public class WebProxyRequestParser {
+
+	// How far the request has been parsed
+	private enum Mode { HEADER, BODY, DONE, INVALID }
+
+	// Largest header accepted before the request is rejected
+	private static final int MAX_HEADER_SIZE = 65536;
+
+	// Fields dropped from the request as it is sent on, as they only apply to the client
+	// connection, or are answered by the proxy itself (Expect: 100-continue), along with
+	// the fields the Connection field lists
+	private static final String[] HOP_BY_HOP = {"Connection", "Proxy-Connection", "Keep-Alive", "Expect",
+			"TE", "Upgrade", "Trailer", "Proxy-Authorization"};
+
+	// Methods returned without copying them out of the header
+	private static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "CONNECT", "OPTIONS", "PATCH", "TRACE"};
+
+	// Ends the header sent on, after the Connection field
+	private static final byte[] KEEP_ALIVE = "Connection: keep-alive\r\n\r\n".getBytes();
+	private static final byte[] CLOSE = "Connection: close\r\n\r\n".getBytes();
+
+	// Instance variables
+	private Mode mode = Mode.HEADER;
+	private byte[] header = new byte[1024];
+	private int headerLength = 0, lineStart = 0;
+
+	// Where the last field ends and the blank line ending the header starts
+	private int fieldsEnd = 0;
+
+	// Request line as offsets into the header: method is [0, methodEnd), and so on
+	private int methodEnd = -1, targetStart = 0, targetEnd = 0, versionStart = 0, requestLineEnd = 0;
+
+	// Header fields as four offsets each: name start and end, value start and end
+	private int[] fields = new int[64];
+	private int fieldCount = 0;
+
+	// How the body ends, found while the fields are parsed
+	private long contentLength = -1;
+	private boolean chunked = false;
+	private WebProxyResponseFraming body = null;
+
+	// Request target, made into a String only when asked for
+	private String target = null;
+
+	/**
+	 * Clears this parser for the next request on the same connection,
+	 * keeping its buffers
+	 */
+	void reset() {
+		mode = Mode.HEADER;
+		headerLength = lineStart = fieldsEnd = 0;
+		methodEnd = -1;
+		targetStart = targetEnd = versionStart = requestLineEnd = 0;
+		fieldCount = 0;
+		contentLength = -1;
+		chunked = false;
+		body = null;
+		target = null;
+	}
+
+	/**
+	 * Consumes bytes read from the client. Consuming stops right after the
+	 * header, so that the caller can act on it before consuming the body,
+	 * and right after the body, so that pipelined requests are left alone
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return the number of bytes consumed
+	 * @throws IOException
+	 */
+	int consume(byte[] buffer, int offset, int length) throws IOException {
+		if(mode == Mode.HEADER) return consumeHeader(buffer, offset, offset + length) - offset;
+		if(mode != Mode.BODY) return 0;
+		int consumed = body.consume(buffer, offset, length);
+		// A body whose end cannot be found leaves the connection in an unknown state
+		if(body.isMalformed()) mode = Mode.INVALID;
+		else if(body.isComplete()) mode = Mode.DONE;
+		return consumed;
+	}
+
+	/**
+	 * Checks if the whole header has been consumed
+	 * @return true if the header is complete, false otherwise
+	 */
+	boolean isHeaderComplete() {
+		return mode == Mode.BODY || mode == Mode.DONE;
+	}
+
+	/**
+	 * Checks if the whole request, body included, has been consumed
+	 * @return true if the request is complete, false otherwise
+	 */
+	boolean isComplete() {
+		return mode == Mode.DONE;
+	}
+
+	/**
+	 * Checks if the request is too large or malformed to be served
+	 * @return true if the request is invalid, false otherwise
+	 */
+	boolean isInvalid() {
+		return mode == Mode.INVALID;
+	}
+
+	/**
+	 * Checks if nothing but blank lines has been consumed
+	 * @return true if no request has started, false otherwise
+	 */
+	boolean isEmpty() {
+		return methodEnd < 0 && headerLength == lineStart;
+	}
+
+	/**
+	 * Checks the request method
+	 * @param method (e.g. GET)
+	 * @return true if the request uses the method, false otherwise
+	 */
+	boolean isMethod(String method) {
+		return methodEnd >= 0 && equalsIgnoreCase(0, methodEnd, method, false);
+	}
+
+	/**
+	 * Returns the request method, without copying it if it is a common one
+	 * @return the method, or null if no request line was parsed
+	 */
+	String getMethod() {
+		if(methodEnd < 0) return null;
+		for(String method : METHODS) {
+			if(equalsIgnoreCase(0, methodEnd, method, false)) return method;
+		}
+		return new String(header, 0, methodEnd);
+	}
+
+	/**
+	 * Returns the request target, which is the URL for a proxy
+	 * @return the request target, or null if the header is incomplete
+	 */
+	String getTarget() {
+		if(target == null && isHeaderComplete()) target = new String(header, targetStart, targetEnd - targetStart);
+		return target;
+	}
+
+	/**
+	 * Checks if the request was made with HTTP/1.1, which keeps connections open by default
+	 * @return true if the version is HTTP/1.1, false otherwise
+	 */
+	boolean isHttp11() {
+		return isHeaderComplete() && equalsIgnoreCase(versionStart, requestLineEnd, "HTTP/1.1", false);
+	}
+
+	/**
+	 * Checks if a comma separated field (e.g. Connection) contains a token
+	 * @param name
+	 * @param token
+	 * @return true if any field with the given name lists the token, false otherwise
+	 */
+	boolean hasToken(String name, String token) {
+		for(int i = 0; i < fieldCount * 4; i += 4) {
+			if(!equalsIgnoreCase(fields[i], fields[i + 1], name, false)) continue;
+			int start = fields[i + 2];
+			for(int j = start; j <= fields[i + 3]; j++) {
+				if(j < fields[i + 3] && header[j] != ',') continue;
+				if(equalsIgnoreCase(start, j, token, true)) return true;
+				start = j + 1;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the value of the first field with the given name
+	 * @param name
+	 * @return the value of the field, or null if there is no such field
+	 */
+	String get(String name) {
+		int field = indexOfField(name);
+		if(field < 0) return null;
+		return new String(header, fields[field + 2], fields[field + 3] - fields[field + 2]);
+	}
+
+	/**
+	 * Returns the host of the remote server, from the target of a CONNECT,
+	 * the Host field or else an absolute request target
+	 * @return the host, or an empty string if the request names none
+	 */
+	String getHost() {
+		int[] address = getAddress();
+		int colon = lastIndexOf(address[0], address[1], ':');
+		return new String(header, address[0], (colon < 0 ? address[1] : colon) - address[0]);
+	}
+
+	/**
+	 * Returns the port of the remote server
+	 * @return the port, 80 if the request names none, or -1 if it is invalid
+	 */
+	int getPort() {
+		int[] address = getAddress();
+		int colon = lastIndexOf(address[0], address[1], ':');
+		if(colon < 0) return 80;
+		int port = 0;
+		for(int i = colon + 1; i < address[1]; i++) {
+			if(header[i] < '0' || header[i] > '9' || port > 65535) return -1;
+			port = port * 10 + (header[i] - '0');
+		}
+		return colon + 1 < address[1] && port <= 65535 ? port : -1;
+	}
+
+	/**
+	 * Checks if the client waits for a 100 Continue before sending the rest of the body
+	 * @return true if the body is incomplete and the client expects 100-continue, false otherwise
+	 */
+	boolean expectsContinue() {
+		return mode == Mode.BODY && hasToken("Expect", "100-continue");
+	}
+
+	/**
+	 * Returns the value of the Content-Length field
+	 * @return the content length, or -1 if it is missing or invalid
+	 */
+	long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Checks if the body is sent with chunked transfer coding
+	 * @return true if the body is chunked, false otherwise
+	 */
+	boolean isChunked() {
+		return chunked;
+	}
+
+	/**
+	 * Returns the header as it is sent to the remote server, without the fields
+	 * that only apply to the client connection and with a Connection field
+	 * @param keepAlive whether to ask the server to keep the connection open
+	 * @return the header in byte array, including the double CRLF
+	 */
+	byte[] getUpstreamHeader(boolean keepAlive) {
+		byte[] end = keepAlive ? KEEP_ALIVE : CLOSE;
+		ByteArrayOutputStream upstream = new ByteArrayOutputStream(headerLength + end.length);
+		int start = 0;
+		for(int i = 0; i < fieldCount * 4; i += 4) {
+			if(!isHopByHop(i)) continue;
+			// Copy everything up to this field, and skip the field with its line end
+			upstream.write(header, start, fields[i] - start);
+			start = i + 4 < fieldCount * 4 ? fields[i + 4] : fieldsEnd;
+		}
+		upstream.write(header, start, fieldsEnd - start);
+		upstream.write(end, 0, end.length);
+		return upstream.toByteArray();
+	}
+
+	/**
+	 * Consumes header bytes line by line up to the blank line, then starts on the body
+	 * @param buffer
+	 * @param i
+	 * @param end
+	 * @return the index of the first byte not consumed
+	 */
+	private int consumeHeader(byte[] buffer, int i, int end) {
+		while(i < end) {
+			byte b = buffer[i++];
+			if(headerLength == header.length) {
+				if(header.length >= MAX_HEADER_SIZE) {
+					mode = Mode.INVALID;
+					return end;
+				}
+				byte[] larger = new byte[Math.min(MAX_HEADER_SIZE, header.length * 2)];
+				System.arraycopy(header, 0, larger, 0, headerLength);
+				header = larger;
+			}
+			header[headerLength++] = b;
+			if(b != '\n') continue;
+
+			// A whole line, without its CRLF or LF
+			int lineEnd = headerLength - 1;
+			if(lineEnd > lineStart && header[lineEnd - 1] == '\r') lineEnd--;
+			if(methodEnd < 0) {
+				// Blank lines before the request line are ignored
+				if(lineEnd == lineStart) headerLength = lineStart = 0;
+				else if(!parseRequestLine(lineEnd)) mode = Mode.INVALID;
+			} else if(lineEnd == lineStart) {
+				startBody();
+			} else if(header[lineStart] == ' ' || header[lineStart] == '\t') {
+				// A folded line continues the value of the previous field
+				if(fieldCount > 0) fields[fieldCount * 4 - 1] = lineEnd;
+			} else {
+				parseField(lineEnd);
+			}
+			lineStart = headerLength;
+			if(mode != Mode.HEADER) return i;
+		}
+		return i;
+	}
+
+	/**
+	 * Finds the method, target and version in the request line
+	 * @param lineEnd
+	 * @return true if the request line has all three, false otherwise
+	 */
+	private boolean parseRequestLine(int lineEnd) {
+		methodEnd = indexOf(lineStart, lineEnd, ' ');
+		if(methodEnd <= 0) return false;
+		targetStart = skipSpaces(methodEnd, lineEnd);
+		targetEnd = indexOf(targetStart, lineEnd, ' ');
+		if(targetEnd <= targetStart) return false;
+		versionStart = skipSpaces(targetEnd, lineEnd);
+		requestLineEnd = lineEnd;
+		while(requestLineEnd > versionStart && header[requestLineEnd - 1] == ' ') requestLineEnd--;
+		return requestLineEnd > versionStart && indexOf(versionStart, requestLineEnd, ' ') < 0;
+	}
+
+	/**
+	 * Records the name and value of a header field, noting the fields that frame the body
+	 * @param lineEnd
+	 */
+	private void parseField(int lineEnd) {
+		int colon = indexOf(lineStart, lineEnd, ':');
+		if(colon <= lineStart) return;
+		int valueStart = skipSpaces(colon + 1, lineEnd), valueEnd = lineEnd;
+		while(valueEnd > valueStart && (header[valueEnd - 1] == ' ' || header[valueEnd - 1] == '\t')) valueEnd--;
+
+		if(fieldCount * 4 == fields.length) {
+			int[] larger = new int[fields.length * 2];
+			System.arraycopy(fields, 0, larger, 0, fields.length);
+			fields = larger;
+		}
+		int field = fieldCount++ * 4;
+		fields[field] = lineStart;
+		fields[field + 1] = colon;
+		fields[field + 2] = valueStart;
+		fields[field + 3] = valueEnd;
+
+		if(equalsIgnoreCase(lineStart, colon, "Content-Length", false)) parseContentLength(valueStart, valueEnd);
+	}
+
+	/**
+	 * Records the length of the body from a Content-Length field. A length that is invalid,
+	 * or that differs from another one, makes the end of the body unknown, so the request is
+	 * rejected rather than read as having no body
+	 * @param start
+	 * @param end
+	 */
+	private void parseContentLength(int start, int end) {
+		// The same length may be repeated in a list
+		for(int i = start; i <= end; i++) {
+			if(i < end && header[i] != ',') continue;
+			int valueStart = skipSpaces(start, i), valueEnd = i;
+			while(valueEnd > valueStart && (header[valueEnd - 1] == ' ' || header[valueEnd - 1] == '\t')) valueEnd--;
+			long length = parseLength(valueStart, valueEnd);
+			if(length < 0 || (contentLength >= 0 && length != contentLength)) {
+				mode = Mode.INVALID;
+				return;
+			}
+			contentLength = length;
+			start = i + 1;
+		}
+	}
+
+	/**
+	 * Decides how the body is delimited once the header is complete.
+	 * A request without Content-Length or chunked coding has no body
+	 */
+	private void startBody() {
+		fieldsEnd = lineStart;
+		chunked = hasToken("Transfer-Encoding", "chunked");
+		body = WebProxyResponseFraming.forBody(chunked, chunked ? 0 : Math.max(0, contentLength));
+		mode = body.isComplete() ? Mode.DONE : Mode.BODY;
+	}
+
+	/**
+	 * Returns where the address of the remote server is in the header: the
+	 * target of a CONNECT, which is only an authority (host:port), the Host
+	 * field, or else the authority of an absolute request target
+	 * @return the start and end offsets of the address
+	 */
+	private int[] getAddress() {
+		if(isMethod("CONNECT") && isHeaderComplete()) return new int[] {targetStart, targetEnd};
+		int field = indexOfField("Host");
+		if(field >= 0) return new int[] {fields[field + 2], fields[field + 3]};
+		if(!isHeaderComplete()) return new int[] {0, 0};
+		int start = indexOf(targetStart, targetEnd, '/');
+		if(start < 0 || start + 1 >= targetEnd || header[start + 1] != '/') return new int[] {0, 0};
+		start += 2;
+		int end = indexOf(start, targetEnd, '/');
+		return new int[] {start, end < 0 ? targetEnd : end};
+	}
+
+	/**
+	 * Returns the offset of the first field with the given name
+	 * @param name
+	 * @return the index of the field in fields, or -1 if there is no such field
+	 */
+	private int indexOfField(String name) {
+		for(int i = 0; i < fieldCount * 4; i += 4) {
+			if(equalsIgnoreCase(fields[i], fields[i + 1], name, false)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks if a field only applies to the client connection
+	 * @param field the index of the field in fields
+	 * @return true if the field is not sent on, false otherwise
+	 */
+	private boolean isHopByHop(int field) {
+		for(String name : HOP_BY_HOP) {
+			if(equalsIgnoreCase(fields[field], fields[field + 1], name, false)) return true;
+		}
+		return indexOfField("Connection") >= 0
+				&& hasToken("Connection", new String(header, fields[field], fields[field + 1] - fields[field]));
+	}
+
+	/**
+	 * Compares part of the header with a string, ignoring case
+	 * @param start
+	 * @param end
+	 * @param value
+	 * @param trim whether to ignore spaces around the part
+	 * @return true if the part equals the value, false otherwise
+	 */
+	private boolean equalsIgnoreCase(int start, int end, String value, boolean trim) {
+		if(trim) {
+			start = skipSpaces(start, end);
+			while(end > start && (header[end - 1] == ' ' || header[end - 1] == '\t')) end--;
+		}
+		if(end - start != value.length()) return false;
+		for(int i = 0; i < value.length(); i++) {
+			int b = header[start + i];
+			int c = value.charAt(i);
+			if(b == c) continue;
+			if(b >= 'A' && b <= 'Z') b += 'a' - 'A';
+			if(c >= 'A' && c <= 'Z') c += 'a' - 'A';
+			if(b != c) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses a decimal length from part of the header
+	 * @param start
+	 * @param end
+	 * @return the length, or -1 if it is invalid
+	 */
+	private long parseLength(int start, int end) {
+		if(start == end || end - start > 18) return -1;
+		long length = 0;
+		for(int i = start; i < end; i++) {
+			if(header[i] < '0' || header[i] > '9') return -1;
+			length = length * 10 + (header[i] - '0');
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the offset of the first occurrence of a byte in part of the header
+	 * @param start
+	 * @param end
+	 * @param b
+	 * @return the offset, or -1 if the byte does not occur
+	 */
+	private int indexOf(int start, int end, char b) {
+		for(int i = start; i < end; i++) {
+			if(header[i] == b) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the offset of the last occurrence of a byte in part of the header
+	 * @param start
+	 * @param end
+	 * @param b
+	 * @return the offset, or -1 if the byte does not occur
+	 */
+	private int lastIndexOf(int start, int end, char b) {
+		for(int i = end - 1; i >= start; i--) {
+			// An IPv6 address ends with ']' and may contain colons
+			if(header[i] == ']') return -1;
+			if(header[i] == b) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the offset of the first byte that is not a space or tab
+	 * @param start
+	 * @param end
+	 * @return the offset, or end if there is none
+	 */
+	private int skipSpaces(int start, int end) {
+		while(start < end && (header[start] == ' ' || header[start] == '\t')) start++;
+		return start;
+	}
+}
@@ -0,0 +1,229 @@
+package webproxy;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WebProxyResolver {
+
+	// Looks up the addresses of a host; replaceable so that tests need no real DNS
+	interface Lookup {
+		InetAddress[] lookup(String host) throws UnknownHostException;
+	}
+
+	// Lookup through the system resolver
+	static final Lookup SYSTEM = new Lookup() {
+		public InetAddress[] lookup(String host) throws UnknownHostException {
+			return InetAddress.getAllByName(host);
+		}
+	};
+
+	// Addresses of a host, or none if it does not resolve, and when they expire (System.nanoTime)
+	private static class Entry {
+		final InetAddress[] addresses;
+		final long resolvedAt, expiresAt;
+		volatile boolean refreshing = false;
+
+		Entry(InetAddress[] addresses, long resolvedAt, long expiresAt) {
+			this.addresses = addresses;
+			this.resolvedAt = resolvedAt;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// Share of the TTL after which an entry is refreshed in the background if it is still used
+	private static final double REFRESH_AFTER = 0.75;
+
+	// Resolved hosts, least recently used first, and the most that are kept
+	private Map<String, Entry> entries;
+	private int maxEntries;
+
+	// How long in ns resolved and unknown hosts are cached
+	private long ttl, negativeTtl;
+
+	private Lookup lookup;
+
+	// Refreshes entries before they expire, off the request threads
+	private ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "WebProxyResolverRefresher");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// Counters
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+			negativeHits = new AtomicLong(), refreshes = new AtomicLong();
+
+	/**
+	 * Constructor: takes in the lookup, the maximum number of cached hosts, and
+	 * how long in ms resolved and unknown hosts are cached
+	 * @param lookup
+	 * @param maxEntries
+	 * @param ttl
+	 * @param negativeTtl
+	 */
+	public WebProxyResolver(Lookup lookup, final int maxEntries, long ttl, long negativeTtl) {
+		this.lookup = lookup;
+		this.maxEntries = maxEntries;
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+		this.negativeTtl = TimeUnit.MILLISECONDS.toNanos(negativeTtl);
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns an address of a host, resolving it only if it is not cached.
+	 * An entry still used as it nears its expiry is refreshed in the background,
+	 * so that popular hosts are never resolved on a request thread
+	 * @param host
+	 * @return the address, or null if the host does not resolve
+	 */
+	InetAddress resolve(String host) {
+		Entry entry = get(host);
+		if(entry == null) {
+			misses.incrementAndGet();
+			return first(put(host, lookup(host)));
+		}
+		if(entry.addresses == null) {
+			negativeHits.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		if(!entry.refreshing && System.nanoTime() - entry.resolvedAt > ttl * REFRESH_AFTER) refresh(host, entry);
+		return first(entry.addresses);
+	}
+
+	/**
+	 * Checks if resolving a host would be answered from the cache, without blocking
+	 * @param host
+	 * @return true if the host is cached, whether or not it resolves, false otherwise
+	 */
+	boolean isCached(String host) {
+		return get(host) != null;
+	}
+
+	/**
+	 * Returns the number of lookups answered from the cache
+	 * @return the number of hits
+	 */
+	long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups that had to resolve the host
+	 * @return the number of misses
+	 */
+	long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of lookups answered with a cached failure
+	 * @return the number of negative hits
+	 */
+	long getNegativeHits() {
+		return negativeHits.get();
+	}
+
+	/**
+	 * Returns the number of entries refreshed in the background
+	 * @return the number of refreshes
+	 */
+	long getRefreshes() {
+		return refreshes.get();
+	}
+
+	/**
+	 * Returns the number of cached hosts
+	 * @return the number of entries
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+
+	public String toString() {
+		return "WebProxyResolver[hosts=" + size() + "/" + maxEntries + ", hits=" + getHits()
+				+ ", misses=" + getMisses() + ", negativeHits=" + getNegativeHits() + ", refreshes=" + getRefreshes() + "]";
+	}
+
+	/**
+	 * Returns the unexpired entry of a host, dropping an expired one
+	 * @param host
+	 * @return the entry, or null if there is none
+	 */
+	private synchronized Entry get(String host) {
+		Entry entry = entries.get(host);
+		if(entry != null && System.nanoTime() - entry.expiresAt >= 0) {
+			entries.remove(host);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Caches the result of a lookup
+	 * @param host
+	 * @param addresses the addresses, or null if the host does not resolve
+	 * @return the addresses
+	 */
+	private InetAddress[] put(String host, InetAddress[] addresses) {
+		long now = System.nanoTime();
+		Entry entry = new Entry(addresses, now, now + (addresses == null ? negativeTtl : ttl));
+		synchronized(this) {
+			entries.put(host, entry);
+		}
+		return addresses;
+	}
+
+	/**
+	 * Resolves an entry again in the background, keeping the old
+	 * addresses until they expire if the host no longer resolves
+	 * @param host
+	 * @param entry
+	 */
+	private void refresh(final String host, final Entry entry) {
+		entry.refreshing = true;
+		try {
+			refresher.execute(new Runnable() {
+				public void run() {
+					InetAddress[] addresses = lookup(host);
+					if(addresses != null) put(host, addresses);
+					refreshes.incrementAndGet();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			entry.refreshing = false;
+		}
+	}
+
+	/**
+	 * Looks up the addresses of a host
+	 * @param host
+	 * @return the addresses, or null if the host does not resolve
+	 */
+	private InetAddress[] lookup(String host) {
+		try {
+			InetAddress[] addresses = lookup.lookup(host);
+			return addresses == null || addresses.length == 0 ? null : addresses;
+		} catch (UnknownHostException e) {
+			System.out.println("Error: Cannot resolve " + host);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the first of a host's addresses
+	 * @param addresses
+	 * @return the address, or null if there is none
+	 */
+	private static InetAddress first(InetAddress[] addresses) {
+		return addresses == null ? null : addresses[0];
+	}
+}
@@ -0,0 +1,322 @@
+package webproxy;
+
+import java.io.*;
+
+public class WebProxyResponseFraming {
+
+	// How the end of the response is found
+	private enum Mode { HEADER, LENGTH, CHUNKED, CLOSE, DONE }
+
+	// Position within a chunked body
+	private enum ChunkState { SIZE, EXTENSION, SIZE_LF, DATA, DATA_CRLF, TRAILER_START, TRAILER_LINE, FINAL_LF }
+
+	// Largest header accepted before giving up on framing the response
+	private static final int MAX_HEADER_SIZE = 65536;
+
+	// Most hex digits in a chunk size, which keeps it well within a long
+	private static final int MAX_CHUNK_SIZE_DIGITS = 15;
+
+	// Sequence ending the header
+	private static final byte[] END_OF_HEADER = "\r\n\r\n".getBytes();
+
+	// Instance variables
+	private Mode mode = Mode.HEADER;
+	private ChunkState chunkState = ChunkState.SIZE;
+	private ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+	private int endOfHeaderMatched = 0;
+	private WebProxyHeader header = null;
+	private long remaining = 0;
+	private int sizeDigits = 0;
+	private boolean keepAlive = false;
+	private boolean overrun = false;
+
+	// Whether a chunk size line could not be parsed, after which nothing more is consumed
+	private boolean malformed = false;
+
+	// Whether the request was HEAD, whose response has no body whatever its header says
+	private boolean headRequest = false;
+
+	// Whether the header says there is no body, and whether it is an interim (1xx) response
+	private boolean noBody = false, interim = false;
+
+	// Receives the body without its transfer coding, if set
+	private OutputStream bodySink = null;
+
+	/**
+	 * Returns a framing for a body whose header was parsed elsewhere,
+	 * such as the body of a request
+	 * @param chunked whether the body is sent with chunked transfer coding
+	 * @param contentLength the length of a body that is not chunked
+	 * @return the framing, which only consumes the body
+	 */
+	static WebProxyResponseFraming forBody(boolean chunked, long contentLength) {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		framing.remaining = chunked ? 0 : contentLength;
+		if(chunked) framing.mode = Mode.CHUNKED;
+		else framing.mode = contentLength > 0 ? Mode.LENGTH : Mode.DONE;
+		return framing;
+	}
+
+	/**
+	 * Consumes bytes read from the server and tracks where the response ends.
+	 * Consuming stops right after the header, so that the caller can decide
+	 * what to do with the body before consuming the rest
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return the number of bytes consumed
+	 * @throws IOException if the body sink fails
+	 */
+	int consume(byte[] buffer, int offset, int length) throws IOException {
+		int i = offset, end = offset + length;
+		if(mode == Mode.HEADER) return consumeHeader(buffer, i, end) - offset;
+		while(i < end && mode != Mode.DONE && !malformed) {
+			switch(mode) {
+			case LENGTH:
+				int bytes = (int) Math.min(remaining, end - i);
+				writeBody(buffer, i, bytes);
+				i += bytes;
+				remaining -= bytes;
+				if(remaining == 0) mode = Mode.DONE;
+				break;
+			case CHUNKED:
+				i = consumeChunked(buffer, i, end);
+				break;
+			default:
+				writeBody(buffer, i, end - i);
+				i = end;
+			}
+		}
+		if(i < end) overrun = true;
+		return i - offset;
+	}
+
+	/**
+	 * Checks if the whole response has been consumed
+	 * @return true if the response is complete, false otherwise
+	 */
+	boolean isComplete() {
+		return mode == Mode.DONE;
+	}
+
+	/**
+	 * Checks if the whole header has been consumed
+	 * @return true if the header is complete, false otherwise
+	 */
+	boolean isHeaderComplete() {
+		return mode != Mode.HEADER;
+	}
+
+	/**
+	 * Checks if the response can have a body, which responses to HEAD
+	 * requests and 1xx, 204 and 304 responses never have
+	 * @return true if the response has a body or its header is incomplete, false otherwise
+	 */
+	boolean hasBody() {
+		return !noBody;
+	}
+
+	/**
+	 * Checks if the response is an interim response (e.g. 100 Continue),
+	 * which is followed by another response to the same request
+	 * @return true if the response is interim, false otherwise
+	 */
+	boolean isInterim() {
+		return interim;
+	}
+
+	/**
+	 * Tells the framing that the request was HEAD, so that the response has no body
+	 * @param headRequest
+	 */
+	void setHeadRequest(boolean headRequest) {
+		this.headRequest = headRequest;
+	}
+
+	/**
+	 * Checks if the end of the response can be told without the connection closing
+	 * @return true if the response has a length or is chunked, false otherwise
+	 */
+	boolean isDelimited() {
+		return header != null && mode != Mode.CLOSE;
+	}
+
+	/**
+	 * Checks if the connection can carry another request after this response
+	 * @return true if the connection can be reused, false otherwise
+	 */
+	boolean isReusable() {
+		return mode == Mode.DONE && keepAlive && !overrun;
+	}
+
+	/**
+	 * Checks if the chunked framing of the body is broken, so that its end cannot be found
+	 * and the connection it came on has to be closed
+	 * @return true if a chunk size line could not be parsed, false otherwise
+	 */
+	boolean isMalformed() {
+		return malformed;
+	}
+
+	/**
+	 * Returns the response header once it has been consumed
+	 * @return the response header, or null if it is still incomplete
+	 */
+	WebProxyHeader getHeader() {
+		return header;
+	}
+
+	/**
+	 * Returns the raw header bytes consumed so far
+	 * @return the header in byte array
+	 */
+	byte[] getHeaderBytes() {
+		return headerBytes.toByteArray();
+	}
+
+	/**
+	 * Sets a stream receiving the body without its transfer coding
+	 * @param bodySink
+	 */
+	void setBodySink(OutputStream bodySink) {
+		this.bodySink = bodySink;
+	}
+
+	/**
+	 * Consumes header bytes up to the double CRLF, then starts on the body
+	 * @param buffer
+	 * @param i
+	 * @param end
+	 * @return the index of the first byte not consumed
+	 */
+	private int consumeHeader(byte[] buffer, int i, int end) {
+		while(i < end) {
+			byte b = buffer[i++];
+			headerBytes.write(b);
+			if(b == END_OF_HEADER[endOfHeaderMatched]) endOfHeaderMatched++;
+			else endOfHeaderMatched = (b == '\r') ? 1 : 0;
+			if(endOfHeaderMatched == END_OF_HEADER.length) {
+				startBody();
+				return i;
+			}
+		}
+		if(headerBytes.size() > MAX_HEADER_SIZE) {
+			// Not a response we can frame, so read it until the server closes
+			mode = Mode.CLOSE;
+		}
+		return i;
+	}
+
+	/**
+	 * Parses the complete header and decides how the body is delimited
+	 */
+	private void startBody() {
+		header = WebProxyHeader.parse(new String(headerBytes.toByteArray()));
+		if(header.getVersion().equals("HTTP/1.0")) keepAlive = header.hasToken("Connection", "keep-alive");
+		else keepAlive = !header.hasToken("Connection", "close");
+
+		// 101 Switching Protocols is not interim, the connection carries another protocol until it closes
+		int status = header.getStatusCode();
+		interim = status / 100 == 1 && status != 101;
+		noBody = headRequest || interim || status == 204 || status == 304;
+
+		long contentLength = header.getContentLength();
+		if(noBody) {
+			mode = Mode.DONE;
+		} else if(status == 101) {
+			mode = Mode.CLOSE;
+		} else if(header.isChunked()) {
+			mode = Mode.CHUNKED;
+		} else if(contentLength >= 0) {
+			remaining = contentLength;
+			mode = contentLength == 0 ? Mode.DONE : Mode.LENGTH;
+		} else {
+			mode = Mode.CLOSE;
+		}
+	}
+
+	/**
+	 * Consumes bytes of a chunked body
+	 * @param buffer
+	 * @param i
+	 * @param end
+	 * @return the index of the first byte not consumed
+	 * @throws IOException if the body sink fails
+	 */
+	private int consumeChunked(byte[] buffer, int i, int end) throws IOException {
+		while(i < end && mode == Mode.CHUNKED) {
+			if(chunkState == ChunkState.DATA) {
+				int bytes = (int) Math.min(remaining, end - i);
+				writeBody(buffer, i, bytes);
+				i += bytes;
+				remaining -= bytes;
+				if(remaining == 0) chunkState = ChunkState.DATA_CRLF;
+				continue;
+			}
+
+			byte b = buffer[i++];
+			switch(chunkState) {
+			case SIZE:
+				int digit = Character.digit(b, 16);
+				if(digit >= 0) {
+					remaining = remaining * 16 + digit;
+					// A size that overflows would never be reached
+					if(++sizeDigits > MAX_CHUNK_SIZE_DIGITS || remaining < 0) setMalformed();
+				} else if(b == '\r') chunkState = ChunkState.SIZE_LF;
+				else if(b == '\n') endOfSizeLine();
+				else if(b == ';' || b == ' ' || b == '\t') chunkState = ChunkState.EXTENSION;
+				else setMalformed();
+				break;
+			case EXTENSION:
+			case SIZE_LF:
+				if(b == '\n') endOfSizeLine();
+				break;
+			case DATA_CRLF:
+				if(b == '\n') chunkState = ChunkState.SIZE;
+				break;
+			case TRAILER_START:
+				if(b == '\n') mode = Mode.DONE;
+				else if(b == '\r') chunkState = ChunkState.FINAL_LF;
+				else chunkState = ChunkState.TRAILER_LINE;
+				break;
+			case TRAILER_LINE:
+				if(b == '\n') chunkState = ChunkState.TRAILER_START;
+				break;
+			case FINAL_LF:
+				if(b == '\n') mode = Mode.DONE;
+				break;
+			default:
+				break;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Passes body bytes on to the body sink, if any
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @throws IOException if the body sink fails
+	 */
+	private void writeBody(byte[] buffer, int offset, int length) throws IOException {
+		if(bodySink != null && length > 0) bodySink.write(buffer, offset, length);
+	}
+
+	/**
+	 * Moves on to the data of the chunk whose size was just read,
+	 * or to the trailer if it was the last chunk
+	 */
+	private void endOfSizeLine() {
+		sizeDigits = 0;
+		chunkState = remaining == 0 ? ChunkState.TRAILER_START : ChunkState.DATA;
+	}
+
+	/**
+	 * Gives up on the chunked body, which can then only end when the connection closes
+	 */
+	private void setMalformed() {
+		malformed = true;
+		mode = Mode.CLOSE;
+	}
+}
@@ -0,0 +1,604 @@
+package webproxy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WebProxyStore {
+
+	// Where a cached object lives: a range of bytes in a segment file
+	static class Location {
+		final int segment;
+		final long offset, length;
+
+		Location(int segment, long offset, long length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	// A segment file, the objects stored in it, and the bytes in it that
+	// belong to objects no longer cached
+	private static class Segment {
+		int id;
+		FileChannel channel;
+		long size = 0, dead = 0;
+		int pendingWrites = 0;
+		Map<WebProxyCachedObject, String> live = new IdentityHashMap<WebProxyCachedObject, String>();
+
+		Segment(int id, FileChannel channel) {
+			this.id = id;
+			this.channel = channel;
+		}
+	}
+
+	// Index file format
+	private static final int INDEX_MAGIC = 0x57505835;
+	private static final byte PUT = 1, REMOVE = 2;
+
+	// Size of the buffer objects are copied through
+	private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+	// Directories of the segment files and of the objects still being written
+	private Path directory, stagingDirectory;
+
+	// Size in bytes after which a new segment is started
+	private long segmentSize;
+
+	// Segments by id, and the one new objects are appended to
+	private Map<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+	private Segment active = null;
+	private int nextSegment = 0;
+
+	// Log of every object stored and removed, replayed at startup
+	private DataOutputStream index = null;
+
+	private AtomicInteger stagingCounter = new AtomicInteger(0);
+
+	// Moves live objects out of mostly dead segments, off the request path
+	private ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "WebProxyStoreCompactor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Constructor: takes in the directory of the store and the size
+	 * in bytes of its segment files
+	 * @param directory
+	 * @param segmentSize
+	 */
+	public WebProxyStore(String directory, long segmentSize) {
+		this.directory = Paths.get(directory);
+		this.stagingDirectory = this.directory.resolve("staging");
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Loads the objects stored by a previous run from the index, and
+	 * starts a fresh index holding only those objects
+	 * @return the stored objects by URL, least recently stored first
+	 */
+	synchronized Map<String, WebProxyCachedObject> load() {
+		Map<String, WebProxyCachedObject> objects = new LinkedHashMap<String, WebProxyCachedObject>();
+		try {
+			Files.createDirectories(stagingDirectory);
+			// Objects that were still being written when the last run stopped are lost
+			deleteAll(stagingDirectory, "*");
+			readIndex(objects);
+			openSegments(objects);
+			writeIndex();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to load the cache store in " + directory);
+			e.printStackTrace();
+			objects.clear();
+		}
+		System.out.println("Loaded " + objects.size() + " cached objects from " + directory);
+		return objects;
+	}
+
+	/**
+	 * Returns a new file to write an object to while it is being fetched
+	 * @return the filename
+	 */
+	String newStagingFile() {
+		return stagingDirectory.resolve(stagingCounter.getAndIncrement() + ".cache").toString();
+	}
+
+	/**
+	 * Appends an object from its staging file to the active segment,
+	 * records it in the index and deletes the staging file
+	 * @param url
+	 * @param object
+	 * @return true if the object was stored, false otherwise
+	 */
+	boolean append(String url, WebProxyCachedObject object) {
+		Path staging = Paths.get(object.filename);
+		try (FileChannel source = FileChannel.open(staging, StandardOpenOption.READ)) {
+			long length = source.size();
+			Segment segment;
+			long offset;
+			// Only the space is taken under the lock, as the copy itself may be long
+			synchronized(this) {
+				segment = reserve(length);
+				offset = segment.size - length;
+			}
+			boolean copied = false;
+			try {
+				copy(source, 0, length, segment.channel, offset);
+				copied = true;
+			} finally {
+				synchronized(this) {
+					segment.pendingWrites--;
+					if(copied) {
+						object.location = new Location(segment.id, offset, length);
+						segment.live.put(object, url);
+						writePut(url, object);
+					} else {
+						segment.dead += length;
+					}
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			System.out.println("Error: Failed to store cache file: " + object.filename);
+			e.printStackTrace();
+			return false;
+		} finally {
+			discard(object);
+		}
+	}
+
+	/**
+	 * Deletes the staging file of an object that is not stored
+	 * @param object
+	 */
+	void discard(WebProxyCachedObject object) {
+		if(object.filename == null) return;
+		try {
+			Files.deleteIfExists(Paths.get(object.filename));
+		} catch (IOException e) {
+			System.out.println("Error: Failed to delete cache file: " + object.filename);
+			e.printStackTrace();
+		}
+		object.filename = null;
+	}
+
+	/**
+	 * Removes a stored object and its censored copy, compacting their segments once they are mostly dead
+	 * @param object
+	 */
+	synchronized void remove(WebProxyCachedObject object) {
+		if(object.censoredCopy != null) remove(object.censoredCopy);
+		Location location = object.location;
+		if(location == null) return;
+		Segment segment = segments.get(location.segment);
+		if(segment == null) return;
+		String url = segment.live.remove(object);
+		if(url == null) return;
+		segment.dead += location.length;
+		if(!object.isCensoredCopy) writeRemove(url, location);
+		if(segment != active && segment.dead * 2 >= segment.size) scheduleCompaction(segment);
+	}
+
+	/**
+	 * Records the current metadata of a stored object in the index, where it
+	 * replaces the metadata recorded when the object was stored
+	 * @param object
+	 */
+	synchronized void update(WebProxyCachedObject object) {
+		Location location = object.location;
+		if(location == null) return;
+		Segment segment = segments.get(location.segment);
+		String url = segment == null ? null : segment.live.get(object);
+		if(url != null) writePut(url, object);
+	}
+
+	/**
+	 * Opens a channel positioned at the start of a stored object
+	 * @param object
+	 * @return the channel, or null if the object is no longer stored
+	 */
+	FileChannel open(WebProxyCachedObject object) {
+		Location location = object.location;
+		if(location == null) return null;
+		try {
+			FileChannel channel = FileChannel.open(segmentPath(location.segment), StandardOpenOption.READ);
+			channel.position(location.offset);
+			return channel;
+		} catch (NoSuchFileException e) {
+			// Compacted away since the lookup
+			return null;
+		} catch (IOException e) {
+			System.out.println("Error: Failed to open cache segment " + location.segment);
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a whole stored object into memory
+	 * @param object
+	 * @return the object's bytes, or null if it is no longer stored
+	 * @throws IOException if the object cannot be read
+	 */
+	byte[] read(WebProxyCachedObject object) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate((int) object.location.length);
+		return read(object, bytes) ? bytes.array() : null;
+	}
+
+	/**
+	 * Reads a whole stored object into a buffer outside the heap
+	 * @param object
+	 * @return the buffer, flipped for reading, or null if the object is no longer stored
+	 * @throws IOException if the object cannot be read
+	 */
+	ByteBuffer readDirect(WebProxyCachedObject object) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocateDirect((int) object.location.length);
+		if(!read(object, bytes)) return null;
+		bytes.flip();
+		return bytes;
+	}
+
+	/**
+	 * Fills a buffer with a stored object
+	 * @param object
+	 * @param bytes as long as the object
+	 * @return true if the buffer was filled, false if the object is no longer stored
+	 * @throws IOException if the object cannot be read
+	 */
+	private boolean read(WebProxyCachedObject object, ByteBuffer bytes) throws IOException {
+		FileChannel channel = open(object);
+		if(channel == null) return false;
+		try {
+			long position = channel.position();
+			while(bytes.hasRemaining()) {
+				if(channel.read(bytes, position + bytes.position()) < 0) throw new EOFException("Cache segment ended early");
+			}
+			return true;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Takes space for an object at the end of the active segment,
+	 * starting a new segment if the active one is full
+	 * @param length
+	 * @return the segment, whose size now includes the object
+	 * @throws IOException
+	 */
+	private Segment reserve(long length) throws IOException {
+		if(active == null || (active.size > 0 && active.size + length > segmentSize)) {
+			Segment full = active;
+			int id = nextSegment++;
+			active = new Segment(id, FileChannel.open(segmentPath(id),
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+			segments.put(id, active);
+			if(full != null && full.dead * 2 >= full.size) scheduleCompaction(full);
+		}
+		active.size += length;
+		active.pendingWrites++;
+		return active;
+	}
+
+	/**
+	 * Copies bytes from one channel to a position in another. Positional
+	 * writes are used, as other objects are copied into the same segment at once
+	 * @param source
+	 * @param position
+	 * @param length
+	 * @param target
+	 * @param offset
+	 * @throws IOException
+	 */
+	private static void copy(FileChannel source, long position, long length, FileChannel target, long offset) throws IOException {
+		ByteBuffer buffer = WebProxyBufferPool.DIRECT.lease((int) Math.min(COPY_BUFFER_SIZE, Math.max(1, length)));
+		try {
+			long copied = 0;
+			while(copied < length) {
+				buffer.clear();
+				if(length - copied < buffer.capacity()) buffer.limit((int) (length - copied));
+				if(source.read(buffer, position + copied) <= 0) throw new EOFException("Cache file ended early");
+				buffer.flip();
+				while(buffer.hasRemaining()) copied += target.write(buffer, offset + copied);
+			}
+		} finally {
+			WebProxyBufferPool.DIRECT.release(buffer);
+		}
+	}
+
+	/**
+	 * Compacts a segment in the background
+	 * @param segment
+	 */
+	private void scheduleCompaction(final Segment segment) {
+		compactor.execute(new Runnable() {
+			public void run() {
+				compact(segment);
+			}
+		});
+	}
+
+	/**
+	 * Moves the live objects of a segment to the active segment
+	 * and deletes the segment file
+	 * @param segment
+	 */
+	private void compact(Segment segment) {
+		List<WebProxyCachedObject> objects;
+		synchronized(this) {
+			if(segments.get(segment.id) != segment || segment == active || segment.pendingWrites > 0) return;
+			objects = new ArrayList<WebProxyCachedObject>(segment.live.keySet());
+		}
+		System.out.println("Compacting cache segment " + segment.id + "...");
+		try {
+			for(WebProxyCachedObject object : objects) move(object, segment);
+		} catch (IOException e) {
+			System.out.println("Error: Failed to compact cache segment " + segment.id);
+			e.printStackTrace();
+			return;
+		}
+		synchronized(this) {
+			if(!segment.live.isEmpty()) return;
+			segments.remove(segment.id);
+			try {
+				segment.channel.close();
+				Files.deleteIfExists(segmentPath(segment.id));
+				// Drop the records of the deleted segment from the index
+				writeIndex();
+			} catch (IOException e) {
+				System.out.println("Error: Failed to delete cache segment " + segment.id);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Copies a live object out of a segment being compacted
+	 * @param object
+	 * @param from
+	 * @throws IOException
+	 */
+	private void move(WebProxyCachedObject object, Segment from) throws IOException {
+		Location location = object.location;
+		Segment to;
+		long offset;
+		synchronized(this) {
+			if(!from.live.containsKey(object)) return;
+			to = reserve(location.length);
+			offset = to.size - location.length;
+		}
+		boolean copied = false;
+		try {
+			copy(from.channel, location.offset, location.length, to.channel, offset);
+			copied = true;
+		} finally {
+			synchronized(this) {
+				to.pendingWrites--;
+				String url = from.live.remove(object);
+				if(copied && url != null) {
+					object.location = new Location(to.id, offset, location.length);
+					to.live.put(object, url);
+					writePut(url, object);
+				} else {
+					// Removed while it was being copied, or not copied at all
+					to.dead += location.length;
+					if(url != null) from.live.put(object, url);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replays the index of a previous run
+	 * @param objects receives the stored objects by URL
+	 * @throws IOException
+	 */
+	private void readIndex(Map<String, WebProxyCachedObject> objects) throws IOException {
+		Path indexPath = directory.resolve("index");
+		if(!Files.exists(indexPath)) return;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+			if(in.readInt() != INDEX_MAGIC) {
+				System.out.println("Warning: Ignoring unrecognised cache index " + indexPath);
+				return;
+			}
+			int op;
+			while((op = in.read()) != -1) {
+				String url = readString(in);
+				int segment = in.readInt();
+				long offset = in.readLong();
+				if(op == PUT) {
+					long length = in.readLong();
+					WebProxyCachedObject object = WebProxyCachedObject.readMetadata(in);
+					object.location = new Location(segment, offset, length);
+					// Stored again means stored last
+					objects.remove(url);
+					objects.put(url, object);
+				} else if(op == REMOVE) {
+					WebProxyCachedObject object = objects.get(url);
+					if(object != null && object.location.segment == segment && object.location.offset == offset) objects.remove(url);
+				} else {
+					throw new IOException("Unknown cache index record " + op);
+				}
+			}
+		} catch (EOFException e) {
+			// The last record was cut short when the previous run stopped
+		}
+	}
+
+	/**
+	 * Opens the segments holding the stored objects, dropping objects
+	 * whose bytes are missing, and deletes every other segment
+	 * @param objects
+	 * @throws IOException
+	 */
+	private void openSegments(Map<String, WebProxyCachedObject> objects) throws IOException {
+		Iterator<Map.Entry<String, WebProxyCachedObject>> iterator = objects.entrySet().iterator();
+		while(iterator.hasNext()) {
+			Map.Entry<String, WebProxyCachedObject> entry = iterator.next();
+			WebProxyCachedObject object = entry.getValue();
+			Location location = object.location;
+			Segment segment = segments.get(location.segment);
+			if(segment == null && Files.exists(segmentPath(location.segment))) {
+				segment = new Segment(location.segment, FileChannel.open(segmentPath(location.segment),
+						StandardOpenOption.READ, StandardOpenOption.WRITE));
+				segment.size = segment.channel.size();
+				segment.dead = segment.size;
+				segments.put(segment.id, segment);
+			}
+			if(segment == null || location.offset + location.length > segment.size) {
+				iterator.remove();
+				continue;
+			}
+			segment.live.put(object, entry.getKey());
+			segment.dead -= location.length;
+		}
+
+		// Segments without any stored object are left over from compaction
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.segment")) {
+			for(Path file : files) {
+				String name = file.getFileName().toString();
+				int id = Integer.parseInt(name.substring(0, name.indexOf('.')));
+				nextSegment = Math.max(nextSegment, id + 1);
+				if(!segments.containsKey(id)) Files.delete(file);
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("Warning: Unrecognised file in cache directory " + directory);
+		}
+		for(Segment segment : new ArrayList<Segment>(segments.values())) {
+			if(segment.dead * 2 >= segment.size) scheduleCompaction(segment);
+		}
+	}
+
+	/**
+	 * Writes a fresh index holding only the stored objects, and appends to it from then on
+	 * @throws IOException
+	 */
+	private void writeIndex() throws IOException {
+		if(index != null) index.close();
+		Path indexPath = directory.resolve("index");
+		Path newIndexPath = directory.resolve("index.new");
+		index = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(newIndexPath)));
+		index.writeInt(INDEX_MAGIC);
+		for(Segment segment : segments.values()) {
+			for(Map.Entry<WebProxyCachedObject, String> entry : segment.live.entrySet()) {
+				if(!entry.getKey().isCensoredCopy) writeRecord(PUT, entry.getValue(), entry.getKey());
+			}
+		}
+		index.close();
+		Files.move(newIndexPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		index = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexPath, StandardOpenOption.APPEND)));
+	}
+
+	/**
+	 * Records a stored object in the index, unless it is a censored copy
+	 * @param url
+	 * @param object
+	 */
+	private void writePut(String url, WebProxyCachedObject object) {
+		if(index == null || object.isCensoredCopy) return;
+		try {
+			writeRecord(PUT, url, object);
+			index.flush();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to write cache index.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Records a removed object in the index
+	 * @param url
+	 * @param location
+	 */
+	private void writeRemove(String url, Location location) {
+		if(index == null) return;
+		try {
+			index.write(REMOVE);
+			writeString(index, url);
+			index.writeInt(location.segment);
+			index.writeLong(location.offset);
+			index.flush();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to write cache index.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes one index record without flushing it
+	 * @param op
+	 * @param url
+	 * @param object
+	 * @throws IOException
+	 */
+	private void writeRecord(byte op, String url, WebProxyCachedObject object) throws IOException {
+		Location location = object.location;
+		index.write(op);
+		writeString(index, url);
+		index.writeInt(location.segment);
+		index.writeLong(location.offset);
+		index.writeLong(location.length);
+		object.writeMetadata(index);
+	}
+
+	/**
+	 * Returns the path of a segment file
+	 * @param id
+	 * @return the path (e.g. cache/12.segment)
+	 */
+	private Path segmentPath(int id) {
+		return directory.resolve(id + ".segment");
+	}
+
+	/**
+	 * Attempts to delete the files in a directory matching a pattern
+	 * @param dir
+	 * @param glob
+	 * @throws IOException
+	 */
+	private static void deleteAll(Path dir, String glob) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, glob)) {
+			for(Path file : files) Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Writes a string that may be null or longer than writeUTF allows
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if(value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by writeString
+	 * @param in
+	 * @return the string, or null
+	 * @throws IOException
+	 */
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0) return null;
+		if(length > 1024 * 1024) throw new IOException("Corrupt cache index");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
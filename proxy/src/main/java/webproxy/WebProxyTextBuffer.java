@@ -0,0 +1,187 @@
+package webproxy;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Buffer for a text response that has to be complete before it is censored or
+ * cached. It keeps the response on the heap up to a budget per response, and as
+ * long as all buffers together stay under a global cap. Beyond that it spills
+ * what it holds to a file and writes everything else there, or, if the response
+ * is already being written to a file anyway, lets go of it.
+ */
+public class WebProxyTextBuffer extends OutputStream {
+
+	// Most bytes a single response, and all responses together, keep on the heap
+	private static final long MAX_MEMORY = WebProxyConfig.getLong("text-buffer-memory", 1024 * 1024);
+	private static final long MAX_TOTAL = WebProxyConfig.getLong("text-buffer-max", 64L * 1024 * 1024);
+
+	// Bytes on the heap in all buffers, and buffers that went over their budget
+	private static final AtomicLong totalMemory = new AtomicLong();
+	private static final LongAdder spills = new LongAdder();
+
+	// Instance variables
+	private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+	private String filename = null;
+	private OutputStream file = null;
+	private long size = 0;
+	private boolean spilled = false, closed = false;
+
+	/**
+	 * Constructor: takes in the file to spill to, or null if the response
+	 * is written to a file anyway, in which case nothing is kept beyond the budget
+	 * @param filename
+	 */
+	public WebProxyTextBuffer(String filename) {
+		this.filename = filename;
+	}
+
+	/**
+	 * Buffers a single byte
+	 * @param b
+	 * @throws IOException
+	 */
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	/**
+	 * Buffers bytes on the heap while they fit, and in the file otherwise
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(closed) return;
+		size += len;
+		if(!spilled && !reserve(len)) spill();
+		if(!spilled) memory.write(b, off, len);
+		else if(file != null) file.write(b, off, len);
+	}
+
+	/**
+	 * Writes out what is held for the file
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if(file != null) file.flush();
+	}
+
+	/**
+	 * Returns the number of bytes written
+	 * @return the size in bytes
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Checks if the buffer went over its budget
+	 * @return true if the bytes are in the file, or were let go of, false if they are on the heap
+	 */
+	boolean isSpilled() {
+		return spilled;
+	}
+
+	/**
+	 * Returns the buffered bytes if they are on the heap
+	 * @return the bytes, or null if the buffer spilled
+	 */
+	ByteArrayOutputStream getMemory() {
+		return spilled ? null : memory;
+	}
+
+	/**
+	 * Opens a stream over everything written
+	 * @return the stream
+	 * @throws IOException if the bytes were let go of or the file cannot be read
+	 */
+	InputStream openStream() throws IOException {
+		if(!spilled) return new ByteArrayInputStream(memory.toByteArray());
+		if(file == null) throw new IOException("Text buffer was not kept");
+		file.flush();
+		return new BufferedInputStream(Files.newInputStream(Paths.get(filename)));
+	}
+
+	/**
+	 * Returns the file the buffer spilled to
+	 * @return the filename, or null if the bytes are on the heap or were let go of
+	 */
+	String getFilename() {
+		return file == null ? null : filename;
+	}
+
+	/**
+	 * Stops counting the bytes on the heap against the global cap, as they
+	 * are handed over to the cache, which has its own budget
+	 */
+	void release() {
+		if(!spilled && !closed) totalMemory.addAndGet(-memory.size());
+		closed = true;
+	}
+
+	/**
+	 * Frees the buffer and deletes its file
+	 */
+	public void close() {
+		release();
+		memory = null;
+		if(file == null) return;
+		try {
+			file.close();
+			Files.deleteIfExists(Paths.get(filename));
+		} catch (IOException e) {
+			System.out.println("Error: Failed to delete text buffer " + filename + ".");
+			e.printStackTrace();
+		}
+		file = null;
+	}
+
+	/**
+	 * Returns the bytes kept on the heap by all buffers
+	 * @return the bytes
+	 */
+	static long getTotalMemory() {
+		return totalMemory.get();
+	}
+
+	/**
+	 * Returns the number of buffers that went over their budget
+	 * @return the count
+	 */
+	static long getSpills() {
+		return spills.sum();
+	}
+
+	/**
+	 * Counts bytes against the budget of this buffer and the global cap
+	 * @param len
+	 * @return true if they fit, false otherwise
+	 */
+	private boolean reserve(int len) {
+		if(memory.size() + len > MAX_MEMORY) return false;
+		long current;
+		do {
+			current = totalMemory.get();
+			if(current + len > MAX_TOTAL) return false;
+		} while(!totalMemory.compareAndSet(current, current + len));
+		return true;
+	}
+
+	/**
+	 * Moves what is on the heap to the file, or lets go of it if there is no file
+	 * @throws IOException
+	 */
+	private void spill() throws IOException {
+		spilled = true;
+		spills.increment();
+		totalMemory.addAndGet(-memory.size());
+		if(filename != null) {
+			file = new BufferedOutputStream(Files.newOutputStream(Paths.get(filename)), 64 * 1024);
+			memory.writeTo(file);
+		}
+		memory = null;
+	}
+}
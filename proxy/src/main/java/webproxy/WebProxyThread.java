@@ -0,0 +1,1812 @@
+package webproxy;
+
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.io.*;
+
+public class WebProxyThread implements Runnable {
+
+	// Class local cache, bounded by the bytes of its memory tier and on disk,
+	// and stored in segment files that outlive the process
+	static WebProxyCache cache = new WebProxyCache(
+			WebProxyConfig.getLong("cache-max-memory", 64L * 1024 * 1024),
+			WebProxyConfig.getLong("cache-max-disk", 1024L * 1024 * 1024),
+			new WebProxyStore(WebProxyConfig.getString("cache-dir", "cache"),
+					WebProxyConfig.getLong("cache-segment-size", 64L * 1024 * 1024)));
+	
+	// Objects being fetched from remote servers, shared by concurrent misses for the same URL
+	private static ConcurrentHashMap<String, WebProxyInflight> inflight = new ConcurrentHashMap<String, WebProxyInflight>();
+	
+	// Addresses of remote servers, shared by all tasks so that popular hosts are not resolved on every miss
+	static WebProxyResolver resolver = new WebProxyResolver(WebProxyResolver.SYSTEM,
+			WebProxyConfig.getInt("dns-max-entries", 1024),
+			WebProxyConfig.getLong("dns-ttl", 60000),
+			WebProxyConfig.getLong("dns-negative-ttl", 10000));
+	
+	// Idle keep-alive connections to remote servers, shared by all tasks
+	private static WebProxyConnectionPool connectionPool = new WebProxyConnectionPool(
+			WebProxyConfig.getInt("pool-max-idle", 256),
+			WebProxyConfig.getInt("pool-max-per-host", 8),
+			WebProxyConfig.getLong("pool-idle-ttl", 30000));
+	
+	// Revalidates stale and popular cached objects in the background, shared by all tasks
+	static WebProxyRefresher refresher = new WebProxyRefresher(
+			WebProxyConfig.getInt("refresh-threads", 4),
+			WebProxyConfig.getInt("refresh-queue", 256));
+	
+	// What the server said about a cached object: that it is current, that it has
+	// changed (or cannot be revalidated), or nothing, as it could not be asked
+	enum Validation { CURRENT, CHANGED, FAILED }
+	
+	// Instance variables
+	private Socket clientSocket = null, serverSocket = null;
+	private InputStream fromClient = null, fromServer = null;
+	private WebProxyMetrics.CountingOutputStream toClient = null;
+	private OutputStream toServer = null;
+	private String URL = null;
+	private WebProxyCensor censor = new WebProxyCensor(new String[0]);
+	
+	// Remote server of this request
+	private String serverHost = null;
+	private int serverPort = 80;
+	
+	// Whether the server connection came from the pool, and whether it can go back
+	private boolean reusedConnection = false, upstreamReusable = false;
+	
+	// Parser of the current request, reused for every request on the connection
+	private WebProxyRequestParser requestParser = new WebProxyRequestParser();
+	
+	// Whether the client connection stays open after this response,
+	// and whether the client can tell where this response ends
+	private boolean keepClientAlive = false, responseDelimited = false;
+	
+	// Buffers leased from the pool for the request and response while the connection is served,
+	// and the arrays behind them
+	private ByteBuffer requestBuffer = null, responseBuffer = null;
+	private byte[] request = null, response = null;
+	
+	// Number of bytes in the request buffer, and the result of an early read of the response
+	private int requestLength = 0, prefetched = 0;
+	
+	// Part of the request body in the request buffer, and whether it is the whole body
+	private int bodyStart = 0, bodyEnd = 0;
+	private boolean requestBuffered = false;
+	
+	// Ends a censored header, with or without closing the connection
+	private static final byte[] END_OF_HEADER = "\r\n".getBytes();
+	private static final byte[] CONNECTION_CLOSE = WebProxyCachedObject.CensoredText.CONNECTION_CLOSE;
+	
+	// Pipelined bytes received after the current request
+	private int leftoverStart = 0, leftoverLength = 0;
+	
+	// Time (System.nanoTime) the current request started, at first when the connection
+	// was accepted, and when the request was sent to the server, until its first byte is back
+	private long requestStart = System.nanoTime(), requestSentAt = 0;
+	
+	// Fetch this task is making for other tasks too, and whether this task
+	// is relaying another task's fetch instead of talking to the server
+	private WebProxyInflight fetch = null;
+	private boolean following = false;
+	
+	// Outcome of the current request for the access log: the status sent, how the cache answered,
+	// and the times in microseconds to connect and to the first byte, or -1 if it took neither step
+	private int status = 0;
+	private String cacheResult = WebProxyLog.NONE;
+	private long connectMicros = -1, firstByteMicros = -1;
+	
+	// Streams censoring and chunking a text response on its way to the client
+	private WebProxyCensorStream censoredBody = null;
+	private WebProxyChunkedStream chunkedBody = null;
+	
+	// default timeout value in ms for connections
+	int connTimeout = 20000;
+	
+	// timeout value in ms for an idle persistent client connection
+	int clientIdleTimeout = WebProxyConfig.getInt("client-idle-timeout", 15000);
+	
+	// maximum number of requests served on one client connection
+	int maxClientRequests = WebProxyConfig.getInt("client-max-requests", 100);
+	
+	// timeout value in ms for a CONNECT tunnel that relays nothing either way
+	int tunnelIdleTimeout = WebProxyConfig.getInt("tunnel-idle-timeout", 60000);
+	
+	/**
+	 * Constructor: takes in a client socket
+	 * and initialises this task
+	 * @param socket
+	 */
+	public WebProxyThread(Socket socket) {
+		clientSocket = socket;
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Received a connection from: " + clientSocket.toString());
+	}
+	
+	/**
+	 * Constructor: takes in a client socket and censor
+	 * and initialises this task with the socket and censor
+	 * @param socket
+	 * @param censor
+	 */
+	public WebProxyThread(Socket socket, WebProxyCensor censor) {
+		clientSocket = socket;
+		this.censor = censor;
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Received a connection from: " + clientSocket.toString());
+	}
+	
+	/**
+	 * Everything is pretty much self-explanatory
+	 */
+	public void run() {
+		WebProxyMetrics.activeConnections.increment();
+		requestBuffer = WebProxyBufferPool.HEAP.lease(8192);
+		responseBuffer = WebProxyBufferPool.HEAP.lease(8192);
+		request = requestBuffer.array();
+		response = responseBuffer.array();
+		try {
+			// Create I/O streams for the client socket
+			createClientStreams();
+			
+			// Serve requests on this connection, in order, until either side closes it
+			int requests = 0;
+			boolean keepAlive = true;
+			while(keepAlive) {
+				// Process client's request
+				processClientRequest();
+				
+				// Quits if this request is blank
+				if(blankRequest()) {
+					// A request answered with a 400 is logged all the same
+					if(requestParser.isInvalid()) logAccess(-1);
+					if(WebProxyLog.DEBUG) WebProxyLog.debug("Blank request detected, closing client socket...");
+					break;
+				}
+				
+				requests++;
+				keepClientAlive = clientKeepsAlive() && requests < maxClientRequests;
+				// The next request can only be found if this one was read to its end
+				keepAlive = serveRequest() && keepClientAlive && requestParser.isComplete();
+				// A tunnel has already recorded and logged its request, as it outlasts it
+				if(requestStart != 0) logAccess(WebProxyMetrics.total.recordSince(requestStart));
+				requestStart = 0;
+			}
+		} finally {
+			closeClientSocket();
+			WebProxyBufferPool.HEAP.release(requestBuffer);
+			WebProxyBufferPool.HEAP.release(responseBuffer);
+			request = response = null;
+			WebProxyMetrics.activeConnections.decrement();
+		}
+		return;
+	}
+	
+	/**
+	 * Serves the current request from cache or from the remote server
+	 * @return true if the client could tell where the response ended, false otherwise
+	 */
+	private boolean serveRequest() {
+		// Reset the state left by the previous request on this connection
+		URL = null;
+		serverHost = null;
+		serverSocket = null;
+		reusedConnection = false;
+		upstreamReusable = false;
+		responseDelimited = false;
+		prefetched = 0;
+		requestSentAt = 0;
+		
+		// Requests for the proxy itself are answered by it
+		if(WebProxyMetrics.isMetricsRequest(requestParser)) return sendMetricsToClient();
+		
+		// Everything after a CONNECT is relayed as it is, typically TLS
+		if(requestParser.isMethod("CONNECT")) return tunnel();
+		
+		// Performs caching check and related operations
+		if(cached()) return responseDelimited;
+		WebProxyMetrics.cacheMisses.increment();
+		cacheResult = requestParser.isMethod("GET") ? WebProxyLog.MISS : WebProxyLog.PASS;
+		
+		// Concurrent misses for the same object share one fetch from the server
+		if(coalescable()) {
+			WebProxyInflight ownFetch = new WebProxyInflight();
+			WebProxyInflight otherFetch = inflight.putIfAbsent(URL, ownFetch);
+			if(otherFetch == null) fetch = ownFetch;
+			else if(followFetch(otherFetch)) return responseDelimited;
+		}
+		
+		try {
+			return fetchFromServer();
+		} finally {
+			// The response is cached by now, so later misses no longer need this fetch
+			if(fetch != null) {
+				inflight.remove(URL, fetch);
+				fetch.finish();
+				fetch = null;
+			}
+		}
+	}
+	
+	/**
+	 * Hands the outcome of the current request to the access log, if there is one
+	 * @param totalMicros the time the request took, or -1 if it was not measured
+	 */
+	private void logAccess(long totalMicros) {
+		if(!WebProxyLog.ACCESS) return;
+		WebProxyLog.Access access = new WebProxyLog.Access(clientSocket.getInetAddress(), requestParser);
+		access.status = status;
+		access.cache = cacheResult;
+		access.bytes = toClient.count;
+		access.upstream = serverHost;
+		access.upstreamPort = serverPort;
+		access.totalMicros = totalMicros;
+		access.connectMicros = connectMicros;
+		access.firstByteMicros = firstByteMicros;
+		WebProxyLog.access(access);
+	}
+	
+	/**
+	 * Sends the metrics to a client on the same host, and a 403 to any other
+	 * @return true if the metrics were sent, false otherwise
+	 */
+	private boolean sendMetricsToClient() {
+		boolean local = clientSocket.getInetAddress().isLoopbackAddress();
+		status = local ? 200 : 403;
+		try {
+			toClient.write(local ? WebProxyMetrics.getResponse(keepClientAlive) : get403ErrorMessage());
+			toClient.flush();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to send metrics to client.");
+			e.printStackTrace();
+			return false;
+		}
+		return local;
+	}
+	
+	/**
+	 * Connects to the remote server named by a CONNECT request, then relays bytes
+	 * both ways until both sides have closed or the tunnel is idle for too long
+	 * @return false, as the client connection ends with the tunnel
+	 */
+	private boolean tunnel() {
+		String host = requestParser.getHost();
+		int port = requestParser.getPort();
+		SocketChannel clientChannel = clientSocket.getChannel();
+		cacheResult = WebProxyLog.TUNNEL;
+		serverHost = host;
+		serverPort = port;
+		// The relay works on channels, which every accepted client socket has
+		if(port < 0 || clientChannel == null) {
+			send502Response();
+			return false;
+		}
+		
+		SocketChannel serverChannel = null;
+		try {
+			if(WebProxyLog.DEBUG) WebProxyLog.debug("Opening tunnel to remote server " + host + " at port " + port + "...");
+			long connectStart = System.nanoTime();
+			InetAddress address = resolver.resolve(host);
+			if(address == null) throw new UnknownHostException(host);
+			serverChannel = SocketChannel.open();
+			serverChannel.socket().connect(new InetSocketAddress(address, port), connTimeout);
+			connectMicros = WebProxyMetrics.upstreamConnect.recordSince(connectStart);
+		} catch (Exception e) {
+			System.out.println("Error: Failed to open tunnel to remote server " + host);
+			closeStream(serverChannel);
+			send502Response();
+			e.printStackTrace();
+			return false;
+		}
+		
+		try {
+			status = 200;
+			toClient.write(get200ConnectionEstablishedMessage());
+			toClient.flush();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to send response to client.");
+			e.printStackTrace();
+			closeStream(serverChannel);
+			return false;
+		}
+		long totalMicros = WebProxyMetrics.total.recordSince(requestStart);
+		requestStart = 0;
+		
+		// Whatever the client sent after its request already belongs to the tunnel,
+		// which is logged once it closes, with the time it took to establish
+		new WebProxyTunnel(clientChannel, serverChannel, ByteBuffer.wrap(request, leftoverStart, leftoverLength)).relay(tunnelIdleTimeout);
+		leftoverLength = 0;
+		logAccess(totalMicros);
+		return false;
+	}
+	
+	/**
+	 * Checks if the current request can share a fetch with other requests for the same URL
+	 * @return true if the request is an unconditional GET, false otherwise
+	 */
+	private boolean coalescable() {
+		return URL != null && requestParser.isMethod("GET") && WebProxyCachedObject.isServable(requestParser)
+				&& requestParser.get("If-None-Match") == null && requestParser.get("If-Modified-Since") == null;
+	}
+	
+	/**
+	 * Relays the response of another task's fetch as it is written to cache
+	 * @param otherFetch
+	 * @return true if the response was relayed, false if the fetch ended without one
+	 */
+	private boolean followFetch(WebProxyInflight otherFetch) {
+		InputStream stream = otherFetch.open(connTimeout);
+		if(stream == null) return false;
+		
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Joining a fetch in progress...");
+		cacheResult = WebProxyLog.COALESCED;
+		fromServer = stream;
+		following = true;
+		try {
+			sendResponseToClient();
+		} finally {
+			following = false;
+			fromServer = null;
+			closeStream(stream);
+		}
+		return true;
+	}
+	
+	/**
+	 * Serves the current request from the remote server
+	 * @return true if the client could tell where the response ended, false otherwise
+	 */
+	private boolean fetchFromServer() {
+		// Create socket and I/O streams to remote server
+		if(!createServerSocketAndStreams()) return false;
+		
+		// Send client's request to remote server
+		sendRequestToServer();
+		
+		// A request body whose end cannot be found leaves the server connection in an unknown state
+		if(requestParser.isInvalid()) {
+			closeServerSocket();
+			send400Response();
+			return false;
+		}
+		
+		// A pooled connection may have been closed by the server while idle,
+		// in which case the request is retried once on a new connection
+		if(reusedConnection && !responseAvailable()) {
+			if(WebProxyLog.DEBUG) WebProxyLog.debug("Pooled connection was closed by the remote server, reconnecting...");
+			closeServerSocket();
+			if(!createServerSocketAndStreams()) return false;
+			sendRequestToServer();
+		}
+
+		// Send server's response to client
+		sendResponseToClient();
+		
+		return responseDelimited;
+	}
+	
+	/**
+	 * Checks if the client asked to keep its connection open after this request
+	 * @return true if the connection can carry another request, false otherwise
+	 */
+	private boolean clientKeepsAlive() {
+		if(!requestParser.isHttp11()) return false;
+		return !requestParser.hasToken("Connection", "close") && !requestParser.hasToken("Proxy-Connection", "close");
+	}
+	
+	/**
+	 * Checks if the current request is blank
+	 * @return true if no whole request header was received, false otherwise
+	 */
+	private boolean blankRequest() {
+		return !requestParser.isHeaderComplete();
+	}
+
+	/**
+	 * Checks if the requested object is cached
+	 * and responds with the cached object if it is
+	 * @return true if object is cached, false otherwise
+	 */
+	private boolean cached() {
+		setURL();
+		// A GET is answered from the cache, a HEAD with the cached header, anything else goes to the server,
+		// as does a request whose client wants the response from the server
+		if(URL == null || !(requestParser.isMethod("GET") || requestParser.isMethod("HEAD"))) return false;
+		if(!WebProxyCachedObject.isServable(requestParser)) return false;
+		
+		// Cached
+		long lookupStart = System.nanoTime();
+		WebProxyCachedObject thisCache = cache.get(URL);
+		WebProxyMetrics.cacheLookup.recordSince(lookupStart);
+		// An object that varies is only served to requests like the one it answered
+		if(thisCache != null && !thisCache.matches(requestParser)) thisCache = null;
+		String result = thisCache == null ? null : checkCache(URL, thisCache, connTimeout, true);
+		if(result != null) {
+			cacheResult = result;
+			if(requestParser.isMethod("HEAD")) return sendCachedHeaderToClient(thisCache);
+			if(thisCache.isPartial()) return servePartial(thisCache);
+			
+			// The object may have been evicted since the lookup
+			FileChannel file = null;
+			ByteBuffer memory = null;
+			WebProxyCachedObject.CensoredText text = null;
+			if(thisCache.isText) {
+				if((text = getCensoredText(URL, thisCache, censor)) == null) return false;
+			} else if((memory = cache.openMemory(URL, thisCache)) == null && (file = cache.open(thisCache)) == null) {
+				return false;
+			}
+			
+			// Send the cached object to client
+			if(WebProxyLog.DEBUG) WebProxyLog.debug("Sending cached response...");
+			WebProxyMetrics.cacheHits.increment();
+			status = thisCache.status;
+			if(thisCache.isText) {
+				WebProxyRange ranges = text.header == null ? null : WebProxyRange.parse(requestParser, thisCache, text.body.length);
+				if(ranges == null) sendCensoredToClient(text);
+				else sendCensoredRangesToClient(text, ranges);
+			} else {
+				WebProxyRange ranges = thisCache.hasRanges() ? WebProxyRange.parse(requestParser, thisCache, thisCache.contentLength) : null;
+				if(memory != null) {
+					sendMemoryToClient(memory, thisCache, ranges);
+				} else {
+					sendStoredToClient(file, thisCache, ranges);
+					closeStream(file);
+				}
+			}
+			if(WebProxyLog.DEBUG) WebProxyLog.debug("Done.");
+			return true;
+		}
+		
+		// Not cached
+		return false;
+	}
+
+	/**
+	 * Answers a HEAD request with the header of a cached object and nothing after it,
+	 * so that a client keeping the connection open reads its next response right after
+	 * @param object
+	 * @return true if the header was sent, false if the request is to be sent to the server
+	 */
+	private boolean sendCachedHeaderToClient(WebProxyCachedObject object) {
+		byte[][] header;
+		if(object.isText) {
+			WebProxyCachedObject.CensoredText text = getCensoredText(URL, object, censor);
+			if(text == null || text.header == null) return false;
+			header = new byte[][] {text.header, keepClientAlive ? END_OF_HEADER : CONNECTION_CLOSE};
+		} else {
+			// The length of the header is only known for objects stored with their ranges
+			if(!object.hasRanges()) return false;
+			WebProxyHeader stored;
+			ByteBuffer memory = cache.openMemory(URL, object);
+			if(memory != null) {
+				stored = readStoredHeader(memory, object.headerLength);
+			} else {
+				FileChannel file = cache.open(object);
+				if(file == null) return false;
+				try {
+					stored = readStoredHeader(file, file.position(), object.headerLength);
+				} catch (IOException e) {
+					System.out.println("Error: Failed to read cached header.");
+					e.printStackTrace();
+					return false;
+				} finally {
+					closeStream(file);
+				}
+			}
+			if(!keepClientAlive) stored.set("Connection", "close");
+			header = new byte[][] {stored.toBytes()};
+		}
+		
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Sending cached header...");
+		WebProxyMetrics.cacheHits.increment();
+		status = object.status;
+		try {
+			for(byte[] part : header) toClient.write(part);
+			toClient.flush();
+			responseDelimited = true;
+		} catch (IOException e) {
+			System.out.println("Error: Failed to send response to client.");
+			e.printStackTrace();
+			responseDelimited = false;
+		}
+		return true;
+	}
+
+	/**
+	 * Serves a request for a partial object: ranges within the stored start of its
+	 * body from the cache, and anything further by fetching the rest from the server
+	 * @param partial
+	 * @return true if a response was sent, false if the request is to be sent to the server as it is
+	 */
+	private boolean servePartial(WebProxyCachedObject partial) {
+		if(!requestParser.isMethod("GET")) return false;
+		WebProxyRange ranges = WebProxyRange.parse(requestParser, partial, partial.contentLength);
+		if(ranges != null && ranges.getLast() <= partial.getStoredBodyLength()) {
+			FileChannel file = cache.open(partial);
+			if(file == null) return false;
+			if(WebProxyLog.DEBUG) WebProxyLog.debug("Sending ranges of a partial cached response...");
+			WebProxyMetrics.cacheHits.increment();
+			sendStoredToClient(file, partial, ranges);
+			closeStream(file);
+			return true;
+		}
+		// The rest is fetched for the whole object or a single range, several ranges go to the server
+		if((ranges != null && ranges.size() > 1) || !partial.canResume()) return false;
+		return fillIn(partial, ranges);
+	}
+
+	/**
+	 * Sends a stored object to the client, either whole or the ranges of its body
+	 * @param file positioned at the start of the object
+	 * @param object
+	 * @param ranges the ranges to send, or null to send the whole object
+	 */
+	private void sendStoredToClient(FileChannel file, WebProxyCachedObject object, WebProxyRange ranges) {
+		try {
+			long start = file.position();
+			if(ranges == null) {
+				sendFileToClient(file, start, object.location.length);
+				responseDelimited = object.delimited;
+				return;
+			}
+			WebProxyMetrics.rangeResponses.increment();
+			responseDelimited = true;
+			if(ranges.size() == 0) {
+				status = 416;
+				toClient.write(WebProxyRange.getUnsatisfiableResponse(object.contentLength, keepClientAlive));
+				toClient.flush();
+				return;
+			}
+			status = 206;
+			toClient.write(ranges.getResponseHeader(readStoredHeader(file, start, object.headerLength), keepClientAlive));
+			long bodyStart = start + object.headerLength;
+			for(int i = 0; i < ranges.size(); i++) {
+				toClient.write(ranges.getPartHeader(i));
+				toClient.flush();
+				sendFileToClient(file, bodyStart + ranges.getStart(i), ranges.getEnd(i) - ranges.getStart(i) + 1);
+			}
+			toClient.write(ranges.getTrailer());
+			toClient.flush();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to send response to client.");
+			e.printStackTrace();
+			responseDelimited = false;
+		}
+	}
+
+	/**
+	 * Sends a binary object from the memory tier to the client, either whole or the ranges of its body
+	 * @param memory the stored object
+	 * @param object
+	 * @param ranges the ranges to send, or null to send the whole object
+	 */
+	private void sendMemoryToClient(ByteBuffer memory, WebProxyCachedObject object, WebProxyRange ranges) {
+		try {
+			ByteBuffer[] parts;
+			if(ranges == null) {
+				parts = new ByteBuffer[] {memory};
+				responseDelimited = object.delimited;
+			} else if(ranges.size() == 0) {
+				WebProxyMetrics.rangeResponses.increment();
+				status = 416;
+				parts = new ByteBuffer[] {ByteBuffer.wrap(WebProxyRange.getUnsatisfiableResponse(object.contentLength, keepClientAlive))};
+				responseDelimited = true;
+			} else {
+				WebProxyMetrics.rangeResponses.increment();
+				status = 206;
+				WebProxyHeader header = readStoredHeader(memory, object.headerLength);
+				memory.position(memory.position() + object.headerLength);
+				parts = ranges.getResponse(header, memory, keepClientAlive);
+				responseDelimited = true;
+			}
+			SocketChannel clientChannel = clientSocket.getChannel();
+			if(clientChannel != null) {
+				// One gathering write instead of one write per part
+				long remaining = 0;
+				for(ByteBuffer part : parts) remaining += part.remaining();
+				while(remaining > 0) {
+					long sent = clientChannel.write(parts);
+					toClient.sent(sent);
+					remaining -= sent;
+				}
+			} else {
+				// Copied through the response buffer, as the object is not on the heap
+				for(ByteBuffer part : parts) {
+					while(part.hasRemaining()) {
+						int length = Math.min(part.remaining(), response.length);
+						part.get(response, 0, length);
+						toClient.write(response, 0, length);
+					}
+				}
+			}
+			toClient.flush();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to send response to client.");
+			e.printStackTrace();
+			responseDelimited = false;
+		}
+	}
+
+	/**
+	 * Sends ranges of a censored text object to the client
+	 * @param text
+	 * @param ranges
+	 */
+	private void sendCensoredRangesToClient(WebProxyCachedObject.CensoredText text, WebProxyRange ranges) {
+		WebProxyMetrics.rangeResponses.increment();
+		try {
+			if(ranges.size() == 0) {
+				status = 416;
+				toClient.write(WebProxyRange.getUnsatisfiableResponse(text.body.length, keepClientAlive));
+			} else {
+				status = 206;
+				toClient.write(ranges.getResponseHeader(WebProxyHeader.parse(new String(text.header)), keepClientAlive));
+				for(int i = 0; i < ranges.size(); i++) {
+					toClient.write(ranges.getPartHeader(i));
+					toClient.write(text.body, (int) ranges.getStart(i), (int) (ranges.getEnd(i) - ranges.getStart(i) + 1));
+				}
+				toClient.write(ranges.getTrailer());
+			}
+			toClient.flush();
+			responseDelimited = true;
+		} catch (IOException e) {
+			System.out.println("Error: Failed to send response to client.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the header of a stored response
+	 * @param file
+	 * @param position where the stored response starts
+	 * @param length the length of its header
+	 * @return the parsed header
+	 * @throws IOException
+	 */
+	static WebProxyHeader readStoredHeader(FileChannel file, long position, int length) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(length);
+		while(header.hasRemaining()) {
+			if(file.read(header, position + header.position()) < 0) throw new EOFException("Cache segment ended early");
+		}
+		return WebProxyHeader.parse(new String(header.array()));
+	}
+
+	/**
+	 * Reads the header of a stored response held in memory
+	 * @param memory the stored response, from its position on
+	 * @param length the length of its header
+	 * @return the parsed header
+	 */
+	static WebProxyHeader readStoredHeader(ByteBuffer memory, int length) {
+		byte[] header = new byte[length];
+		memory.duplicate().get(header);
+		return WebProxyHeader.parse(new String(header));
+	}
+
+	/**
+	 * Serves a partial object whole, or a single range of it, by sending the stored
+	 * start of its body and fetching the rest up to the end of what the client asked
+	 * for. The server is asked for a range that it only sends if the object has not
+	 * changed, and the rest is stored after the start, so that the next request finds
+	 * the object whole, or at least longer
+	 * @param partial
+	 * @param ranges a single range, or null for the whole object
+	 * @return true if a response was sent, false if the server did not send the rest
+	 */
+	private boolean fillIn(WebProxyCachedObject partial, WebProxyRange ranges) {
+		long stored = partial.getStoredBodyLength();
+		long first = ranges == null ? 0 : ranges.getStart(0), last = ranges == null ? partial.contentLength - 1 : ranges.getEnd(0);
+		FileChannel file = cache.open(partial);
+		if(file == null) return false;
+		String filename = null;
+		FileChannel staging = null;
+		WebProxyResponseFraming framing = newFraming();
+		try {
+			long start = file.position();
+			WebProxyHeader header = readStoredHeader(file, start, partial.headerLength);
+			
+			// Ask for the rest, as long as it belongs to the stored version of the object
+			if(!createServerSocketAndStreams()) return true;
+			if(WebProxyLog.DEBUG) WebProxyLog.debug("Fetching bytes " + stored + "-" + last + " of a partial cached response...");
+			StringBuilder request = newOriginRequest(new URI(URL))
+					.append("Range: bytes=").append(stored).append('-').append(last).append("\r\n")
+					.append("If-Range: ").append(partial.etag != null ? partial.etag : partial.lastModified).append("\r\n")
+					.append("Connection: keep-alive\r\n\r\n");
+			toServer.write(request.toString().getBytes());
+			toServer.flush();
+			requestSentAt = System.nanoTime();
+			
+			// Anything but the rest that was asked for is left to a request for the whole object
+			int bytes_length = 0, bodyStart = 0;
+			while(!framing.isHeaderComplete() || framing.isInterim()) {
+				if(framing.isInterim()) framing = newFraming();
+				if(bodyStart == bytes_length) {
+					if((bytes_length = readFromServer()) == -1) break;
+					bodyStart = 0;
+				}
+				bodyStart += framing.consume(response, bodyStart, bytes_length - bodyStart);
+			}
+			WebProxyHeader rest = framing.getHeader();
+			String contentRange = "bytes " + stored + "-" + last + "/" + partial.contentLength;
+			if(rest == null || rest.getStatusCode() != 206 || !contentRange.equals(rest.get("Content-Range"))) {
+				// A 200 means the object has changed since its start was stored
+				if(rest != null && rest.getStatusCode() == 200) cache.remove(URL);
+				closeServerSocket();
+				return false;
+			}
+			
+			// Store the start again, followed by the rest as it arrives
+			WebProxyMetrics.partialFills.increment();
+			cacheResult = WebProxyLog.PARTIAL;
+			filename = generateFilename(URL);
+			staging = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			for(long copied = 0; copied < partial.location.length; ) {
+				copied += file.transferTo(start + copied, partial.location.length - copied, staging);
+			}
+			
+			// Send the client the part of the stored start it asked for, then the rest
+			status = ranges == null ? partial.status : 206;
+			if(ranges == null && !keepClientAlive) header.set("Connection", "close");
+			toClient.write(ranges == null ? header.toBytes() : ranges.getResponseHeader(header, keepClientAlive));
+			toClient.flush();
+			if(first < stored) sendFileToClient(file, start + partial.headerLength + first, Math.min(last + 1, stored) - first);
+			framing.setBodySink(new FillInStream(staging, stored, first, last));
+			while(true) {
+				framing.consume(response, bodyStart, bytes_length - bodyStart);
+				toClient.flush();
+				if(framing.isComplete() || (bytes_length = readFromServer()) == -1) break;
+				bodyStart = 0;
+			}
+			responseDelimited = framing.isComplete();
+		} catch (URISyntaxException e) {
+			closeServerSocket();
+			return false;
+		} catch (IOException e) {
+			System.out.println("Error: Failed to fill in partial cached response.");
+			e.printStackTrace();
+		} finally {
+			closeStream(file);
+			closeStream(staging);
+		}
+		
+		// Whatever was fetched makes the stored object longer, if not whole
+		if(filename != null && new File(filename).length() > partial.location.length) {
+			cache.put(URL, partial.copy(filename));
+		} else if(filename != null) {
+			new File(filename).delete();
+		}
+		upstreamReusable = framing.isReusable();
+		closeSockets();
+		return true;
+	}
+
+	/**
+	 * Receives the rest of a partial body from the server, storing all of
+	 * it and sending the client the part within the range it asked for
+	 */
+	private class FillInStream extends OutputStream {
+		private FileChannel staging = null;
+		private long offset = 0, first = 0, last = 0;
+		private byte[] single = new byte[1];
+
+		/**
+		 * Constructor: takes in the staging file, the offset in the body of the
+		 * first byte to receive, and the first and last byte to send the client
+		 * @param staging
+		 * @param offset
+		 * @param first
+		 * @param last
+		 */
+		FillInStream(FileChannel staging, long offset, long first, long last) {
+			this.staging = staging;
+			this.offset = offset;
+			this.first = first;
+			this.last = last;
+		}
+
+		public void write(int b) throws IOException {
+			single[0] = (byte) b;
+			write(single, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer bytes = ByteBuffer.wrap(b, off, len);
+			while(bytes.hasRemaining()) staging.write(bytes);
+			long from = Math.max(offset, first), to = Math.min(offset + len, last + 1);
+			if(from < to) toClient.write(b, off + (int) (from - offset), (int) (to - from));
+			offset += len;
+		}
+	}
+
+	/**
+	 * Starts a request from the proxy itself for a URL
+	 * @param uri
+	 * @return the request line and Host field, to be followed by more fields
+	 */
+	private static StringBuilder newOriginRequest(URI uri) {
+		String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+		if(uri.getRawQuery() != null) path += "?" + uri.getRawQuery();
+		return new StringBuilder("GET ").append(path).append(" HTTP/1.1\r\n")
+				.append("Host: ").append(uri.getRawAuthority()).append("\r\n");
+	}
+
+	/**
+	 * Checks if the cached object for a URL can be served. A fresh object is, and is
+	 * refreshed in the background once it is popular and close to expiring. An object
+	 * that expired within its stale-while-revalidate is too, while it is refreshed.
+	 * Anything older is revalidated with the server, and still served within its
+	 * stale-if-error if the server cannot be asked
+	 * @param URL
+	 * @param cachedObject
+	 * @param connTimeout
+	 * @param ask whether the server may be asked, or null is returned instead
+	 * @return how the cache answered (WebProxyLog.HIT, STALE or REVALIDATED), or null if the object cannot be served
+	 */
+	static String checkCache(String URL, WebProxyCachedObject cachedObject, int connTimeout, boolean ask) {
+		if(cachedObject.isFresh()) {
+			if(cachedObject.hitAndCheckRefresh()) refresher.refresh(URL, cachedObject, connTimeout);
+			return WebProxyLog.HIT;
+		}
+		if(cachedObject.isStaleWhileRevalidate()) {
+			refresher.refresh(URL, cachedObject, connTimeout);
+			WebProxyMetrics.staleResponses.increment();
+			return WebProxyLog.STALE;
+		}
+		if(!ask) return null;
+		long start = System.nanoTime();
+		Validation validation = revalidate(URL, cachedObject, connTimeout, false);
+		WebProxyMetrics.revalidation.recordSince(start);
+		if(validation == Validation.CURRENT) return WebProxyLog.REVALIDATED;
+		if(validation == Validation.FAILED && cachedObject.isStaleIfError()) {
+			WebProxyMetrics.staleOnErrorResponses.increment();
+			return WebProxyLog.STALE;
+		}
+		return null;
+	}
+
+	/**
+	 * Asks the server if a cached object is still current with a conditional request
+	 * @param URL
+	 * @param cachedObject
+	 * @param connTimeout
+	 * @param store whether a new response is stored in place of the object
+	 * @return CURRENT if the server answered 304, FAILED if it could not be asked or
+	 * answered with a server error, CHANGED otherwise
+	 */
+	static Validation revalidate(String URL, WebProxyCachedObject cachedObject, int connTimeout, boolean store) {
+		String filename = null;
+		try {
+			URI uri = new URI(URL);
+			String host = uri.getHost();
+			int port = uri.getPort() < 0 ? 80 : uri.getPort();
+			if(host == null || !"http".equalsIgnoreCase(uri.getScheme())) return Validation.CHANGED;
+			
+			// Prefer the entity tag, which also tells apart changes within the same second
+			StringBuilder request = newOriginRequest(uri);
+			if(cachedObject.etag != null) request.append("If-None-Match: ").append(cachedObject.etag).append("\r\n");
+			else if(cachedObject.lastModified != null) request.append("If-Modified-Since: ").append(cachedObject.lastModified).append("\r\n");
+			else request.append("If-Modified-Since: ").append(cachedObject.date).append("\r\n");
+			request.append("Connection: keep-alive\r\n\r\n");
+			
+			// A pooled connection may have been closed by the server while idle, in which case it is retried once
+			OutputStream thisCache = null;
+			if(store) thisCache = getFileOutputStream(filename = generateFilename(URL));
+			Socket socket = connectionPool.acquire(host, port);
+			WebProxyResponseFraming framing = null;
+			if(socket != null) framing = sendConditionalRequest(socket, request.toString().getBytes(), connTimeout, thisCache);
+			if(framing == null || framing.getHeader() == null) {
+				closeStream(socket);
+				InetAddress address = resolver.resolve(host);
+				if(address == null) return Validation.FAILED;
+				socket = new Socket();
+				socket.connect(new InetSocketAddress(address, port), connTimeout);
+				framing = sendConditionalRequest(socket, request.toString().getBytes(), connTimeout, thisCache);
+			}
+			closeStream(thisCache);
+			
+			// A 304 has no body, so its connection can be reused right away
+			WebProxyHeader header = framing == null ? null : framing.getHeader();
+			if(header == null || header.getStatusCode() != 304) {
+				closeStream(socket);
+				if(header == null || header.getStatusCode() >= 500) return Validation.FAILED;
+				if(store && framing.isComplete()) {
+					storeRefreshed(URL, filename, framing);
+					filename = null;
+				}
+				return Validation.CHANGED;
+			}
+			if(framing.isReusable()) connectionPool.release(host, port, socket);
+			else closeStream(socket);
+			cachedObject.revalidated(header);
+			cache.revalidated(cachedObject);
+			return Validation.CURRENT;
+		} catch (URISyntaxException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if(filename != null) new File(filename).delete();
+		}
+		return Validation.FAILED;
+	}
+
+	/**
+	 * Caches a response that a background refresh received in place of the stale object
+	 * @param URL
+	 * @param filename holding the stored response
+	 * @param framing of the complete response
+	 */
+	private static void storeRefreshed(String URL, String filename, WebProxyResponseFraming framing) {
+		// The refresh carries none of the client's fields, so a response that varies is not stored for them,
+		// and one the server no longer lets caches store takes the stale object out of the cache
+		WebProxyHeader header = framing.getHeader();
+		if(!isCacheable(header, null) || header.get("Vary") != null) {
+			cache.remove(URL);
+			new File(filename).delete();
+			return;
+		}
+		// Text is read from the store when it is first served
+		WebProxyCachedObject cachedObject = new WebProxyCachedObject(getServerTime(), filename, isText(header), true);
+		cachedObject.setFreshness(header);
+		cachedObject.setLayout(getCacheHeader(framing).length, header);
+		cache.put(URL, cachedObject);
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Refreshed " + URL);
+	}
+
+	/**
+	 * Sends a conditional request to the server and reads the header of its response,
+	 * and the whole response if it is to be stored and is not a 304 or a server error
+	 * @param socket
+	 * @param request
+	 * @param connTimeout
+	 * @param thisCache where a new response is stored, or null to only read the header
+	 * @return the framing of the response, whose header is null if the server closed the connection
+	 */
+	private static WebProxyResponseFraming sendConditionalRequest(Socket socket, byte[] request, int connTimeout, OutputStream thisCache) {
+		ByteBuffer leased = WebProxyBufferPool.HEAP.lease(8192);
+		try {
+			socket.setSoTimeout(connTimeout);
+			socket.getOutputStream().write(request);
+			socket.getOutputStream().flush();
+			
+			InputStream fromServer = socket.getInputStream();
+			byte[] buffer = leased.array();
+			WebProxyResponseFraming framing = new WebProxyResponseFraming();
+			int bytes_length = 0, bodyStart = 0;
+			while(!framing.isHeaderComplete() || framing.isInterim()) {
+				if(framing.isInterim()) framing = new WebProxyResponseFraming();
+				if(bodyStart == bytes_length) {
+					if((bytes_length = fromServer.read(buffer)) == -1) break;
+					bodyStart = 0;
+				}
+				bodyStart += framing.consume(buffer, bodyStart, bytes_length - bodyStart);
+			}
+			WebProxyHeader header = framing.getHeader();
+			if(thisCache != null && header != null && header.getStatusCode() != 304 && header.getStatusCode() != 206
+					&& header.getStatusCode() < 500) {
+				// A response cut short is returned as it is, and not stored as it is incomplete
+				try {
+					thisCache.write(getCacheHeader(framing));
+					while(true) {
+						int bodyLength = framing.consume(buffer, bodyStart, bytes_length - bodyStart);
+						thisCache.write(buffer, bodyStart, bodyLength);
+						if(framing.isComplete() || framing.isMalformed() || (bytes_length = fromServer.read(buffer)) == -1) break;
+						bodyStart = 0;
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				return framing;
+			}
+			// Nothing else may follow the header on a connection that goes back to the pool
+			if(bytes_length > bodyStart) framing.consume(buffer, bodyStart, bytes_length - bodyStart);
+			return framing;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			WebProxyBufferPool.HEAP.release(leased);
+		}
+	}
+
+	/**
+	 * Sends the server's response to the client and at the same time
+	 * write the server's response to cache, unless following another task's fetch
+	 */
+	private void sendResponseToClient() {
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Sending response to client...");
+		
+		String filename = null;
+		OutputStream thisCache = null;
+		WebProxyResponseFraming framing = newFraming();
+		
+		// Only cleared once the response has been relayed, or has failed with an I/O error
+		boolean isText = false, aborted = true;
+		int headerLength = 0;
+		try {
+			// Read the whole header first, as it is rewritten before it is relayed
+			int bytes_length = 0, bodyStart = 0;
+			while(true) {
+				while(!framing.isHeaderComplete()) {
+					if(bodyStart == bytes_length) {
+						if((bytes_length = readFromServer()) == -1) break;
+						bodyStart = 0;
+					}
+					bodyStart += framing.consume(response, bodyStart, bytes_length - bodyStart);
+				}
+				if(!framing.isInterim()) break;
+				
+				// Interim responses (e.g. 100 Continue) go to the client ahead of the final one
+				toClient.write(framing.getHeaderBytes());
+				toClient.flush();
+				framing = newFraming();
+			}
+			if(bytes_length == -1) bytes_length = bodyStart = 0;
+			
+			// Only responses to GET that a shared cache may store are cached, and only those
+			// that do not vary are shared with concurrent misses, which fetch their own otherwise
+			if(!following && requestParser.isMethod("GET") && isCacheable(framing.getHeader(), requestParser)) {
+				thisCache = getFileOutputStream(filename = generateFilename(URL));
+			}
+			if(fetch != null) {
+				if(filename != null && framing.getHeader().get("Vary") == null) {
+					fetch.start(filename);
+				} else {
+					inflight.remove(URL, fetch);
+					fetch.finish();
+					fetch = null;
+				}
+			}
+			
+			// Write the header to cache, and to client
+			isText = isText(framing.getHeader());
+			status = framing.getHeader() == null ? 0 : framing.getHeader().getStatusCode();
+			byte[] header = getCacheHeader(framing);
+			headerLength = header.length;
+			writeToCache(thisCache, header, 0, header.length);
+			
+			// Text is censored as it arrives, which changes its length
+			if(isText && !censor.isEmpty() && framing.hasBody()) {
+				toClient.write(getCensoredHeader(framing));
+				censoredBody = new WebProxyCensorStream(censor, getCensoredBodyStream());
+				framing.setBodySink(censoredBody);
+			} else {
+				toClient.write(getClientHeader(framing));
+			}
+			
+			// Then relay the body until the response is complete
+			while(true) {
+				int bodyLength = framing.consume(response, bodyStart, bytes_length - bodyStart);
+				
+				// Write to cache
+				writeToCache(thisCache, response, bodyStart, bodyLength);
+				
+				// Anything not being censored is written directly to client
+				if(censoredBody == null) toClient.write(response, bodyStart, bodyLength);
+				else censoredBody.flush();
+				toClient.flush();
+				
+				// Stop as soon as the response is complete, as the server keeps the connection open
+				// and past a malformed body, whose end cannot be found
+				if(framing.isComplete() || framing.isMalformed() || (bytes_length = readFromServer()) == -1) break;
+				bodyStart = 0;
+			}
+			
+			// Send what the censor held back, then end the censored body
+			if(censoredBody != null) finishCensoredBody(framing);
+			aborted = false;
+		} catch (SocketException e){
+			e.printStackTrace();
+			if(WebProxyLog.DEBUG) WebProxyLog.debug("Socket exception: " + (following ? clientSocket : serverSocket));
+		} catch (IOException e) {
+			System.out.println("Error: Failed to send response to client.");
+			e.printStackTrace();
+		} finally {
+			// Also reached on any other exception, so that the sockets and the cache file are never left open.
+			// The server connection can only be pooled after a complete response
+			upstreamReusable = upstreamReusable && !aborted && framing.isReusable();
+			if(censoredBody == null) responseDelimited = framing.isComplete();
+			censoredBody = null;
+			chunkedBody = null;
+			if(!following) finishCaching(filename, thisCache, framing, isText, headerLength, aborted);
+		}
+	}
+
+	/**
+	 * Closes the cache file of a response and hands it to the cache, or deletes it,
+	 * then closes or pools the sockets
+	 * @param filename
+	 * @param thisCache
+	 * @param framing
+	 * @param isText
+	 * @param headerLength
+	 * @param aborted true if relaying the response failed
+	 */
+	private void finishCaching(String filename, OutputStream thisCache, WebProxyResponseFraming framing, boolean isText, int headerLength, boolean aborted) {
+		try {
+			// The file is complete, so it is closed before the cache accounts for its size.
+			// A response cut short is only kept if the rest can be fetched later
+			closeStream(thisCache);
+			WebProxyCachedObject cachedObject = null;
+			if(filename != null) {
+				cachedObject = new WebProxyCachedObject(getServerTime(), filename, isText, framing.isComplete());
+				cachedObject.setFreshness(framing.getHeader());
+				cachedObject.setVariant(framing.getHeader(), requestParser);
+				cachedObject.setLayout(headerLength, framing.getHeader());
+			}
+			// Without a header, the end of the connection says nothing about the end of the response
+			boolean whole = framing.isComplete() || (framing.getHeader() != null && !framing.isDelimited() && !framing.isMalformed() && !aborted);
+			if(cachedObject != null && (whole || isResumable(cachedObject, filename))) {
+				cache.put(URL, cachedObject);
+				filename = null;
+			}
+		} finally {
+			if(filename != null) new File(filename).delete();
+			closeSockets();
+		}
+	}
+
+	/**
+	 * Writes part of the response to the cache file, letting the tasks
+	 * following this fetch know that more of it can be read
+	 * @param thisCache
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	private void writeToCache(OutputStream thisCache, byte[] bytes, int offset, int length) throws IOException {
+		if(thisCache == null) return;
+		thisCache.write(bytes, offset, length);
+		thisCache.flush();
+		if(fetch != null) fetch.wrote(length);
+	}
+
+	/**
+	 * Returns the response header as it is cached, without the fields
+	 * that only apply to the connection to the remote server
+	 * @param framing
+	 * @return the header to cache
+	 */
+	static byte[] getCacheHeader(WebProxyResponseFraming framing) {
+		WebProxyHeader header = framing.getHeader();
+		if(header == null) return framing.getHeaderBytes();
+		header.remove("Connection");
+		header.remove("Keep-Alive");
+		header.remove("Proxy-Connection");
+		return header.toBytes();
+	}
+
+	/**
+	 * Returns a framing for the response to the current request
+	 * @return the framing
+	 */
+	private WebProxyResponseFraming newFraming() {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		framing.setHeadRequest(requestParser.isMethod("HEAD"));
+		return framing;
+	}
+
+	/**
+	 * Checks if the response can be cached as the object at its URL. A response
+	 * whose header or status line could not be parsed is never cached, a 304 or
+	 * a 206 only answers the client's own conditional or range request, and the
+	 * server or the client may forbid shared caches to store the response
+	 * @param header the response header, or null if it could not be parsed
+	 * @param request the request the response answers, or null if the proxy sent it on its own
+	 * @return true if the response can be cached, false otherwise
+	 */
+	static boolean isCacheable(WebProxyHeader header, WebProxyRequestParser request) {
+		if(header == null) return false;
+		int status = header.getStatusCode();
+		return status >= 200 && status != 304 && status != 206 && WebProxyCachedObject.isStorable(header, request);
+	}
+
+	/**
+	 * Checks if a response cut short can be cached as a partial object,
+	 * whose rest is fetched from the server when it is next asked for
+	 * @param object
+	 * @param filename holding the part of the response received
+	 * @return true if some but not all of a body of known length was received, false otherwise
+	 */
+	static boolean isResumable(WebProxyCachedObject object, String filename) {
+		long stored = new File(filename).length() - object.headerLength;
+		return object.hasRanges() && object.canResume() && stored > 0 && stored < object.contentLength;
+	}
+
+	/**
+	 * Returns the header of a text response whose body is censored on the fly.
+	 * Its length is not known in advance, so the body is chunked for HTTP/1.1
+	 * clients and ends with the connection otherwise
+	 * @param framing
+	 * @return the header to send
+	 */
+	private byte[] getCensoredHeader(WebProxyResponseFraming framing) {
+		WebProxyHeader header = framing.getHeader();
+		if(header == null) {
+			keepClientAlive = false;
+			return framing.getHeaderBytes();
+		}
+		header.remove("Content-Length");
+		header.remove("Transfer-Encoding");
+		if(clientAcceptsChunked()) header.set("Transfer-Encoding", "chunked");
+		else keepClientAlive = false;
+		if(!keepClientAlive) header.set("Connection", "close");
+		return header.toBytes();
+	}
+
+	/**
+	 * Checks if the client can receive a chunked response
+	 * @return true if the client speaks HTTP/1.1, false otherwise
+	 */
+	private boolean clientAcceptsChunked() {
+		return requestParser.isHttp11();
+	}
+
+	/**
+	 * Returns the stream that the censored body is written to, buffered so that the
+	 * censor's many small writes become one chunk for every read from the server
+	 * @return a chunked stream for HTTP/1.1 clients, the client stream otherwise
+	 */
+	private OutputStream getCensoredBodyStream() {
+		OutputStream stream = new BufferedOutputStream(toClient, response.length);
+		if(!keepClientAlive) return stream;
+		chunkedBody = new WebProxyChunkedStream(stream);
+		return new BufferedOutputStream(chunkedBody, response.length);
+	}
+
+	/**
+	 * Writes out the bytes held back by the censor, and ends the chunked
+	 * body if the whole response was relayed
+	 * @param framing
+	 * @throws IOException
+	 */
+	private void finishCensoredBody(WebProxyResponseFraming framing) throws IOException {
+		censoredBody.finish();
+		if(chunkedBody != null && (framing.isComplete() || (!framing.isDelimited() && !framing.isMalformed()))) {
+			chunkedBody.finish();
+			responseDelimited = true;
+		}
+		censoredBody.flush();
+	}
+
+	/**
+	 * Returns the response header as it is sent to the client, asking the
+	 * client to close the connection if it cannot carry another request
+	 * @param framing
+	 * @return the header to send
+	 */
+	private byte[] getClientHeader(WebProxyResponseFraming framing) {
+		WebProxyHeader header = framing.getHeader();
+		if(header == null) return framing.getHeaderBytes();
+		if(!keepClientAlive || !framing.isDelimited()) header.set("Connection", "close");
+		return header.toBytes();
+	}
+
+	/**
+	 * Returns an outputstream
+	 * @param filename
+	 * @return
+	 */
+	static OutputStream getFileOutputStream(String filename) {
+		try {
+			return Files.newOutputStream(Paths.get(filename));
+		} catch (IOException e1) {
+			System.out.println("Error: Failed to open outputstream to file: " + filename);
+			e1.printStackTrace();
+		}		
+		return null;
+	}
+
+	/**
+	 * Sends part of a cache file to the client, letting the kernel copy it straight
+	 * to the socket (sendfile) when the client socket has a channel
+	 * @param file
+	 * @param position where the part starts in the file
+	 * @param length
+	 */
+	private void sendFileToClient(FileChannel file, long position, long length) {
+		try {
+			long end = position + length;
+			SocketChannel clientChannel = clientSocket.getChannel();
+			if(clientChannel == null) {
+				sendDirectToClient(Channels.newInputStream(file.position(position)), length);
+				return;
+			}
+			while(position < end) {
+				long sent = file.transferTo(position, end - position, clientChannel);
+				toClient.sent(sent);
+				position += sent;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends a censored text object to client, as it was censored on its first hit
+	 * @param text
+	 */
+	private void sendCensoredToClient(WebProxyCachedObject.CensoredText text) {
+		try {
+			if(text.header == null) {
+				// Not a response we can frame, the client has to wait for the connection to close
+				keepClientAlive = false;
+				toClient.write(text.body);
+			} else {
+				ByteBuffer[] response = {ByteBuffer.wrap(text.header),
+						ByteBuffer.wrap(keepClientAlive ? END_OF_HEADER : CONNECTION_CLOSE), ByteBuffer.wrap(text.body)};
+				SocketChannel clientChannel = clientSocket.getChannel();
+				if(clientChannel != null) {
+					// One gathering write instead of one write per part
+					while(response[2].hasRemaining()) toClient.sent(clientChannel.write(response));
+				} else {
+					for(ByteBuffer part : response) toClient.write(part.array());
+				}
+				responseDelimited = true;
+			}
+			toClient.flush();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to send response to client.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns a cached text object censored with the given censor, from the memory
+	 * tier or the censored copy in the store if it was censored with the same
+	 * censored words before, and otherwise censoring it and keeping a censored copy.
+	 * The censored text is offered to the memory tier either way
+	 * @param URL
+	 * @param object
+	 * @param censor
+	 * @return the censored text, or null if the object is no longer stored
+	 */
+	static WebProxyCachedObject.CensoredText getCensoredText(String URL, WebProxyCachedObject object, WebProxyCensor censor) {
+		long version = censor.getVersion();
+		WebProxyCachedObject.CensoredText text = cache.getText(object, version);
+		if(text != null) return text;
+		try {
+			text = cache.readText(object, version);
+			if(text == null) {
+				byte[] responseBytes = cache.read(object);
+				if(responseBytes == null) return null;
+				text = WebProxyCachedObject.CensoredText.censor(responseBytes, censor);
+				// With no censored words the text only has to be read, so it is not copied
+				if(!censor.isEmpty()) cache.storeText(URL, object, text);
+			}
+		} catch (IOException e) {
+			System.out.println("Error: Failed to read cached text.");
+			e.printStackTrace();
+			return null;
+		}
+		// The text as received stays in the store in case the censored words change
+		cache.putText(URL, object, text);
+		return text;
+	}
+
+	/**
+	 * Writes a given number of bytes of an input stream to client,
+	 * through the response buffer as no response is being relayed
+	 * @param stream
+	 * @param length
+	 */
+	private void sendDirectToClient(InputStream stream, long length) {
+		int bytes_length;
+		try {
+			while(length > 0 && (bytes_length = stream.read(response, 0, (int) Math.min(response.length, length))) != -1) {
+				toClient.write(response, 0, bytes_length);
+				length -= bytes_length;
+			}
+			toClient.flush();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns a subarray from an array
+	 * @param responseBytes
+	 * @param i
+	 * @param endOfHeader
+	 * @return
+	 */
+	static byte[] getSubarray(byte[] array, int start, int end) {
+		if(array == null || array.length == 0) return array;
+		return Arrays.copyOfRange(array, start, end + 1);
+	}
+
+	/**
+	 * Checks if a given header indicates that this response is text 
+	 * @param header
+	 * @return true if response is text, false otherwise
+	 */
+	static boolean isText(WebProxyHeader header) {
+		if(header == null) return false;
+		String contentType = header.get("Content-Type");
+		if(contentType == null || !contentType.toLowerCase().contains("text/")) return false;
+		for(String encoding : new String[] {"Content-Encoding", "Transfer-Encoding"}) {
+			String value = header.get(encoding);
+			if(value != null && value.toLowerCase().contains("gzip")) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the server socket to the pool if it can be reused,
+	 * or closes it otherwise
+	 */
+	private void closeSockets() {
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Closing sockets...");
+		if(upstreamReusable) connectionPool.release(serverHost, serverPort, serverSocket);
+		else closeServerSocket();
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Done.");
+	}
+
+	/**
+	 * Attempts to close the client socket
+	 */
+	private void closeClientSocket() {
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Closing client socket...");
+		try {
+			clientSocket.close();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to close socket(s).");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Attempts to close the server socket
+	 */
+	private void closeServerSocket() {
+		if(serverSocket == null) return;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to close socket(s).");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Attempts to close a cache file stream
+	 * @param stream
+	 */
+	private static void closeStream(Closeable stream) {
+		if(stream == null) return;
+		try {
+			stream.close();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to close cache file.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends the existing request to the remote server, asking it to keep the
+	 * connection open for the pool, then relays the rest of the body as it arrives
+	 */
+	private void sendRequestToServer() {
+		try {
+			if(WebProxyLog.DEBUG) WebProxyLog.debug("Sending request to remote server...");
+			// Write the header and the part of the body already received, then flush
+			toServer.write(requestParser.getUpstreamHeader(true));
+			toServer.write(request, bodyStart, bodyEnd - bodyStart);
+			toServer.flush();
+			
+			// Rather than wait for the server, tell the client to send the rest of the body
+			if(requestParser.expectsContinue()) {
+				toClient.write(get100ContinueMessage());
+				toClient.flush();
+			}
+			
+			int bytes_length;
+			while(!requestParser.isComplete() && !requestParser.isInvalid() && (bytes_length = fromClient.read(request)) != -1) {
+				WebProxyMetrics.bytesReceived.add(bytes_length);
+				int bodyLength = requestParser.consume(request, 0, bytes_length);
+				toServer.write(request, 0, bodyLength);
+				toServer.flush();
+				// Keep whatever follows this request for the next one
+				leftoverStart = bodyLength;
+				leftoverLength = bytes_length - bodyLength;
+			}
+		} catch (IOException e1) {
+			System.out.println("Error: Failed to send request to remote server.");
+			e1.printStackTrace();
+		}
+		// The connection is only left in a known state if the whole body was sent
+		upstreamReusable = requestParser.isComplete();
+		requestSentAt = System.nanoTime();
+	}
+
+	/**
+	 * Waits for the first bytes of the response, keeping them for sendResponseToClient()
+	 * @return false if the server closed the connection without responding, true otherwise
+	 */
+	private boolean responseAvailable() {
+		try {
+			prefetched = fromServer.read(response);
+			firstByteReceived(prefetched);
+			return prefetched != -1;
+		} catch (SocketTimeoutException e) {
+			// The server is there but did not answer in time, which ends the response
+			prefetched = -1;
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the next part of the response into the response buffer. The framing
+	 * ends the response as soon as its last byte is read, so a timeout only
+	 * ends a response whose server stalls
+	 * @return the number of bytes read, or -1 at the end of the response
+	 * @throws IOException
+	 */
+	private int readFromServer() throws IOException {
+		if(prefetched != 0) {
+			int bytes_length = prefetched;
+			prefetched = 0;
+			return bytes_length;
+		}
+		try {
+			int bytes_length = fromServer.read(response);
+			firstByteReceived(bytes_length);
+			return bytes_length;
+		} catch (SocketTimeoutException e) {
+			if(WebProxyLog.DEBUG) WebProxyLog.debug("Socket timed out.");
+			return -1;
+		}
+	}
+
+	/**
+	 * Records the time to the first byte of the response once it has been read
+	 * @param bytes_length the result of a read from the server
+	 */
+	private void firstByteReceived(int bytes_length) {
+		if(requestSentAt == 0 || bytes_length <= 0) return;
+		firstByteMicros = WebProxyMetrics.timeToFirstByte.recordSince(requestSentAt);
+		requestSentAt = 0;
+	}
+
+	/**
+	 * Creates a socket and I/O streams for the remote server
+	 * @return false if the host is unreachable, true otherwise
+	 */
+	private boolean createServerSocketAndStreams() {
+		// The parsed header names the remote host
+		String host = requestParser.getHost();
+		int port = requestParser.getPort();
+		serverHost = host;
+		serverPort = port;
+		if(port < 0) {
+			send502Response();
+			return false;
+		}
+		
+		// Reuse an idle connection to the same server if there is one, unless a reused
+		// connection has just failed. A request whose body is relayed as it arrives
+		// cannot be sent again, so it does not risk a connection the server may have closed
+		if(!reusedConnection && requestBuffered) {
+			serverSocket = connectionPool.acquire(host, port);
+			reusedConnection = serverSocket != null;
+		} else {
+			serverSocket = null;
+			reusedConnection = false;
+		}
+
+		// Create server socket and streams
+		try {
+			if(serverSocket == null) {
+				if(WebProxyLog.DEBUG) WebProxyLog.debug("Connecting to remote server " + host + " at port " + port + "...");
+				long connectStart = System.nanoTime();
+				InetAddress address = resolver.resolve(host);
+				if(address == null) throw new UnknownHostException(host);
+				serverSocket = new Socket();
+				InetSocketAddress server = new InetSocketAddress(address, port);
+				serverSocket.setSoTimeout(connTimeout);
+				serverSocket.connect(server, connTimeout);
+				connectMicros = WebProxyMetrics.upstreamConnect.recordSince(connectStart);
+			} else {
+				if(WebProxyLog.DEBUG) WebProxyLog.debug("Reusing connection to remote server " + host + " at port " + port + "...");
+			}
+			fromServer = serverSocket.getInputStream();
+			toServer = serverSocket.getOutputStream();
+		} catch (Exception e) {
+			System.out.println("Error: Failed to create socket/streams to remote server " + host);
+			send502Response();
+			e.printStackTrace();
+			return false;
+		}
+		
+		// Return true if everything is OK
+		return true;
+	}
+
+	/**
+	 * Sends a 502 Response to the client
+	 */
+	private void send502Response() {
+		try {
+			System.out.println("Error: Unknown host, sending 502 and closing socket.");
+			WebProxyMetrics.badGateways.increment();
+			status = 502;
+			toClient.write(get502ErrorMessage());
+			toClient.flush();
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+	}
+
+	/**
+	 * Processes the client's request
+	 */
+	private void processClientRequest() {
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Processing the request...");
+		// Start with any pipelined bytes left over from the previous request
+		System.arraycopy(request, leftoverStart, request, 0, leftoverLength);
+		requestLength = leftoverLength;
+		leftoverStart = leftoverLength = 0;
+		requestParser.reset();
+		status = 0;
+		cacheResult = WebProxyLog.NONE;
+		connectMicros = firstByteMicros = -1;
+		toClient.count = 0;
+		
+		// A later request starts with its first byte, which may already be here
+		if(requestStart == 0 && requestLength > 0) requestStart = System.nanoTime();
+		
+		// Parse the request as it is read until its header is complete, however many reads it takes
+		try {
+			bodyStart = requestParser.consume(request, 0, requestLength);
+			while(!requestParser.isHeaderComplete() && !requestParser.isInvalid()
+					&& (requestLength = fromClient.read(request)) != -1) {
+				if(requestStart == 0) requestStart = System.nanoTime();
+				WebProxyMetrics.bytesReceived.add(requestLength);
+				bodyStart = requestParser.consume(request, 0, requestLength);
+			}
+			if(!requestParser.isHeaderComplete()) {
+				if(requestParser.isInvalid()) send400Response();
+				return;
+			}
+			WebProxyMetrics.requests.increment();
+			WebProxyMetrics.parse.recordSince(requestStart);
+			
+			// Take the part of the body already received, and keep whatever follows it for the next request
+			bodyEnd = bodyStart + requestParser.consume(request, bodyStart, requestLength - bodyStart);
+			if(requestParser.isInvalid()) {
+				send400Response();
+				return;
+			}
+			requestBuffered = requestParser.isComplete();
+			leftoverStart = bodyEnd;
+			leftoverLength = requestLength - bodyEnd;
+		} catch (SocketTimeoutException e) {
+			if(WebProxyLog.DEBUG) WebProxyLog.debug("Client connection idle, closing it...");
+		} catch (IOException e) {
+			System.out.println("Error: Failed to read request from client's input stream.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends a 400 Response to a client whose request cannot be parsed
+	 */
+	private void send400Response() {
+		try {
+			System.out.println("Error: Invalid request, sending 400 and closing socket.");
+			status = 400;
+			toClient.write(get400ErrorMessage());
+			toClient.flush();
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+	}
+
+	/**
+	 * Creates an input/output stream for the existing client socket
+	 */
+	private void createClientStreams() {
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Creating client streams...");
+		// Create client streams
+		try {
+			fromClient = clientSocket.getInputStream();
+			toClient = new WebProxyMetrics.CountingOutputStream(clientSocket.getOutputStream());
+			clientSocket.setSoTimeout(clientIdleTimeout);
+		} catch (IOException e) {
+			System.out.println("Error: Failed to create client streams.");
+			e.printStackTrace();
+			return;
+		}
+	}
+
+	/**
+	 * Sets the request URL
+	 */
+	private void setURL() {
+		URL = requestParser.getTarget();
+	}
+
+	/**
+	 * Returns an interim 100 response in byte array
+	 * @return 100 response in byte array
+	 */
+	static byte[] get100ContinueMessage() {
+		return "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+	}
+	
+	/**
+	 * Returns the response to a CONNECT request once the tunnel is open
+	 * @return 200 response in byte array
+	 */
+	static byte[] get200ConnectionEstablishedMessage() {
+		return "HTTP/1.1 200 Connection Established\r\n\r\n".getBytes();
+	}
+	
+	/**
+	 * Returns a 400 response in byte array
+	 * @return 400 response in byte array
+	 */
+	static byte[] get400ErrorMessage() {
+		String eol = "\r\n";
+		String header = "HTTP/1.0 400 Bad Request" + eol;
+		String body = "400 Error: Invalid request." + eol;
+		return (header + eol + body + eol).getBytes();
+	}
+	
+	/**
+	 * Returns a 403 response in byte array
+	 * @return 403 response in byte array
+	 */
+	static byte[] get403ErrorMessage() {
+		String eol = "\r\n";
+		String header = "HTTP/1.0 403 Forbidden" + eol;
+		String body = "403 Error: Only local clients may read the metrics." + eol;
+		return (header + eol + body + eol).getBytes();
+	}
+	
+	/**
+	 * Returns a 502 response in byte array
+	 * @return 502 response in byte array
+	 */
+	static byte[] get502ErrorMessage() {
+		String eol = "\r\n";
+		String header = "HTTP/1.0 502 Bad Gateway" + eol;
+		String body = "502 Error: Cannot reach server." + eol;
+		return (header + eol + body + eol).getBytes();
+	}
+	
+	/**
+	 * Returns a 503 response in byte array
+	 * @return 503 response in byte array
+	 */
+	static byte[] get503ErrorMessage() {
+		String eol = "\r\n";
+		String header = "HTTP/1.0 503 Service Unavailable" + eol + "Retry-After: 1" + eol;
+		String body = "503 Error: Proxy is busy, try again later." + eol;
+		return (header + eol + body + eol).getBytes();
+	}
+	
+	/**
+	 * Returns the current server time in HTTP format
+	 * @return current server time in HTTP format
+	 */
+	static String getServerTime() {
+	    Calendar calendar = Calendar.getInstance();
+	    SimpleDateFormat dateFormat = new SimpleDateFormat(
+	        "EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+	    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+	    return dateFormat.format(calendar.getTime());
+	}
+	
+	/**
+	 * Generates a filename for the given URL
+	 * @param url
+	 * @return a generated filename for the given URL, in the staging directory of the cache
+	 */
+	static String generateFilename(String url) {
+		return cache.newStagingFile();
+	}
+}
@@ -0,0 +1,254 @@
+package webproxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Relays the bytes of a CONNECT tunnel between a client and a remote server.
+ * Each direction reads from one channel into a pooled direct buffer and
+ * writes that buffer straight to the other channel, so the bytes never pass
+ * through the heap and nothing is buffered on top of the sockets. The same
+ * transfer serves blocking channels, each direction on its own thread, and
+ * non-blocking channels driven by an event loop.
+ */
+public class WebProxyTunnel {
+
+	// Size of the buffer of each direction
+	private static final int BUFFER_SIZE = 32 * 1024;
+
+	// Closes blocking tunnels that have been idle for too long, as a blocking read has no timeout
+	private static ScheduledExecutorService idleTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "WebProxyTunnelTimer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * One direction of the tunnel, ended by shutting down the output of its
+	 * destination once its source has ended and the buffer has been written
+	 */
+	private static class Direction {
+		final SocketChannel from, to;
+		final ByteBuffer buffer = WebProxyBufferPool.DIRECT.lease(BUFFER_SIZE);
+		final LongAdder counter;
+		long bytes = 0;
+		boolean ended = false, done = false;
+
+		/**
+		 * Constructor: takes in the source and destination, and the counter of the bytes relayed
+		 * @param from
+		 * @param to
+		 * @param counter
+		 */
+		Direction(SocketChannel from, SocketChannel to, LongAdder counter) {
+			this.from = from;
+			this.to = to;
+			this.counter = counter;
+		}
+
+		/**
+		 * Writes what is pending, reads more, and writes that too. Blocking channels
+		 * wait for each step, non-blocking ones move only what is ready
+		 * @return true if any bytes were read or written, false otherwise
+		 * @throws IOException
+		 */
+		boolean transfer() throws IOException {
+			if(done) return false;
+			long before = bytes;
+			int read = 0;
+			write();
+			if(!ended && buffer.hasRemaining() && (read = from.read(buffer)) == -1) ended = true;
+			write();
+			if(ended && buffer.position() == 0) {
+				to.shutdownOutput();
+				done = true;
+			}
+			return read != 0 || bytes != before;
+		}
+
+		/**
+		 * Writes as much of the buffer as the destination takes, keeping the rest
+		 * @throws IOException
+		 */
+		private void write() throws IOException {
+			if(buffer.position() == 0) return;
+			buffer.flip();
+			int written = to.write(buffer);
+			buffer.compact();
+			bytes += written;
+			counter.add(written);
+		}
+
+		/**
+		 * Returns the interest ops this direction needs on its source
+		 * @return OP_READ if the source has not ended and the buffer has room, 0 otherwise
+		 */
+		int readOps() {
+			return !ended && buffer.hasRemaining() ? SelectionKey.OP_READ : 0;
+		}
+
+		/**
+		 * Returns the interest ops this direction needs on its destination
+		 * @return OP_WRITE if bytes are waiting to be written, 0 otherwise
+		 */
+		int writeOps() {
+			return buffer.position() > 0 ? SelectionKey.OP_WRITE : 0;
+		}
+	}
+
+	// Instance variables
+	private SocketChannel client = null, server = null;
+	private Direction up = null, down = null;
+	private AtomicBoolean closed = new AtomicBoolean(false);
+
+	// Whether threads of relay() use the buffers, which they then give back themselves
+	private volatile boolean relaying = false;
+
+	// Times (System.nanoTime) the tunnel was opened and last moved any bytes
+	private long start = System.nanoTime();
+	private volatile long lastActivity = start;
+
+	/**
+	 * Constructor: takes in the client and server channels, and the bytes the
+	 * client already sent after its CONNECT request, which go to the server first
+	 * @param client
+	 * @param server
+	 * @param initial
+	 */
+	public WebProxyTunnel(SocketChannel client, SocketChannel server, ByteBuffer initial) {
+		this.client = client;
+		this.server = server;
+		up = new Direction(client, server, WebProxyMetrics.tunnelBytesUp);
+		down = new Direction(server, client, WebProxyMetrics.tunnelBytesDown);
+		up.buffer.put(initial);
+		WebProxyMetrics.tunnels.increment();
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Tunnel established to " + server.socket().getRemoteSocketAddress());
+	}
+
+	/**
+	 * Relays both directions over blocking channels, the way to the server on a
+	 * thread of the same kind as the caller, until both have ended or the tunnel
+	 * has been idle for idleTimeout ms, then closes the tunnel
+	 * @param idleTimeout
+	 */
+	public void relay(long idleTimeout) {
+		relaying = true;
+		scheduleIdleCheck(TimeUnit.MILLISECONDS.toNanos(idleTimeout));
+		Thread.Builder builder = Thread.currentThread().isVirtual() ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+		Thread upstream = builder.name("WebProxyTunnel").start(new Runnable() {
+			public void run() {
+				relay(up);
+			}
+		});
+		relay(down);
+		try {
+			upstream.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		close();
+		releaseBuffers();
+	}
+
+	/**
+	 * Relays one direction over blocking channels until it ends. A failure
+	 * in either direction closes the tunnel, which also ends the other one
+	 * @param direction
+	 */
+	private void relay(Direction direction) {
+		try {
+			while(!direction.done && !closed.get()) {
+				if(direction.transfer()) lastActivity = System.nanoTime();
+			}
+		} catch (IOException e) {
+			// Closed by the other direction, the idle timer, or either end
+			close();
+		}
+	}
+
+	/**
+	 * Closes the tunnel once it has been idle for idleNanos, checking again
+	 * when that time has passed since its last activity otherwise
+	 * @param idleNanos
+	 */
+	private void scheduleIdleCheck(final long idleNanos) {
+		long delay = lastActivity + idleNanos - System.nanoTime();
+		idleTimer.schedule(new Runnable() {
+			public void run() {
+				if(closed.get()) return;
+				if(System.nanoTime() - lastActivity < idleNanos) {
+					scheduleIdleCheck(idleNanos);
+					return;
+				}
+				if(WebProxyLog.DEBUG) WebProxyLog.debug("Tunnel idle, closing it...");
+				close();
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Moves whatever can be moved in both directions over non-blocking channels
+	 * @return true if any bytes were read or written, false otherwise
+	 * @throws IOException
+	 */
+	public boolean pump() throws IOException {
+		boolean progress = up.transfer() | down.transfer();
+		if(progress) lastActivity = System.nanoTime();
+		return progress;
+	}
+
+	/**
+	 * Returns the interest ops the client channel needs for the tunnel to make progress
+	 * @return the interest ops
+	 */
+	public int clientOps() {
+		return up.readOps() | down.writeOps();
+	}
+
+	/**
+	 * Returns the interest ops the server channel needs for the tunnel to make progress
+	 * @return the interest ops
+	 */
+	public int serverOps() {
+		return down.readOps() | up.writeOps();
+	}
+
+	/**
+	 * Checks if both directions have ended
+	 * @return true if nothing is left to relay, false otherwise
+	 */
+	public boolean isDone() {
+		return up.done && down.done;
+	}
+
+	/**
+	 * Closes both channels and records how long the tunnel was open, once.
+	 * The buffers go back to the pool here unless relay() still uses them
+	 */
+	public void close() {
+		if(!closed.compareAndSet(false, true)) return;
+		if(!relaying) releaseBuffers();
+		WebProxyMetrics.tunnel.recordSince(start);
+		if(WebProxyLog.DEBUG) WebProxyLog.debug("Closing tunnel after " + up.bytes + " bytes up and " + down.bytes + " bytes down...");
+		try {
+			server.close();
+			client.close();
+		} catch (IOException e) {
+			System.out.println("Error: Failed to close tunnel channel(s).");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the buffers of both directions to the pool
+	 */
+	private void releaseBuffers() {
+		WebProxyBufferPool.DIRECT.release(up.buffer);
+		WebProxyBufferPool.DIRECT.release(down.buffer);
+	}
+}
@@ -0,0 +1,64 @@
+package webproxy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+
+public class WebProxyCachedObjectTest {
+
+	/**
+	 * Parses a request header, as one read
+	 * @param request
+	 * @return the parser
+	 * @throws IOException
+	 */
+	private static WebProxyRequestParser request(String request) throws IOException {
+		WebProxyRequestParser parser = new WebProxyRequestParser();
+		byte[] bytes = request.getBytes();
+		parser.consume(bytes, 0, bytes.length);
+		return parser;
+	}
+
+	/**
+	 * Parses a 200 response header with the given fields
+	 * @param fields
+	 * @return the header
+	 */
+	private static WebProxyHeader response(String fields) {
+		return WebProxyHeader.parse("HTTP/1.1 200 OK\r\n" + fields + "\r\n");
+	}
+
+	@Test
+	public void storesResponsesToRequestsWithCredentialsOnlyWhenAllowed() throws IOException {
+		WebProxyRequestParser request = request("GET / HTTP/1.1\r\nHost: a\r\nAuthorization: Basic YTpi\r\n\r\n");
+		assertFalse(WebProxyCachedObject.isStorable(response("Cache-Control: max-age=60\r\n"), request));
+		assertTrue(WebProxyCachedObject.isStorable(response("Cache-Control: public, max-age=60\r\n"), request));
+		assertTrue(WebProxyCachedObject.isStorable(response("Cache-Control: s-maxage=60\r\n"), request));
+		assertTrue(WebProxyCachedObject.isStorable(response("Cache-Control: must-revalidate\r\n"), request));
+		assertTrue(WebProxyCachedObject.isStorable(response("Cache-Control: max-age=60\r\n"), null));
+	}
+
+	@Test
+	public void honoursClientDirectives() throws IOException {
+		WebProxyHeader header = response("Cache-Control: max-age=60\r\n");
+		WebProxyRequestParser noStore = request("GET / HTTP/1.1\r\nCache-Control: max-age=0, no-store\r\n\r\n");
+		assertFalse(WebProxyCachedObject.isStorable(header, noStore));
+		assertFalse(WebProxyCachedObject.isServable(noStore));
+		WebProxyRequestParser noCache = request("GET / HTTP/1.1\r\nCache-Control: no-cache\r\n\r\n");
+		assertTrue(WebProxyCachedObject.isStorable(header, noCache));
+		assertFalse(WebProxyCachedObject.isServable(noCache));
+		assertFalse(WebProxyCachedObject.isServable(request("GET / HTTP/1.1\r\nPragma: no-cache\r\n\r\n")));
+		assertTrue(WebProxyCachedObject.isServable(request("GET / HTTP/1.1\r\nCache-Control: max-age=60\r\n\r\n")));
+	}
+
+	@Test
+	public void refusesResponsesForSingleUsers() throws IOException {
+		WebProxyRequestParser request = request("GET / HTTP/1.1\r\nHost: a\r\n\r\n");
+		assertTrue(WebProxyCachedObject.isStorable(response(""), request));
+		assertFalse(WebProxyCachedObject.isStorable(response("Cache-Control: private\r\n"), request));
+		assertFalse(WebProxyCachedObject.isStorable(response("Cache-Control: no-store\r\n"), request));
+		assertFalse(WebProxyCachedObject.isStorable(response("Set-Cookie: a=b\r\n"), request));
+		assertFalse(WebProxyCachedObject.isStorable(response("Vary: *\r\n"), request));
+	}
+}
@@ -0,0 +1,86 @@
+package webproxy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class WebProxyCensorStreamTest {
+
+	/**
+	 * Censors bytes through a stream, written in pieces that end at the given positions
+	 * @param censor
+	 * @param bytes
+	 * @param splits
+	 * @return the censored bytes
+	 * @throws IOException
+	 */
+	private static String censorInPieces(WebProxyCensor censor, byte[] bytes, int... splits) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		WebProxyCensorStream stream = new WebProxyCensorStream(censor, result);
+		int written = 0;
+		for(int split : splits) {
+			stream.write(bytes, written, split - written);
+			written = split;
+		}
+		stream.write(bytes, written, bytes.length - written);
+		stream.finish();
+		return result.toString();
+	}
+
+	/**
+	 * Checks that the stream censors the text as the censor does in one pass,
+	 * however the text is split in two writes, and when it is written byte by byte
+	 * @param words
+	 * @param text
+	 * @throws IOException
+	 */
+	private static void assertCensorsAsOnePass(String[] words, String text) throws IOException {
+		WebProxyCensor censor = new WebProxyCensor(words);
+		byte[] bytes = text.getBytes();
+		String expected = new String(censor.censor(bytes, 0));
+		for(int split = 0; split <= bytes.length; split++) {
+			assertEquals(expected, censorInPieces(censor, bytes, split), "split at " + split + " of " + text);
+		}
+		int[] everyByte = new int[bytes.length];
+		for(int i = 0; i < bytes.length; i++) everyByte[i] = i;
+		assertEquals(expected, censorInPieces(censor, bytes, everyByte), "byte by byte " + text);
+	}
+
+	@Test
+	public void replacesWordsCaseInsensitively() throws IOException {
+		WebProxyCensor censor = new WebProxyCensor(new String[] {"bad", "worse"});
+		assertEquals("a --- and --- day", censorInPieces(censor, "a BAD and worse day".getBytes()));
+	}
+
+	@Test
+	public void censorsWordsSplitAcrossWrites() throws IOException {
+		assertCensorsAsOnePass(new String[] {"spoiler", "oil"}, "a spoiler, some oil and a spoil");
+		assertCensorsAsOnePass(new String[] {"Aa", "aBAB", "A", "bAAA"}, "abbabbbaAAB");
+		assertCensorsAsOnePass(new String[] {"he", "she", "hers", "his"}, "ushers and hishers");
+	}
+
+	@Test
+	public void censorsRandomTextAsOnePass() throws IOException {
+		Random random = new Random(42);
+		for(int round = 0; round < 500; round++) {
+			String[] words = new String[1 + random.nextInt(4)];
+			for(int i = 0; i < words.length; i++) words[i] = randomText(random, 1 + random.nextInt(4));
+			assertCensorsAsOnePass(words, randomText(random, random.nextInt(24)));
+		}
+	}
+
+	/**
+	 * Returns text over a small alphabet, so that censored words overlap often
+	 * @param random
+	 * @param length
+	 * @return the text
+	 */
+	private static String randomText(Random random, int length) {
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < length; i++) text.append("aAbB".charAt(random.nextInt(4)));
+		return text.toString();
+	}
+}
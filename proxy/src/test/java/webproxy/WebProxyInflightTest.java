@@ -0,0 +1,154 @@
+package webproxy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WebProxyInflightTest {
+
+	// Number of concurrent misses for the same object
+	private static final int MISSES = 16;
+
+	@TempDir
+	Path directory;
+
+	// Serves misses for one object as the proxy does, sharing one fetch between concurrent misses
+	private class Origin {
+		final ConcurrentHashMap<String, WebProxyInflight> inflight = new ConcurrentHashMap<String, WebProxyInflight>();
+		final AtomicInteger fetches = new AtomicInteger();
+		final byte[] response;
+		final int failAfter;
+
+		/**
+		 * Constructor: takes in the response and where the fetch of it fails
+		 * @param response
+		 * @param failAfter the number of bytes written before the fetch fails
+		 */
+		Origin(byte[] response, int failAfter) {
+			this.response = response;
+			this.failAfter = failAfter;
+		}
+
+		/**
+		 * Serves a miss, fetching the response or following the fetch in progress
+		 * @param URL
+		 * @return the bytes the client received
+		 * @throws Exception
+		 */
+		byte[] miss(String URL) throws Exception {
+			WebProxyInflight ownFetch = new WebProxyInflight();
+			WebProxyInflight otherFetch = inflight.putIfAbsent(URL, ownFetch);
+			if(otherFetch != null) {
+				InputStream stream = otherFetch.open(5000);
+				assertNotNull(stream);
+				try {
+					return stream.readAllBytes();
+				} finally {
+					stream.close();
+				}
+			}
+			try {
+				return fetch(ownFetch);
+			} finally {
+				inflight.remove(URL, ownFetch);
+				ownFetch.finish();
+			}
+		}
+
+		/**
+		 * Writes the response to a cache file in small pieces, as it would arrive from the server
+		 * @param fetch
+		 * @return the bytes the leader sent to its client
+		 * @throws Exception
+		 */
+		private byte[] fetch(WebProxyInflight fetch) throws Exception {
+			fetches.incrementAndGet();
+			String filename = directory.resolve("fetch").toString();
+			ByteArrayOutputStream sent = new ByteArrayOutputStream();
+			try (OutputStream file = new FileOutputStream(filename)) {
+				fetch.start(filename);
+				for(int offset = 0; offset < response.length; offset += 100) {
+					int length = Math.min(100, response.length - offset);
+					if(offset + length > failAfter) break;
+					file.write(response, offset, length);
+					file.flush();
+					fetch.wrote(length);
+					sent.write(response, offset, length);
+					Thread.sleep(1);
+				}
+			}
+			return sent.toByteArray();
+		}
+	}
+
+	/**
+	 * Runs concurrent misses for one object, all starting at once
+	 * @param origin
+	 * @return the bytes every client received
+	 * @throws Exception
+	 */
+	private static List<byte[]> missConcurrently(final Origin origin) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(MISSES);
+		try {
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+			for(int i = 0; i < MISSES; i++) {
+				futures.add(executor.submit(new Callable<byte[]>() {
+					public byte[] call() throws Exception {
+						start.await();
+						return origin.miss("http://a.test/object");
+					}
+				}));
+			}
+			start.countDown();
+			List<byte[]> received = new ArrayList<byte[]>();
+			for(Future<byte[]> future : futures) received.add(future.get(30, TimeUnit.SECONDS));
+			return received;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns a response of the given length, different at every position
+	 * @param length
+	 * @return the response
+	 */
+	private static byte[] response(int length) {
+		byte[] response = new byte[length];
+		for(int i = 0; i < length; i++) response[i] = (byte) (i * 31 + i / 256);
+		return response;
+	}
+
+	@Test
+	public void sharesOneFetchBetweenConcurrentMisses() throws Exception {
+		byte[] response = response(20000);
+		Origin origin = new Origin(response, response.length);
+		List<byte[]> received = missConcurrently(origin);
+		assertEquals(1, origin.fetches.get());
+		for(byte[] bytes : received) assertArrayEquals(response, bytes);
+	}
+
+	@Test
+	public void endsEveryReaderWhereTheFailedFetchEnded() throws Exception {
+		byte[] response = response(20000);
+		Origin origin = new Origin(response, 7250);
+		List<byte[]> received = missConcurrently(origin);
+		assertEquals(1, origin.fetches.get());
+		byte[] written = Arrays.copyOf(response, 7200);
+		for(byte[] bytes : received) assertArrayEquals(written, bytes);
+	}
+
+	@Test
+	public void opensNothingWhenTheFetchEndsWithoutResponse() {
+		WebProxyInflight fetch = new WebProxyInflight();
+		fetch.finish();
+		assertNull(fetch.open(1000));
+	}
+}
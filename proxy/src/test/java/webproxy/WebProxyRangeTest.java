@@ -0,0 +1,82 @@
+package webproxy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class WebProxyRangeTest {
+
+	/**
+	 * Checks the ranges against pairs of first and last offsets
+	 * @param ranges
+	 * @param offsets
+	 */
+	private static void assertRanges(WebProxyRange ranges, long... offsets) {
+		assertNotNull(ranges);
+		assertEquals(offsets.length / 2, ranges.size());
+		for(int i = 0; i < ranges.size(); i++) {
+			assertEquals(offsets[2 * i], ranges.getStart(i), "start of range " + i);
+			assertEquals(offsets[2 * i + 1], ranges.getEnd(i), "end of range " + i);
+		}
+	}
+
+	@Test
+	public void parsesSingleRanges() {
+		assertRanges(WebProxyRange.parse("bytes=0-499", 1000), 0, 499);
+		assertRanges(WebProxyRange.parse("bytes=500-", 1000), 500, 999);
+		assertRanges(WebProxyRange.parse("bytes=-200", 1000), 800, 999);
+		assertRanges(WebProxyRange.parse(" BYTES=0-0", 1000), 0, 0);
+	}
+
+	@Test
+	public void clampsRangesToBody() {
+		assertRanges(WebProxyRange.parse("bytes=900-2000", 1000), 900, 999);
+		assertRanges(WebProxyRange.parse("bytes=-5000", 1000), 0, 999);
+	}
+
+	@Test
+	public void sortsAndMergesRanges() {
+		assertRanges(WebProxyRange.parse("bytes=500-599,0-99,50-149,150-199", 1000), 0, 199, 500, 599);
+		assertRanges(WebProxyRange.parse("bytes=0-9, 20-29", 1000), 0, 9, 20, 29);
+		assertEquals(30, WebProxyRange.parse("bytes=0-9,20-29", 1000).getLast());
+	}
+
+	@Test
+	public void findsNothingSatisfiable() {
+		assertRanges(WebProxyRange.parse("bytes=1000-", 1000));
+		assertRanges(WebProxyRange.parse("bytes=-0", 1000));
+		assertRanges(WebProxyRange.parse("bytes=0-10", 0));
+		assertEquals(0, WebProxyRange.parse("bytes=2000-3000", 1000).getLast());
+	}
+
+	@Test
+	public void ignoresInvalidFields() {
+		assertNull(WebProxyRange.parse(null, 1000));
+		assertNull(WebProxyRange.parse("items=0-1", 1000));
+		assertNull(WebProxyRange.parse("bytes=5", 1000));
+		assertNull(WebProxyRange.parse("bytes=10-5", 1000));
+		assertNull(WebProxyRange.parse("bytes=a-b", 1000));
+		assertNull(WebProxyRange.parse("bytes=-", 1000));
+	}
+
+	@Test
+	public void ignoresTooManyRanges() {
+		StringBuilder value = new StringBuilder("bytes=");
+		for(int i = 0; i < 17; i++) value.append(i == 0 ? "" : ",").append(i * 10).append('-').append(i * 10 + 1);
+		assertNull(WebProxyRange.parse(value.toString(), 1000));
+		assertNotNull(WebProxyRange.parse(value.substring(0, value.lastIndexOf(",")), 1000));
+	}
+
+	@Test
+	public void matchesIfRangeOnlyAgainstStrongValidators() {
+		WebProxyCachedObject object = new WebProxyCachedObject(null, null, false, true);
+		object.etag = "\"v1\"";
+		object.lastModified = "Wed, 21 Oct 2015 07:28:00 GMT";
+		assertTrue(WebProxyRange.ifRangeMatches(null, object));
+		assertTrue(WebProxyRange.ifRangeMatches("\"v1\"", object));
+		assertFalse(WebProxyRange.ifRangeMatches("\"v2\"", object));
+		assertFalse(WebProxyRange.ifRangeMatches("W/\"v1\"", object));
+		assertTrue(WebProxyRange.ifRangeMatches("Wed, 21 Oct 2015 07:28:00 GMT", object));
+		assertFalse(WebProxyRange.ifRangeMatches("Thu, 22 Oct 2015 07:28:00 GMT", object));
+	}
+}
@@ -0,0 +1,181 @@
+package webproxy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+public class WebProxyRequestParserTest {
+
+	/**
+	 * Feeds a whole request to a new parser, as one read
+	 * @param request
+	 * @return the parser
+	 * @throws IOException
+	 */
+	private static WebProxyRequestParser parse(String request) throws IOException {
+		WebProxyRequestParser parser = new WebProxyRequestParser();
+		byte[] bytes = request.getBytes();
+		parser.consume(bytes, 0, bytes.length);
+		return parser;
+	}
+
+	@Test
+	public void parsesRequestLineAndFields() throws IOException {
+		WebProxyRequestParser parser = parse("GET http://example.com:8080/a?b HTTP/1.1\r\nHost: example.com:8080\r\nAccept:  text/html \r\n\r\n");
+		assertTrue(parser.isComplete());
+		assertTrue(parser.isMethod("GET"));
+		assertEquals("GET", parser.getMethod());
+		assertEquals("http://example.com:8080/a?b", parser.getTarget());
+		assertEquals("example.com", parser.getHost());
+		assertEquals(8080, parser.getPort());
+		assertTrue(parser.isHttp11());
+		assertEquals("text/html", parser.get("accept"));
+		assertNull(parser.get("Cookie"));
+	}
+
+	@Test
+	public void takesAddressFromTargetWithoutHost() throws IOException {
+		WebProxyRequestParser parser = parse("GET http://example.com/ HTTP/1.0\r\n\r\n");
+		assertEquals("example.com", parser.getHost());
+		assertEquals(80, parser.getPort());
+		assertFalse(parser.isHttp11());
+	}
+
+	@Test
+	public void rejectsInvalidPort() throws IOException {
+		assertEquals(-1, parse("GET / HTTP/1.1\r\nHost: example.com:99999\r\n\r\n").getPort());
+		assertEquals(-1, parse("GET / HTTP/1.1\r\nHost: example.com:\r\n\r\n").getPort());
+	}
+
+	@Test
+	public void parsesHeaderSplitAcrossReads() throws IOException {
+		byte[] bytes = "GET http://example.com/ HTTP/1.1\r\nHost: example.com\r\n\r\n".getBytes();
+		WebProxyRequestParser parser = new WebProxyRequestParser();
+		for(int i = 0; i < bytes.length; i++) {
+			assertFalse(parser.isHeaderComplete());
+			assertEquals(1, parser.consume(bytes, i, 1));
+		}
+		assertTrue(parser.isComplete());
+		assertEquals("example.com", parser.get("Host"));
+	}
+
+	@Test
+	public void ignoresBlankLinesBeforeRequest() throws IOException {
+		WebProxyRequestParser parser = parse("\r\n\r\nGET / HTTP/1.1\r\nHost: a\r\n\r\n");
+		assertTrue(parser.isComplete());
+		assertEquals("/", parser.getTarget());
+	}
+
+	@Test
+	public void rejectsMalformedRequestLine() throws IOException {
+		assertTrue(parse("GET\r\n\r\n").isInvalid());
+		assertTrue(parse("GET /\r\n\r\n").isInvalid());
+		assertTrue(parse("GET / HTTP/1.1 extra\r\n\r\n").isInvalid());
+	}
+
+	@Test
+	public void rejectsHeaderOverLimit() throws IOException {
+		WebProxyRequestParser parser = new WebProxyRequestParser();
+		byte[] start = "GET / HTTP/1.1\r\n".getBytes();
+		parser.consume(start, 0, start.length);
+		byte[] field = new byte[1024];
+		Arrays.fill(field, (byte) 'a');
+		field[0] = 'X';
+		field[1] = ':';
+		field[field.length - 2] = '\r';
+		field[field.length - 1] = '\n';
+		for(int i = 0; i < 63; i++) parser.consume(field, 0, field.length);
+		assertFalse(parser.isInvalid());
+		parser.consume(field, 0, field.length);
+		assertTrue(parser.isInvalid());
+		assertFalse(parser.isHeaderComplete());
+	}
+
+	@Test
+	public void stopsAfterBodyLeavingPipelinedRequest() throws IOException {
+		byte[] bytes = "POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\nhelloGET / HTTP/1.1\r\n\r\n".getBytes();
+		WebProxyRequestParser parser = new WebProxyRequestParser();
+		int header = parser.consume(bytes, 0, bytes.length);
+		assertTrue(parser.isHeaderComplete());
+		assertFalse(parser.isComplete());
+		assertEquals(5, parser.getContentLength());
+		assertEquals(5, parser.consume(bytes, header, bytes.length - header));
+		assertTrue(parser.isComplete());
+		assertEquals(0, parser.consume(bytes, header + 5, bytes.length - header - 5));
+
+		// The next request on the connection is parsed after a reset
+		parser.reset();
+		parser.consume(bytes, header + 5, bytes.length - header - 5);
+		assertTrue(parser.isComplete());
+		assertTrue(parser.isMethod("GET"));
+	}
+
+	@Test
+	public void rejectsInvalidOrConflictingContentLength() throws IOException {
+		assertTrue(parse("POST / HTTP/1.1\r\nContent-Length: 5x\r\n\r\nhello").isInvalid());
+		assertTrue(parse("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n").isInvalid());
+		assertTrue(parse("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\nhello!").isInvalid());
+		assertTrue(parse("POST / HTTP/1.1\r\nContent-Length: 5, 6\r\n\r\nhello!").isInvalid());
+
+		// The same length repeated is still one length
+		WebProxyRequestParser parser = parse("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5, 5\r\n\r\nhello");
+		assertFalse(parser.isInvalid());
+		assertEquals(5, parser.getContentLength());
+	}
+
+	@Test
+	public void consumesChunkedBody() throws IOException {
+		byte[] bytes = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n0\r\n\r\n".getBytes();
+		WebProxyRequestParser parser = new WebProxyRequestParser();
+		int header = parser.consume(bytes, 0, bytes.length);
+		assertTrue(parser.isChunked());
+		assertEquals(bytes.length - header, parser.consume(bytes, header, bytes.length - header));
+		assertTrue(parser.isComplete());
+	}
+
+	@Test
+	public void rejectsChunkSizeThatOverflows() throws IOException {
+		byte[] bytes = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nffffffffffffffff0\r\nhello".getBytes();
+		WebProxyRequestParser parser = new WebProxyRequestParser();
+		int header = parser.consume(bytes, 0, bytes.length);
+		assertTrue(parser.isHeaderComplete());
+		parser.consume(bytes, header, bytes.length - header);
+		assertTrue(parser.isInvalid());
+		assertFalse(parser.isComplete());
+		assertEquals(0, parser.consume(bytes, 0, bytes.length));
+	}
+
+	@Test
+	public void waitsForContinueOnlyWithBody() throws IOException {
+		assertTrue(parse("PUT / HTTP/1.1\r\nContent-Length: 3\r\nExpect: 100-continue\r\n\r\n").expectsContinue());
+		assertFalse(parse("PUT / HTTP/1.1\r\nExpect: 100-continue\r\n\r\n").expectsContinue());
+	}
+
+	@Test
+	public void matchesTokensInListFields() throws IOException {
+		WebProxyRequestParser parser = parse("GET / HTTP/1.1\r\nConnection: Upgrade, close\r\n\r\n");
+		assertTrue(parser.hasToken("Connection", "close"));
+		assertTrue(parser.hasToken("connection", "upgrade"));
+		assertFalse(parser.hasToken("Connection", "keep-alive"));
+	}
+
+	@Test
+	public void dropsFieldsListedInConnectionUpstream() throws IOException {
+		WebProxyRequestParser parser = parse("GET / HTTP/1.1\r\nHost: a\r\nConnection: Upgrade, X-Hop\r\nUpgrade: websocket\r\n"
+				+ "X-Hop: 1\r\nTE: trailers\r\nTrailer: X-Sum\r\nProxy-Authorization: Basic YTpi\r\nAccept: */*\r\n\r\n");
+		assertEquals("GET / HTTP/1.1\r\nHost: a\r\nAccept: */*\r\nConnection: close\r\n\r\n",
+				new String(parser.getUpstreamHeader(false)));
+	}
+
+	@Test
+	public void dropsHopByHopFieldsUpstream() throws IOException {
+		WebProxyRequestParser parser = parse("GET / HTTP/1.1\r\nHost: a\r\nConnection: close\r\nAccept: */*\r\n"
+				+ "Proxy-Connection: keep-alive\r\nExpect: 100-continue\r\n\r\n");
+		assertEquals("GET / HTTP/1.1\r\nHost: a\r\nAccept: */*\r\nConnection: keep-alive\r\n\r\n",
+				new String(parser.getUpstreamHeader(true)));
+		assertEquals("GET / HTTP/1.1\r\nHost: a\r\nAccept: */*\r\nConnection: close\r\n\r\n",
+				new String(parser.getUpstreamHeader(false)));
+	}
+}
@@ -0,0 +1,109 @@
+package webproxy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class WebProxyResolverTest {
+
+	// Resolves hosts named in a table, counting the lookups
+	private static class FakeLookup implements WebProxyResolver.Lookup {
+		final ConcurrentHashMap<String, InetAddress> hosts = new ConcurrentHashMap<String, InetAddress>();
+		final AtomicInteger lookups = new AtomicInteger();
+
+		public InetAddress[] lookup(String host) throws UnknownHostException {
+			lookups.incrementAndGet();
+			InetAddress address = hosts.get(host);
+			if(address == null) throw new UnknownHostException(host);
+			return new InetAddress[] {address};
+		}
+	}
+
+	/**
+	 * Returns an address without any lookup
+	 * @param last byte of the address
+	 * @return the address 10.0.0.last
+	 * @throws UnknownHostException
+	 */
+	private static InetAddress address(int last) throws UnknownHostException {
+		return InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) last});
+	}
+
+	@Test
+	public void cachesResolvedHosts() throws Exception {
+		FakeLookup lookup = new FakeLookup();
+		lookup.hosts.put("a.test", address(1));
+		WebProxyResolver resolver = new WebProxyResolver(lookup, 16, 60000, 60000);
+		assertEquals(address(1), resolver.resolve("a.test"));
+		assertEquals(address(1), resolver.resolve("a.test"));
+		assertEquals(1, lookup.lookups.get());
+		assertEquals(1, resolver.getMisses());
+		assertEquals(1, resolver.getHits());
+		assertTrue(resolver.isCached("a.test"));
+	}
+
+	@Test
+	public void resolvesAgainAfterTtl() throws Exception {
+		FakeLookup lookup = new FakeLookup();
+		lookup.hosts.put("a.test", address(1));
+		WebProxyResolver resolver = new WebProxyResolver(lookup, 16, 50, 50);
+		resolver.resolve("a.test");
+		lookup.hosts.put("a.test", address(2));
+		Thread.sleep(100);
+		assertFalse(resolver.isCached("a.test"));
+		assertEquals(address(2), resolver.resolve("a.test"));
+		assertEquals(2, resolver.getMisses());
+	}
+
+	@Test
+	public void cachesUnknownHostsForNegativeTtl() throws Exception {
+		FakeLookup lookup = new FakeLookup();
+		WebProxyResolver resolver = new WebProxyResolver(lookup, 16, 60000, 50);
+		assertNull(resolver.resolve("missing.test"));
+		assertNull(resolver.resolve("missing.test"));
+		assertEquals(1, lookup.lookups.get());
+		assertEquals(1, resolver.getNegativeHits());
+
+		// Once the failure expires, the host is looked up again
+		lookup.hosts.put("missing.test", address(3));
+		Thread.sleep(100);
+		assertEquals(address(3), resolver.resolve("missing.test"));
+		assertEquals(2, lookup.lookups.get());
+	}
+
+	@Test
+	public void refreshesUsedEntriesBeforeTheyExpire() throws Exception {
+		FakeLookup lookup = new FakeLookup();
+		lookup.hosts.put("a.test", address(1));
+		WebProxyResolver resolver = new WebProxyResolver(lookup, 16, 1000, 1000);
+		resolver.resolve("a.test");
+		lookup.hosts.put("a.test", address(2));
+		Thread.sleep(800);
+
+		// Past three quarters of the TTL, the cached address is served while it is refreshed
+		assertEquals(address(1), resolver.resolve("a.test"));
+		for(int i = 0; i < 100 && resolver.getRefreshes() == 0; i++) Thread.sleep(10);
+		assertEquals(1, resolver.getRefreshes());
+		assertEquals(address(2), resolver.resolve("a.test"));
+		assertEquals(1, resolver.getMisses());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedHosts() throws Exception {
+		FakeLookup lookup = new FakeLookup();
+		for(int i = 1; i <= 3; i++) lookup.hosts.put(i + ".test", address(i));
+		WebProxyResolver resolver = new WebProxyResolver(lookup, 2, 60000, 60000);
+		resolver.resolve("1.test");
+		resolver.resolve("2.test");
+		resolver.resolve("1.test");
+		resolver.resolve("3.test");
+		assertEquals(2, resolver.size());
+		assertTrue(resolver.isCached("1.test"));
+		assertFalse(resolver.isCached("2.test"));
+		assertTrue(resolver.isCached("3.test"));
+	}
+}
@@ -0,0 +1,188 @@
+package webproxy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+public class WebProxyResponseFramingTest {
+
+	/**
+	 * Feeds a response to a framing as one read, its header and then its body
+	 * @param framing
+	 * @param response
+	 * @return the number of bytes consumed
+	 * @throws IOException
+	 */
+	private static int consume(WebProxyResponseFraming framing, String response) throws IOException {
+		byte[] bytes = response.getBytes();
+		int header = framing.consume(bytes, 0, bytes.length);
+		return header + framing.consume(bytes, header, bytes.length - header);
+	}
+
+	@Test
+	public void endsBodyAtContentLength() throws IOException {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		String response = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello";
+		assertEquals(response.length(), consume(framing, response + "HTTP/1.1"));
+		assertTrue(framing.isComplete());
+		assertTrue(framing.isDelimited());
+		assertEquals(200, framing.getHeader().getStatusCode());
+		// Bytes past the end of the response mean the connection cannot be trusted
+		assertFalse(framing.isReusable());
+	}
+
+	@Test
+	public void reusesConnectionOnlyAsTheServerAllows() throws IOException {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		consume(framing, "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+		assertTrue(framing.isReusable());
+
+		framing = new WebProxyResponseFraming();
+		consume(framing, "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+		assertFalse(framing.isReusable());
+
+		framing = new WebProxyResponseFraming();
+		consume(framing, "HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n");
+		assertFalse(framing.isReusable());
+
+		framing = new WebProxyResponseFraming();
+		consume(framing, "HTTP/1.0 200 OK\r\nContent-Length: 0\r\nConnection: keep-alive\r\n\r\n");
+		assertTrue(framing.isReusable());
+	}
+
+	@Test
+	public void decodesChunkedBody() throws IOException {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		framing.setBodySink(body);
+		String response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "5;name=value\r\nhello\r\nA\r\n, chunked!\r\n0\r\nTrailer: x\r\n\r\n";
+		assertEquals(response.length(), consume(framing, response));
+		assertTrue(framing.isComplete());
+		assertTrue(framing.isDelimited());
+		assertEquals("hello, chunked!", body.toString());
+	}
+
+	@Test
+	public void decodesChunkedBodyByteByByte() throws IOException {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		framing.setBodySink(body);
+		byte[] bytes = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n".getBytes();
+		for(int i = 0; i < bytes.length; i++) {
+			assertFalse(framing.isComplete());
+			assertEquals(1, framing.consume(bytes, i, 1));
+		}
+		assertTrue(framing.isComplete());
+		assertEquals("abcde", body.toString());
+	}
+
+	@Test
+	public void stopsConsumingAfterHeader() throws IOException {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		byte[] bytes = "HTTP/1.1 200 OK\r\nContent-Length: 3\r\n\r\nabc".getBytes();
+		assertEquals(bytes.length - 3, framing.consume(bytes, 0, bytes.length));
+		assertTrue(framing.isHeaderComplete());
+		assertFalse(framing.isComplete());
+		assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 3\r\n\r\n", new String(framing.getHeaderBytes()));
+	}
+
+	@Test
+	public void rejectsChunkSizeThatOverflows() throws IOException {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		String response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n8000000000000000\r\nabc";
+		assertEquals(response.indexOf("\r\nabc"), consume(framing, response));
+		assertTrue(framing.isMalformed());
+		assertFalse(framing.isComplete());
+		assertFalse(framing.isDelimited());
+		assertFalse(framing.isReusable());
+
+		// Fifteen digits still fit
+		framing = new WebProxyResponseFraming();
+		consume(framing, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n000000000000003\r\nabc\r\n0\r\n\r\n");
+		assertFalse(framing.isMalformed());
+		assertTrue(framing.isComplete());
+	}
+
+	@Test
+	public void hasNoBodyFor204And304() throws IOException {
+		for(String status : new String[] {"204 No Content", "304 Not Modified"}) {
+			WebProxyResponseFraming framing = new WebProxyResponseFraming();
+			consume(framing, "HTTP/1.1 " + status + "\r\nContent-Length: 10\r\n\r\n");
+			assertTrue(framing.isComplete(), status);
+			assertFalse(framing.hasBody(), status);
+		}
+	}
+
+	@Test
+	public void hasNoBodyForHead() throws IOException {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		framing.setHeadRequest(true);
+		consume(framing, "HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n");
+		assertTrue(framing.isComplete());
+		assertFalse(framing.hasBody());
+		assertTrue(framing.isReusable());
+	}
+
+	@Test
+	public void treatsInformationalResponsesAsInterim() throws IOException {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		byte[] bytes = "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes();
+		int consumed = framing.consume(bytes, 0, bytes.length);
+		assertTrue(framing.isInterim());
+		assertTrue(framing.isComplete());
+		assertFalse(framing.hasBody());
+
+		// The final response follows on a new framing
+		framing = new WebProxyResponseFraming();
+		consumed += framing.consume(bytes, consumed, bytes.length - consumed);
+		consumed += framing.consume(bytes, consumed, bytes.length - consumed);
+		assertEquals(bytes.length, consumed);
+		assertFalse(framing.isInterim());
+		assertTrue(framing.isComplete());
+	}
+
+	@Test
+	public void relaysSwitchingProtocolsUntilClose() throws IOException {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		consume(framing, "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n\r\ndata");
+		assertFalse(framing.isInterim());
+		assertFalse(framing.isComplete());
+		assertFalse(framing.isDelimited());
+	}
+
+	@Test
+	public void readsUndelimitedBodyUntilClose() throws IOException {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		framing.setBodySink(body);
+		consume(framing, "HTTP/1.0 200 OK\r\n\r\nuntil the end");
+		assertFalse(framing.isComplete());
+		assertFalse(framing.isDelimited());
+		assertEquals("until the end", body.toString());
+	}
+
+	@Test
+	public void givesUpOnHeaderOverLimit() throws IOException {
+		WebProxyResponseFraming framing = new WebProxyResponseFraming();
+		byte[] bytes = new byte[70000];
+		Arrays.fill(bytes, (byte) 'a');
+		framing.consume(bytes, 0, bytes.length);
+		assertTrue(framing.isHeaderComplete());
+		assertNull(framing.getHeader());
+		assertFalse(framing.isDelimited());
+		assertFalse(framing.isComplete());
+	}
+
+	@Test
+	public void consumesBodyParsedElsewhere() throws IOException {
+		assertTrue(WebProxyResponseFraming.forBody(false, 0).isComplete());
+		WebProxyResponseFraming framing = WebProxyResponseFraming.forBody(false, 3);
+		byte[] bytes = "abcdef".getBytes();
+		assertEquals(3, framing.consume(bytes, 0, bytes.length));
+		assertTrue(framing.isComplete());
+	}
+}
@@ -0,0 +1,127 @@
+package webproxy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WebProxyStoreTest {
+
+	@TempDir
+	Path directory;
+
+	/**
+	 * Stores a response through a staging file, as the proxy does
+	 * @param store
+	 * @param url
+	 * @param response
+	 * @return the stored object
+	 * @throws IOException
+	 */
+	private static WebProxyCachedObject append(WebProxyStore store, String url, String response) throws IOException {
+		String filename = store.newStagingFile();
+		Files.write(Paths.get(filename), response.getBytes());
+		WebProxyCachedObject object = new WebProxyCachedObject("Wed, 21 Oct 2015 07:28:00 GMT", filename, false, true);
+		object.status = 200;
+		object.etag = "\"" + url.hashCode() + "\"";
+		assertTrue(store.append(url, object));
+		return object;
+	}
+
+	@Test
+	public void replaysIndexOnLoad() throws IOException {
+		WebProxyStore store = new WebProxyStore(directory.toString(), 1 << 20);
+		assertTrue(store.load().isEmpty());
+		WebProxyCachedObject first = append(store, "http://a.test/1", "HTTP/1.1 200 OK\r\n\r\none");
+		append(store, "http://a.test/2", "HTTP/1.1 200 OK\r\n\r\ntwo");
+		assertNull(first.filename);
+
+		Map<String, WebProxyCachedObject> objects = new WebProxyStore(directory.toString(), 1 << 20).load();
+		assertEquals(2, objects.size());
+		WebProxyCachedObject loaded = objects.get("http://a.test/1");
+		assertEquals(first.location.segment, loaded.location.segment);
+		assertEquals(first.location.offset, loaded.location.offset);
+		assertEquals(first.location.length, loaded.location.length);
+		assertEquals(first.etag, loaded.etag);
+		assertEquals(first.date, loaded.date);
+		assertEquals(200, loaded.status);
+	}
+
+	@Test
+	public void replaysRemovalsAndReplacements() throws IOException {
+		WebProxyStore store = new WebProxyStore(directory.toString(), 1 << 20);
+		store.load();
+		WebProxyCachedObject removed = append(store, "http://a.test/1", "HTTP/1.1 200 OK\r\n\r\none");
+		append(store, "http://a.test/2", "HTTP/1.1 200 OK\r\n\r\ntwo");
+		WebProxyCachedObject replacement = append(store, "http://a.test/2", "HTTP/1.1 200 OK\r\n\r\ntwo, again");
+		store.remove(removed);
+		// Keeps the segment mostly live, so that it is not compacted in the background once loaded
+		append(store, "http://a.test/3", "HTTP/1.1 200 OK\r\n\r\n" + "three".repeat(100));
+
+		WebProxyStore reloaded = new WebProxyStore(directory.toString(), 1 << 20);
+		Map<String, WebProxyCachedObject> objects = reloaded.load();
+		assertEquals(2, objects.size());
+		assertFalse(objects.containsKey("http://a.test/1"));
+		WebProxyCachedObject loaded = objects.get("http://a.test/2");
+		assertEquals(replacement.location.offset, loaded.location.offset);
+		assertEquals("HTTP/1.1 200 OK\r\n\r\ntwo, again", new String(reloaded.read(loaded)));
+	}
+
+	@Test
+	public void replaysMetadataUpdatedAfterRevalidation() throws IOException {
+		WebProxyStore store = new WebProxyStore(directory.toString(), 1 << 20);
+		store.load();
+		WebProxyCachedObject object = append(store, "http://a.test/1", "HTTP/1.1 200 OK\r\n\r\none");
+		assertFalse(object.isFresh());
+		object.revalidated(WebProxyHeader.parse("HTTP/1.1 304 Not Modified\r\nETag: \"v2\"\r\nCache-Control: max-age=60\r\n\r\n"));
+		store.update(object);
+
+		WebProxyCachedObject loaded = new WebProxyStore(directory.toString(), 1 << 20).load().get("http://a.test/1");
+		assertTrue(loaded.isFresh());
+		assertEquals("\"v2\"", loaded.etag);
+		assertEquals(object.location.offset, loaded.location.offset);
+	}
+
+	@Test
+	public void removesCensoredCopiesWithTheirObjectsAndNeverReplaysThem() throws IOException {
+		WebProxyStore store = new WebProxyStore(directory.toString(), 1 << 20);
+		store.load();
+		WebProxyCachedObject removed = append(store, "http://a.test/1", "HTTP/1.1 200 OK\r\n\r\nbad");
+		WebProxyCachedObject kept = append(store, "http://a.test/2", "HTTP/1.1 200 OK\r\n\r\nbad, again");
+		for(WebProxyCachedObject object : new WebProxyCachedObject[] {removed, kept}) {
+			WebProxyCachedObject copy = new WebProxyCachedObject(object.date, store.newStagingFile(), true, true);
+			copy.isCensoredCopy = true;
+			Files.write(Paths.get(copy.filename), "HTTP/1.1 200 OK\r\n\r\n---".getBytes());
+			assertTrue(store.append("http://a.test/" + (object == removed ? 1 : 2), copy));
+			object.censoredCopy = copy;
+		}
+		assertEquals("HTTP/1.1 200 OK\r\n\r\n---", new String(store.read(kept.censoredCopy)));
+		store.remove(removed);
+		// Keeps the segment mostly live, so that it is not compacted in the background once loaded
+		append(store, "http://a.test/3", "HTTP/1.1 200 OK\r\n\r\n" + "three".repeat(100));
+
+		// Only the object itself is found on load, never its copy
+		WebProxyStore reloaded = new WebProxyStore(directory.toString(), 1 << 20);
+		Map<String, WebProxyCachedObject> objects = reloaded.load();
+		assertEquals(2, objects.size());
+		assertFalse(objects.containsKey("http://a.test/1"));
+		WebProxyCachedObject loaded = objects.get("http://a.test/2");
+		assertEquals(kept.location.offset, loaded.location.offset);
+		assertNull(loaded.censoredCopy);
+		assertEquals("HTTP/1.1 200 OK\r\n\r\nbad, again", new String(reloaded.read(loaded)));
+	}
+
+	@Test
+	public void dropsObjectsWhoseSegmentIsMissing() throws IOException {
+		WebProxyStore store = new WebProxyStore(directory.toString(), 1 << 20);
+		store.load();
+		append(store, "http://a.test/1", "HTTP/1.1 200 OK\r\n\r\none");
+		try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "*.segment")) {
+			for(Path segment : segments) Files.delete(segment);
+		}
+		assertTrue(new WebProxyStore(directory.toString(), 1 << 20).load().isEmpty());
+	}
+}